@@ -0,0 +1,412 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONObject;
+
+import com.smeshlink.misty.entity.Entry;
+import com.smeshlink.misty.entity.Feed;
+import com.smeshlink.misty.formatter.IFeedFormatter;
+import com.smeshlink.misty.formatter.JSONFormatter;
+import com.smeshlink.misty.formatter.XmlFormatter;
+import com.smeshlink.misty.service.ICredential;
+import com.smeshlink.misty.service.IServiceCallback;
+import com.smeshlink.misty.service.IServiceRequest;
+import com.smeshlink.misty.service.IServiceResponse;
+import com.smeshlink.misty.service.MistyService;
+import com.smeshlink.misty.service.ServiceException;
+import com.smeshlink.misty.service.ServiceFuture;
+import com.smeshlink.misty.service.UserCredential;
+import com.smeshlink.misty.service.channel.IRequestListener;
+import com.smeshlink.misty.service.channel.IServiceChannel;
+import com.smeshlink.misty.service.channel.InFlightLimiter;
+
+/**
+ * HTTP channel on the {@link HttpClient} of Java 11.
+ * <p>
+ * Requests are sent asynchronously without a thread each, over
+ * connections shared by all requests of the channel. With HTTP/2, which
+ * is used over TLS if the server supports it, and negotiated by upgrade
+ * otherwise, any number of requests are multiplexed over a single
+ * connection to the host. HTTP/1.1 servers get a pool of persistent
+ * connections instead.
+ * </p>
+ * <p>
+ * Responses are read as they arrive, decompressed if the server sent
+ * them with gzip. The future of a request completes once the headers of
+ * its response are received, and the body is then read from
+ * {@link IServiceResponse#getResponseStream()}, which must be disposed.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+public class Http2Channel implements IServiceChannel {
+	private static final String HEADER_AUTHORIZATION = "Authorization";
+	private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+	private String host;
+	private final boolean useSsl;
+	private final HttpClient client;
+	private final InFlightLimiter inFlightLimiter = new InFlightLimiter(0);
+	private volatile int timeout = 30000;
+	private volatile boolean acceptCompression = true;
+
+	/**
+	 * Creates a channel to a host, with an optional port, over plain HTTP.
+	 */
+	public Http2Channel(String host) {
+		this(host, false);
+	}
+
+	/**
+	 * Creates a channel to a host, with an optional port.
+	 * @param useSsl whether to use HTTPS
+	 */
+	public Http2Channel(String host, boolean useSsl) {
+		this(host, useSsl, HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.connectTimeout(Duration.ofMillis(10000))
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.build());
+	}
+
+	/**
+	 * Creates a channel sending requests with the given client, which
+	 * may have its own executor, TLS context, proxy or timeouts.
+	 */
+	public Http2Channel(String host, boolean useSsl, HttpClient client) {
+		this.host = host;
+		this.useSsl = useSsl;
+		this.client = client;
+	}
+
+	public void setRequestListener(IRequestListener listener) {
+		// do nothing
+	}
+
+	/**
+	 * Sets how long in milliseconds to wait for the headers of a response,
+	 * after which the request fails with status 504. 0 means no timeout.
+	 * The default is 30000.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout < 0 ? 0 : timeout;
+	}
+
+	public int getTimeout() {
+		return timeout;
+	}
+
+	public void setHost(String host) {
+		this.host = host;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public boolean isUseSsl() {
+		return useSsl;
+	}
+
+	/**
+	 * Gets the client sending the requests.
+	 */
+	public HttpClient getClient() {
+		return client;
+	}
+
+	public boolean isAcceptCompression() {
+		return acceptCompression;
+	}
+
+	/**
+	 * Sets if responses may be compressed with gzip. The default is true.
+	 */
+	public void setAcceptCompression(boolean acceptCompression) {
+		this.acceptCompression = acceptCompression;
+	}
+
+	/**
+	 * Gets the limiter of the requests in flight, which is
+	 * unlimited unless configured.
+	 */
+	public InFlightLimiter getInFlightLimiter() {
+		return inFlightLimiter;
+	}
+
+	public String toString() {
+		return "Http2Channel " + host;
+	}
+
+	/**
+	 * Executes a request and waits for its response. Returns null if the
+	 * request times out.
+	 */
+	public IServiceResponse execute(IServiceRequest request) {
+		ServiceFuture future = executeAsync(request, null);
+		try {
+			future.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+
+		ServiceException ex = future.getException();
+		if (ex == null)
+			return (IServiceResponse) future.getResult();
+		else if (ex.getStatus() == ServiceException.GATEWAY_TIMEOUT)
+			return null;
+		else
+			throw ex;
+	}
+
+	/**
+	 * Sends a request without waiting for its response. The future is
+	 * completed in a thread of the client's executor. The caller is only
+	 * held back by the in-flight limiter, if configured.
+	 */
+	public ServiceFuture executeAsync(final IServiceRequest request, IServiceCallback callback) {
+		final ServiceFuture future = new ServiceFuture(callback);
+
+		try {
+			inFlightLimiter.acquire();
+		} catch (ServiceException e) {
+			future.fail(e);
+			return future;
+		}
+
+		HttpRequest httpRequest;
+		try {
+			httpRequest = buildRequest(request);
+		} catch (ServiceException e) {
+			inFlightLimiter.release();
+			future.fail(e);
+			return future;
+		} catch (RuntimeException e) {
+			inFlightLimiter.release();
+			future.fail(ServiceException.error(e));
+			return future;
+		}
+
+		client.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofInputStream())
+			.whenComplete((response, ex) -> {
+				inFlightLimiter.release();
+				if (ex == null)
+					future.complete(new Http2Response(request.getResource(), response));
+				else
+					future.fail(toServiceException(ex));
+			});
+
+		return future;
+	}
+
+	private HttpRequest buildRequest(IServiceRequest request) {
+		if (request.getFormat() == null)
+			request.setFormat("json");
+		String contentType = MistyService.getContentType(request.getFormat());
+
+		HttpRequest.Builder builder = HttpRequest.newBuilder(buildUri(request));
+		if (timeout > 0)
+			builder.timeout(Duration.ofMillis(timeout));
+
+		Map<?, ?> headers = request.getHeaders();
+		if (headers != null) {
+			for (Map.Entry<?, ?> entry : headers.entrySet()) {
+				if (entry.getKey() == null || entry.getValue() == null)
+					continue;
+				try {
+					builder.setHeader(entry.getKey().toString(), entry.getValue().toString());
+				} catch (IllegalArgumentException e) {
+					// a header the client sets itself, such as Content-Length
+				}
+			}
+		}
+		builder.setHeader(MistyService.HEADER_USER_AGENT, MistyService.VERSION);
+		builder.setHeader(MistyService.HEADER_ACCEPT, contentType);
+		if (acceptCompression)
+			builder.setHeader(HEADER_ACCEPT_ENCODING, "gzip");
+
+		ICredential cred = request.getCredential();
+		if (cred instanceof UserCredential) {
+			UserCredential uc = (UserCredential) cred;
+			builder.setHeader(HEADER_AUTHORIZATION, "Basic " + Base64.getEncoder().encodeToString(
+					(uc.getUsername() + ":" + uc.getPassword()).getBytes(StandardCharsets.UTF_8)));
+		} else if (cred != null) {
+			ICredential.Pair pair = cred.getCredential();
+			builder.setHeader(pair.getKey(), pair.getValue());
+		}
+
+		String method = request.getMethod();
+		if (request.getBody() != null && ("POST".equals(method) || "PUT".equals(method))) {
+			builder.setHeader(MistyService.HEADER_CONTENT_TYPE, contentType + "; charset=utf-8");
+			builder.method(method, HttpRequest.BodyPublishers.ofByteArray(format(request)));
+		} else {
+			builder.method(method, HttpRequest.BodyPublishers.noBody());
+		}
+
+		return builder.build();
+	}
+
+	private URI buildUri(IServiceRequest request) {
+		StringBuffer sb = new StringBuffer();
+		sb.append(useSsl ? "https://" : "http://").append(host);
+		try {
+			sb.append(new URI(null, null, request.getResource() + "." + request.getFormat(), null).getRawPath());
+
+			Map<?, ?> params = request.getParameters();
+			if (params != null) {
+				char sep = '?';
+				for (Map.Entry<?, ?> entry : params.entrySet()) {
+					if (entry.getKey() == null || entry.getValue() == null)
+						continue;
+					sb.append(sep)
+						.append(URLEncoder.encode(entry.getKey().toString(), "utf-8"))
+						.append('=')
+						.append(URLEncoder.encode(entry.getValue().toString(), "utf-8"));
+					sep = '&';
+				}
+			}
+			return new URI(sb.toString());
+		} catch (URISyntaxException e) {
+			throw new ServiceException(ServiceException.BAD_REQUEST, "Invalid URI requested.", e);
+		} catch (UnsupportedEncodingException e) {
+			throw ServiceException.error(e);
+		}
+	}
+
+	/**
+	 * Formats the body of a request. Feeds, collections of feeds and
+	 * entries are formatted in the format of the request, other bodies
+	 * are written as JSON values, or as text in XML requests.
+	 */
+	private static byte[] format(IServiceRequest request) {
+		Object body = request.getBody();
+		boolean xml = "xml".equalsIgnoreCase(request.getFormat());
+		IFeedFormatter formatter = xml ? (IFeedFormatter) new XmlFormatter() : new JSONFormatter();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		if (body instanceof Feed)
+			formatter.format(out, (Feed) body);
+		else if (body instanceof List)
+			formatter.format(out, (List<?>) body);
+		else if (body instanceof Collection)
+			formatter.format(out, new ArrayList<Object>((Collection<?>) body));
+		else if (body instanceof Entry)
+			formatter.format(out, (Entry) body);
+		else
+			return (xml ? body.toString() : JSONObject.valueToString(body)).getBytes(StandardCharsets.UTF_8);
+
+		return out.toByteArray();
+	}
+
+	private static ServiceException toServiceException(Throwable ex) {
+		if (ex instanceof CompletionException && ex.getCause() != null)
+			ex = ex.getCause();
+		if (ex instanceof ServiceException)
+			return (ServiceException) ex;
+		if (ex instanceof HttpTimeoutException)
+			return ServiceException.timeout(ex.getMessage());
+		if (ex instanceof ConnectException)
+			return ServiceException.unavailable(ex.getMessage());
+		return ServiceException.error(ex);
+	}
+
+	class Http2Response implements IServiceResponse {
+		private final String resource;
+		private final HttpResponse<InputStream> response;
+		private InputStream stream;
+
+		public Http2Response(String resource, HttpResponse<InputStream> response) {
+			this.resource = resource;
+			this.response = response;
+		}
+
+		public String getResource() {
+			return resource;
+		}
+
+		public int getStatus() {
+			return response.statusCode();
+		}
+
+		public Object getBody() {
+			return null;
+		}
+
+		/**
+		 * Gets the first value of each header.
+		 */
+		public Map<String, Object> getHeaders() {
+			Map<String, Object> map = new HashMap<String, Object>();
+			for (Map.Entry<String, List<String>> entry : response.headers().map().entrySet()) {
+				if (!entry.getValue().isEmpty())
+					map.put(entry.getKey(), entry.getValue().get(0));
+			}
+			return map;
+		}
+
+		public String getToken() {
+			return null;
+		}
+
+		public void setToken(String token) {
+			// do nothing
+		}
+
+		/**
+		 * Gets the body, decompressed if it has a content encoding.
+		 */
+		public synchronized InputStream getResponseStream() throws IOException {
+			if (stream == null) {
+				stream = response.body();
+				String encoding = response.headers().firstValue(HEADER_CONTENT_ENCODING).orElse(null);
+				if (encoding != null && "gzip".equalsIgnoreCase(encoding.trim()))
+					stream = new GZIPInputStream(stream);
+			}
+			return stream;
+		}
+
+		public void dispose() {
+			try {
+				synchronized (this) {
+					if (stream == null)
+						stream = response.body();
+				}
+				// lets the connection serve other requests
+				stream.close();
+			} catch (IOException e) {
+				// nothing more to release
+			}
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.smeshlink.misty.service.channel.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import com.smeshlink.misty.service.IServiceResponse;
+import com.smeshlink.misty.service.ServiceFuture;
+import com.smeshlink.misty.service.ServiceRequestImpl;
+import com.smeshlink.misty.service.UserCredential;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+public class Http2ChannelTest extends TestCase {
+	private HttpServer server;
+	private Http2Channel channel;
+
+	protected void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String text = exchange.getRequestURI().getRawPath() + "?" + exchange.getRequestURI().getRawQuery()
+						+ "|" + exchange.getRequestHeaders().getFirst("Authorization");
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				GZIPOutputStream gz = new GZIPOutputStream(bytes);
+				gz.write(text.getBytes("utf-8"));
+				gz.finish();
+				exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+				exchange.sendResponseHeaders(200, bytes.size());
+				OutputStream os = exchange.getResponseBody();
+				bytes.writeTo(os);
+				os.close();
+			}
+		});
+		server.setExecutor(Executors.newFixedThreadPool(8));
+		server.start();
+		channel = new Http2Channel("127.0.0.1:" + server.getAddress().getPort());
+	}
+
+	protected void tearDown() throws Exception {
+		server.stop(0);
+	}
+
+	public void testExecute() throws Exception {
+		ServiceRequestImpl request = newRequest("/feeds/a b");
+		@SuppressWarnings("unchecked")
+		Map<String, Object> params = request.getParameters();
+		params.put("q", "x&y");
+		request.setCredential(new UserCredential("user", "pass"));
+		assertEquals("/feeds/a%20b.json?q=x%26y|Basic dXNlcjpwYXNz", read(channel.execute(request)));
+	}
+
+	public void testConcurrentRequests() throws Exception {
+		ServiceFuture[] futures = new ServiceFuture[200];
+		for (int i = 0; i < futures.length; i++) {
+			futures[i] = channel.executeAsync(newRequest("/feeds/" + i), null);
+		}
+		for (int i = 0; i < futures.length; i++) {
+			futures[i].await();
+			assertEquals("/feeds/" + i + ".json?null|null", read((IServiceResponse) futures[i].getResult()));
+		}
+	}
+
+	private static ServiceRequestImpl newRequest(String resource) {
+		ServiceRequestImpl request = new ServiceRequestImpl();
+		request.setMethod("GET");
+		request.setResource(resource);
+		return request;
+	}
+
+	private static String read(IServiceResponse response) throws IOException {
+		try {
+			InputStream is = response.getResponseStream();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buf = new byte[1024];
+			int n;
+			while ((n = is.read(buf)) != -1)
+				bytes.write(buf, 0, n);
+			return bytes.toString("utf-8");
+		} finally {
+			response.dispose();
+		}
+	}
+}
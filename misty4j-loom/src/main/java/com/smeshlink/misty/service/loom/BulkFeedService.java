@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.loom;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.smeshlink.misty.entity.Feed;
+import com.smeshlink.misty.service.IFeedService;
+import com.smeshlink.misty.service.QueryOption;
+import com.smeshlink.misty.service.ServiceException;
+
+/**
+ * Runs the blocking calls of an {@link IFeedService} in the virtual threads
+ * of Java 21, one thread per call.
+ * <p>
+ * A virtual thread blocked on a request costs little more than the request
+ * itself, so the feeds of tens of thousands of devices can be fetched at
+ * once without sizing a thread pool. The channels of the core library wait
+ * on locks and sockets which release the carrier of a virtual thread, except
+ * for the connection pool of commons-httpclient inside <code>HttpChannel</code>,
+ * which still pins it while waiting for a connection; prefer a
+ * <code>TcpChannel</code> or the <code>Http2Channel</code> for large fan-outs.
+ * </p>
+ * <p>
+ * How many requests are actually on the wire at once is bounded by the
+ * channel, for instance by the in-flight limiter of a <code>TcpChannel</code>,
+ * and optionally by the maximum concurrency given here.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+public class BulkFeedService implements AutoCloseable {
+	private final IFeedService service;
+	private final ExecutorService executor = newExecutor();
+	/** null if the concurrency is not bounded */
+	private final Semaphore permits;
+
+	/**
+	 * Creates a service running any number of calls at once.
+	 */
+	public BulkFeedService(IFeedService service) {
+		this(service, 0);
+	}
+
+	/**
+	 * Creates a service.
+	 * @param maxConcurrency the maximum number of calls running at once,
+	 *        or 0 for no limit
+	 */
+	public BulkFeedService(IFeedService service, int maxConcurrency) {
+		if (maxConcurrency < 0)
+			throw new IllegalArgumentException("maxConcurrency: " + maxConcurrency);
+		this.service = service;
+		this.permits = maxConcurrency > 0 ? new Semaphore(maxConcurrency) : null;
+	}
+
+	/**
+	 * Creates an executor starting a new virtual thread for each task.
+	 */
+	public static ExecutorService newExecutor() {
+		return Executors.newThreadPerTaskExecutor(
+				Thread.ofVirtual().name("Misty-virtual-", 0).factory());
+	}
+
+	public IFeedService getService() {
+		return service;
+	}
+
+	/**
+	 * Runs a call in a virtual thread of its own, such as a
+	 * {@link IFeedService#create(Feed)} of a bulk import. The thread waits
+	 * for a permit first if the concurrency is bounded.
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		if (permits == null)
+			return executor.submit(task);
+		return executor.submit(() -> {
+			permits.acquire();
+			try {
+				return task.call();
+			} finally {
+				permits.release();
+			}
+		});
+	}
+
+	/**
+	 * Finds feeds by path, all at once.
+	 * @throws ServiceException the first failure, once all calls are done
+	 *         or cancelled
+	 */
+	public Map<String, Feed> findAll(Collection<String> paths) throws ServiceException {
+		return findAll(paths, QueryOption.DEFAULT, null);
+	}
+
+	/**
+	 * Finds feeds by path, all at once, and waits until all are found.
+	 * @param failures receives the failures by path, or null to cancel the
+	 *        remaining calls and throw the first failure
+	 * @return the feeds found by path, in the order of the paths
+	 * @throws ServiceException if a call failed and <code>failures</code> is null,
+	 *         or the calling thread was interrupted
+	 */
+	public Map<String, Feed> findAll(Collection<String> paths, final QueryOption opt,
+			Map<String, ServiceException> failures) throws ServiceException {
+		List<Future<Feed>> futures = new ArrayList<Future<Feed>>(paths.size());
+		for (final String path : paths) {
+			futures.add(submit(() -> service.find(path, opt)));
+		}
+
+		Map<String, Feed> feeds = new LinkedHashMap<String, Feed>();
+		Iterator<String> it = paths.iterator();
+		try {
+			for (Future<Feed> future : futures) {
+				String path = it.next();
+				try {
+					Feed feed = future.get();
+					if (feed != null)
+						feeds.put(path, feed);
+				} catch (ExecutionException e) {
+					ServiceException ex = toServiceException(e.getCause());
+					if (failures == null)
+						throw ex;
+					failures.put(path, ex);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw ServiceException.error(e);
+		} finally {
+			for (Future<Feed> future : futures) {
+				future.cancel(true);
+			}
+		}
+		return feeds;
+	}
+
+	/**
+	 * Stops accepting calls and waits for those running to finish.
+	 */
+	public void close() {
+		executor.close();
+	}
+
+	private static ServiceException toServiceException(Throwable cause) {
+		if (cause instanceof ServiceException)
+			return (ServiceException) cause;
+		return ServiceException.error(cause);
+	}
+}
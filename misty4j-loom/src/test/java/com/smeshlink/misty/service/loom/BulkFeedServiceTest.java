@@ -0,0 +1,81 @@
+package com.smeshlink.misty.service.loom;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+import com.smeshlink.misty.entity.Feed;
+import com.smeshlink.misty.service.IServiceRequest;
+import com.smeshlink.misty.service.IServiceResponse;
+import com.smeshlink.misty.service.JsonResponse;
+import com.smeshlink.misty.service.MistyService;
+import com.smeshlink.misty.service.QueryOption;
+import com.smeshlink.misty.service.ServiceException;
+import com.smeshlink.misty.service.channel.IRequestListener;
+import com.smeshlink.misty.service.channel.TcpChannel;
+import com.smeshlink.misty.service.channel.TcpServer;
+
+import junit.framework.TestCase;
+
+public class BulkFeedServiceTest extends TestCase {
+	private TcpServer server;
+	private TcpChannel channel;
+	private BulkFeedService bulk;
+
+	protected void setUp() throws Exception {
+		server = new TcpServer(0);
+		server.setDefaultHandler(new IRequestListener() {
+			public IServiceResponse process(IServiceRequest request) {
+				String resource = request.getResource();
+				String name = resource.substring(resource.lastIndexOf('/') + 1);
+				JSONObject json = new JSONObject();
+				if (name.startsWith("missing")) {
+					json.put("status", 404);
+				} else {
+					json.put("status", 200);
+					json.put("body", new JSONObject().put("name", name));
+				}
+				return new JsonResponse(json);
+			}
+		});
+		server.start();
+		channel = new TcpChannel("127.0.0.1:" + server.getLocalPort());
+		bulk = new BulkFeedService(new MistyService(channel).feed(), 1000);
+	}
+
+	protected void tearDown() throws Exception {
+		bulk.close();
+		channel.close();
+		server.stop();
+	}
+
+	public void testFindAll() throws Exception {
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < 10000; i++) {
+			paths.add("device" + i);
+		}
+		Map<String, Feed> feeds = bulk.findAll(paths);
+		assertEquals(paths.size(), feeds.size());
+		assertEquals("device9999", feeds.get("device9999").getName());
+	}
+
+	public void testFailures() throws Exception {
+		List<String> paths = new ArrayList<String>();
+		paths.add("device1");
+		paths.add("missing2");
+		Map<String, ServiceException> failures = new HashMap<String, ServiceException>();
+		Map<String, Feed> feeds = bulk.findAll(paths, QueryOption.DEFAULT, failures);
+		assertEquals(1, feeds.size());
+		assertEquals(ServiceException.NOT_FOUND, failures.get("missing2").getStatus());
+
+		try {
+			bulk.findAll(paths);
+			fail();
+		} catch (ServiceException e) {
+			assertEquals(ServiceException.NOT_FOUND, e.getStatus());
+		}
+	}
+}
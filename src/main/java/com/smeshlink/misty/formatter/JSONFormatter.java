@@ -46,7 +46,18 @@ public class JSONFormatter implements IFeedFormatter {
 	
 	public void format(OutputStream stream, IServiceRequest request) throws FormatException {
 		try {
-			Writer w = getWriter(stream);
+			format(getWriter(stream), request);
+		} catch (UnsupportedEncodingException ex) {
+			throw new FormatException(ex);
+		}
+	}
+	
+	/**
+	 * Formats a request into a writer, which allows callers to provide
+	 * their own encoding to bytes.
+	 */
+	public void format(Writer w, IServiceRequest request) throws FormatException {
+		try {
 			JSONWriter writer = getJSONWriter(w);
 			
 			writer.object();
@@ -83,8 +94,6 @@ public class JSONFormatter implements IFeedFormatter {
 			writer.endObject();
 			
 			w.flush();
-		} catch (UnsupportedEncodingException ex) {
-			throw new FormatException(ex);
 		} catch (IOException ex) {
 			throw new FormatException(ex);
 		}
@@ -92,7 +101,18 @@ public class JSONFormatter implements IFeedFormatter {
 	
 	public void format(OutputStream stream, IServiceResponse response) throws FormatException {
 		try {
-			Writer w = getWriter(stream);
+			format(getWriter(stream), response);
+		} catch (UnsupportedEncodingException ex) {
+			throw new FormatException(ex);
+		}
+	}
+	
+	/**
+	 * Formats a response into a writer, which allows callers to provide
+	 * their own encoding to bytes.
+	 */
+	public void format(Writer w, IServiceResponse response) throws FormatException {
+		try {
 			JSONWriter writer = getJSONWriter(w);
 			
 			writer.object();
@@ -131,8 +151,6 @@ public class JSONFormatter implements IFeedFormatter {
 			writer.endObject();
 			
 			w.flush();
-		} catch (UnsupportedEncodingException ex) {
-			throw new FormatException(ex);
 		} catch (IOException ex) {
 			throw new FormatException(ex);
 		}
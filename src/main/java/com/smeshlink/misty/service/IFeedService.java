@@ -23,4 +23,14 @@ public interface IFeedService {
 	boolean update(Feed feed) throws ServiceException;
 	boolean delete(String path) throws ServiceException;
 	Object command(Object cmd);
+	/*
+	 * Asynchronous variants. The returned futures and the callbacks,
+	 * which may be null, receive a Feed, a Collection of feeds, or the
+	 * command result respectively.
+	 */
+	ServiceFuture findAsync(String path, IServiceCallback callback);
+	ServiceFuture findAsync(String path, QueryOption opt, IServiceCallback callback);
+	ServiceFuture listAsync(IServiceCallback callback);
+	ServiceFuture listAsync(QueryOption opt, IServiceCallback callback);
+	ServiceFuture commandAsync(Object cmd, IServiceCallback callback);
 }
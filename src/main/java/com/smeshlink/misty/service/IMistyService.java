@@ -37,6 +37,13 @@ public interface IMistyService {
 	 * @return an {@link IServiceResponse}, or null if timeout
 	 */
 	IServiceResponse execute(IServiceRequest request);
+	/**
+	 * Executes a request without waiting for its response.
+	 * @param request the {@link IServiceRequest} to send
+	 * @param callback the {@link IServiceCallback} to notify, or null
+	 * @return a {@link ServiceFuture} of the {@link IServiceResponse}
+	 */
+	ServiceFuture executeAsync(IServiceRequest request, IServiceCallback callback);
 	IFeedService feed();
 	IFeedService feed(User owner);
 	IFeedService feed(Feed parent);
@@ -0,0 +1,31 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ * 
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service;
+
+/**
+ * Receives the outcome of an asynchronous service call.
+ * <p>
+ * Callbacks may be invoked in an I/O thread of the channel, so
+ * they should return quickly and never block.
+ * </p>
+ * 
+ * @author Longshine
+ *
+ */
+public interface IServiceCallback {
+	/**
+	 * Called when the call succeeds.
+	 * @param result the result of the call, such as an {@link IServiceResponse}
+	 * or a {@link com.smeshlink.misty.entity.Feed}
+	 */
+	void completed(Object result);
+	/**
+	 * Called when the call fails or times out.
+	 * @param e the cause, with a status of 504 if timed out
+	 */
+	void failed(ServiceException e);
+}
@@ -88,6 +88,10 @@ public class MistyService implements IMistyService {
 	public IServiceResponse execute(IServiceRequest request) {
 		return channel.execute(request);
 	}
+	
+	public ServiceFuture executeAsync(IServiceRequest request, IServiceCallback callback) {
+		return channel.executeAsync(request, callback);
+	}
 
 	public IFeedService feed() {
 		return new FeedServiceImpl(null);
@@ -121,30 +125,8 @@ public class MistyService implements IMistyService {
 		}
 		
 		public Object command(Object cmd) {
-			ServiceRequestImpl request = newRequest("CMD");
-			request.setResource(context + ".json");
-			request.setFormat("json");
-			request.setBody(cmd);
-			
-			IServiceResponse response = null;
-			try {
-				response = execute(request);
-				
-				if (response == null) {
-					throw ServiceException.timeout(null);
-				} else if (response.getStatus() != 200) {
-					throw new ServiceException(response.getStatus());
-				} else {
-					return response.getBody();
-				}
-			} catch (ServiceException e) {
-				throw e;
-			} catch (Exception e) {
-				throw ServiceException.error(e);
-			} finally {
-				if (response != null)
-					response.dispose();
-			}
+			ServiceRequestImpl request = newCommand(cmd);
+			return toResult(request, execute(request), RESULT_COMMAND);
 		}
 		
 		public Collection list() throws ServiceException {
@@ -152,33 +134,8 @@ public class MistyService implements IMistyService {
 		}
 
 		public Collection list(QueryOption opt) throws ServiceException {
-			ServiceRequestImpl request = newRequest("GET");
-			request.setResource(context);
-			toParameters(request, opt);
-			
-			IServiceResponse response = null;
-			try {
-				response = execute(request);
-				
-				if (response == null) {
-					throw ServiceException.timeout(null);
-				} else if (response.getStatus() != 200) {
-					throw new ServiceException(response.getStatus());
-				} else {
-					IFeedFormatter formatter = getFormatter(request.getFormat());
-					if (response.getBody() == null)
-						return formatter.parseFeeds(response.getResponseStream());
-					else
-						return formatter.parseFeeds(response.getBody());
-				}
-			} catch (ServiceException e) {
-				throw e;
-			} catch (Exception e) {
-				throw ServiceException.error(e);
-			} finally {
-				if (response != null)
-					response.dispose();
-			}
+			ServiceRequestImpl request = newList(opt);
+			return (Collection) toResult(request, execute(request), RESULT_FEEDS);
 		}
 
 		public Feed find(String path) throws ServiceException {
@@ -186,33 +143,28 @@ public class MistyService implements IMistyService {
 		}
 		
 		public Feed find(String path, QueryOption opt) throws ServiceException {
-			ServiceRequestImpl request = newRequest("GET");
-			request.setResource(context + "/" + path);
-			toParameters(request, opt);
-			
-			IServiceResponse response = null;
-			try {
-				response = execute(request);
-				
-				if (response == null) {
-					throw ServiceException.timeout(null);
-				} else if (response.getStatus() != 200) {
-					throw new ServiceException(response.getStatus());
-				} else {
-					IFeedFormatter formatter = getFormatter(request.getFormat());
-					if (response.getBody() == null)
-						return formatter.parseFeed(response.getResponseStream());
-					else
-						return formatter.parseFeed(response.getBody());
-				}
-			} catch (ServiceException e) {
-				throw e;
-			} catch (Exception e) {
-				throw ServiceException.error(e);
-			} finally {
-				if (response != null)
-					response.dispose();
-			}
+			ServiceRequestImpl request = newFind(path, opt);
+			return (Feed) toResult(request, execute(request), RESULT_FEED);
+		}
+		
+		public ServiceFuture commandAsync(Object cmd, IServiceCallback callback) {
+			return executeAsync(newCommand(cmd), RESULT_COMMAND, callback);
+		}
+		
+		public ServiceFuture listAsync(IServiceCallback callback) {
+			return listAsync(QueryOption.DEFAULT, callback);
+		}
+		
+		public ServiceFuture listAsync(QueryOption opt, IServiceCallback callback) {
+			return executeAsync(newList(opt), RESULT_FEEDS, callback);
+		}
+		
+		public ServiceFuture findAsync(String path, IServiceCallback callback) {
+			return findAsync(path, QueryOption.DEFAULT, callback);
+		}
+		
+		public ServiceFuture findAsync(String path, QueryOption opt, IServiceCallback callback) {
+			return executeAsync(newFind(path, opt), RESULT_FEED, callback);
 		}
 		
 		public boolean create(Feed feed) throws ServiceException {
@@ -233,6 +185,93 @@ public class MistyService implements IMistyService {
             request.setCredential(credential);
             return request;
         }
+		
+		private ServiceRequestImpl newCommand(Object cmd) {
+			ServiceRequestImpl request = newRequest("CMD");
+			request.setResource(context + ".json");
+			request.setFormat("json");
+			request.setBody(cmd);
+			return request;
+		}
+		
+		private ServiceRequestImpl newList(QueryOption opt) {
+			ServiceRequestImpl request = newRequest("GET");
+			request.setResource(context);
+			toParameters(request, opt);
+			return request;
+		}
+		
+		private ServiceRequestImpl newFind(String path, QueryOption opt) {
+			ServiceRequestImpl request = newRequest("GET");
+			request.setResource(context + "/" + path);
+			toParameters(request, opt);
+			return request;
+		}
+		
+		private ServiceFuture executeAsync(final ServiceRequestImpl request,
+				final int resultType, IServiceCallback callback) {
+			final ServiceFuture future = new ServiceFuture(callback);
+			
+			try {
+				MistyService.this.executeAsync(request, new IServiceCallback() {
+					public void completed(Object result) {
+						try {
+							future.complete(toResult(request, (IServiceResponse) result, resultType));
+						} catch (ServiceException e) {
+							future.fail(e);
+						}
+					}
+					
+					public void failed(ServiceException e) {
+						future.fail(e);
+					}
+				});
+			} catch (ServiceException e) {
+				future.fail(e);
+			}
+			
+			return future;
+		}
+	}
+	
+	private static final int RESULT_COMMAND = 0;
+	private static final int RESULT_FEEDS = 1;
+	private static final int RESULT_FEED = 2;
+	
+	/**
+	 * Converts a response to the result of a feed call and disposes it.
+	 */
+	private static Object toResult(IServiceRequest request, IServiceResponse response,
+			int resultType) throws ServiceException {
+		try {
+			if (response == null) {
+				throw ServiceException.timeout(null);
+			} else if (response.getStatus() != 200) {
+				throw new ServiceException(response.getStatus());
+			} else if (resultType == RESULT_COMMAND) {
+				return response.getBody();
+			} else {
+				IFeedFormatter formatter = getFormatter(request.getFormat());
+				if (resultType == RESULT_FEEDS) {
+					if (response.getBody() == null)
+						return formatter.parseFeeds(response.getResponseStream());
+					else
+						return formatter.parseFeeds(response.getBody());
+				} else {
+					if (response.getBody() == null)
+						return formatter.parseFeed(response.getResponseStream());
+					else
+						return formatter.parseFeed(response.getBody());
+				}
+			}
+		} catch (ServiceException e) {
+			throw e;
+		} catch (Exception e) {
+			throw ServiceException.error(e);
+		} finally {
+			if (response != null)
+				response.dispose();
+		}
 	}
 	
 	private static IFeedFormatter getFormatter(String format) {
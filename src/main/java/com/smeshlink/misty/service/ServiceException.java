@@ -13,7 +13,15 @@ package com.smeshlink.misty.service;
 public class ServiceException extends RuntimeException {
 	public static final int FORBIDDEN = 403;
 	public static final int BAD_REQUEST = 400;
+	public static final int NOT_FOUND = 404;
 	public static final int INTERNAL_SERVER_ERROR = 500;
+	/**
+	 * The connection was lost after the request was sent, which the
+	 * server may have processed or not.
+	 */
+	public static final int BAD_GATEWAY = 502;
+	public static final int SERVICE_UNAVAILABLE = 503;
+	public static final int GATEWAY_TIMEOUT = 504;
 	private static final long serialVersionUID = 8417722391193724582L;
 	
 	private int status;
@@ -58,7 +66,15 @@ public class ServiceException extends RuntimeException {
 		throw new ServiceException(BAD_REQUEST, message);
 	}
 	
+	public static ServiceException unavailable(String message) throws ServiceException {
+		return new ServiceException(SERVICE_UNAVAILABLE, message);
+	}
+	
+	public static ServiceException connectionLost(String message) throws ServiceException {
+		return new ServiceException(BAD_GATEWAY, message);
+	}
+	
 	public static ServiceException timeout(String message) throws ServiceException {
-		return new ServiceException(504, message);
+		return new ServiceException(GATEWAY_TIMEOUT, message);
 	}
 }
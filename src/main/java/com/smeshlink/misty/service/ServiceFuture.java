@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ * 
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of an asynchronous service call.
+ * <p>
+ * Waiting threads park on a latch rather than an object monitor,
+ * so that virtual threads waiting for a result do not pin their
+ * carrier threads.
+ * </p>
+ * 
+ * @author Longshine
+ *
+ */
+public class ServiceFuture implements Future {
+	private Object result;
+	private ServiceException exception;
+	private boolean done;
+	private boolean cancelled;
+	private List callbacks;
+	private final CountDownLatch doneLatch = new CountDownLatch(1);
+	
+	public ServiceFuture() {
+	}
+	
+	/**
+	 * Creates a future which notifies the given callback on completion.
+	 * @param callback the {@link IServiceCallback} to notify, or null
+	 */
+	public ServiceFuture(IServiceCallback callback) {
+		if (callback != null)
+			addCallback(callback);
+	}
+	
+	/**
+	 * Adds a callback. If this future is already done,
+	 * the callback is notified immediately in the calling thread.
+	 */
+	public void addCallback(IServiceCallback callback) {
+		synchronized (this) {
+			if (!done) {
+				if (callbacks == null)
+					callbacks = new ArrayList(1);
+				callbacks.add(callback);
+				return;
+			}
+		}
+		invoke(callback);
+	}
+	
+	/**
+	 * Completes this future with a result.
+	 * @return false if already done
+	 */
+	public boolean complete(Object result) {
+		synchronized (this) {
+			if (done)
+				return false;
+			this.result = result;
+			done = true;
+		}
+		doneLatch.countDown();
+		notifyCallbacks();
+		return true;
+	}
+	
+	/**
+	 * Completes this future with a failure.
+	 * @return false if already done
+	 */
+	public boolean fail(ServiceException e) {
+		synchronized (this) {
+			if (done)
+				return false;
+			this.exception = e;
+			done = true;
+		}
+		doneLatch.countDown();
+		notifyCallbacks();
+		return true;
+	}
+	
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (done)
+				return false;
+			exception = new ServiceException(ServiceException.INTERNAL_SERVER_ERROR, "Cancelled");
+			cancelled = true;
+			done = true;
+		}
+		doneLatch.countDown();
+		notifyCallbacks();
+		return true;
+	}
+	
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+	
+	public synchronized boolean isDone() {
+		return done;
+	}
+	
+	/**
+	 * Waits until this future is done.
+	 */
+	public void await() throws InterruptedException {
+		doneLatch.await();
+	}
+	
+	/**
+	 * Waits at most the given time until this future is done.
+	 * @param timeout the maximum time to wait in milliseconds
+	 * @return true if done
+	 */
+	public boolean await(long timeout) throws InterruptedException {
+		return doneLatch.await(timeout, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Gets the failure, or null if succeeded or not done yet.
+	 */
+	public synchronized ServiceException getException() {
+		return exception;
+	}
+	
+	/**
+	 * Waits for and returns the result.
+	 * @throws ServiceException if the call failed or the waiting thread was interrupted
+	 */
+	public Object getResult() throws ServiceException {
+		try {
+			await();
+		} catch (InterruptedException e) {
+			throw ServiceException.error(e);
+		}
+		synchronized (this) {
+			if (exception != null)
+				throw exception;
+			return result;
+		}
+	}
+	
+	public Object get() throws InterruptedException, ExecutionException {
+		await();
+		return getDone();
+	}
+	
+	public Object get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (!await(unit.toMillis(timeout)))
+			throw new TimeoutException();
+		return getDone();
+	}
+	
+	private synchronized Object getDone() throws ExecutionException {
+		if (cancelled)
+			throw new CancellationException();
+		if (exception != null)
+			throw new ExecutionException(exception);
+		return result;
+	}
+	
+	private void notifyCallbacks() {
+		List list;
+		synchronized (this) {
+			list = callbacks;
+			callbacks = null;
+		}
+		
+		if (list != null) {
+			for (Iterator it = list.iterator(); it.hasNext(); ) {
+				invoke((IServiceCallback) it.next());
+			}
+		}
+	}
+	
+	private void invoke(IServiceCallback callback) {
+		try {
+			if (exception == null)
+				callback.completed(result);
+			else
+				callback.failed(exception);
+		} catch (RuntimeException e) {
+			System.out.println("Callback failed " + e);
+		}
+	}
+}
@@ -53,6 +53,9 @@ import java.nio.charset.CoderResult;
  * @see IoBufferAllocator
  */
 abstract class AbstractIoBuffer extends IoBuffer {
+    /** The allocator this buffer was created by */
+    private final IoBufferAllocator allocator;
+
     /** Tells if a buffer has been created from an existing buffer */
     private final boolean derived;
 
@@ -81,7 +84,7 @@ abstract class AbstractIoBuffer extends IoBuffer {
      * @param initialCapacity The initial buffer capacity when created
      */
     protected AbstractIoBuffer(IoBufferAllocator allocator, int initialCapacity) {
-        setAllocator(allocator);
+        this.allocator = allocator;
         this.recapacityAllowed = true;
         this.derived = false;
         this.minimumCapacity = initialCapacity;
@@ -94,12 +97,20 @@ abstract class AbstractIoBuffer extends IoBuffer {
      * @param parent The buffer we get the properties from
      */
     protected AbstractIoBuffer(AbstractIoBuffer parent) {
-        setAllocator(parent.getAllocator());
+        this.allocator = parent.getAllocator();
         this.recapacityAllowed = false;
         this.derived = true;
         this.minimumCapacity = parent.minimumCapacity;
     }
 
+    /**
+     * Returns the allocator this buffer was created by, which also
+     * allocates its storage when it is expanded.
+     */
+    public final IoBufferAllocator getAllocator() {
+        return allocator;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,323 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * An {@link IoBufferAllocator} which recycles freed buffers.
+ * <p>
+ * Buffers are allocated in power-of-two size classes. A freed buffer goes
+ * to a cache of the freeing thread, or to a global pool shared by all
+ * threads once that cache is full, and is handed out again by the next
+ * allocation of its size class. Buffers freed by I/O threads are thus
+ * reused by the application threads encoding the next frames.
+ * Buffers larger than the maximum cached size are left to the garbage
+ * collector. The storage given up when a buffer expands is recycled too.
+ * </p>
+ * <p>
+ * Virtual threads of Java 21 and later have no thread caches, as each
+ * would live only as long as its short task; they recycle buffers
+ * through the global pool only.
+ * </p>
+ * <p>
+ * A buffer must not be used after {@link IoBuffer#free()} is called.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+public class CachedBufferAllocator implements IoBufferAllocator {
+	private static final int MIN_CACHED_BUFFER_SIZE = 64;
+	private static final int DEFAULT_MAX_CACHED_BUFFER_SIZE = 1 << 18;
+	private static final int DEFAULT_THREAD_CACHE_SIZE = 8;
+	private static final int DEFAULT_MAX_POOL_BYTES = 16 << 20;
+	private static CachedBufferAllocator defaultAllocator;
+	/** <code>Thread.isVirtual()</code>, or null before Java 21 */
+	private static final Method isVirtualMethod = getIsVirtualMethod();
+
+	private final int maxCachedBufferSize;
+	private final int threadCacheSize;
+	private final int maxPoolBytes;
+	private final int classCount;
+	private final ThreadLocal heapCaches = new ThreadLocal();
+	private final ThreadLocal directCaches = new ThreadLocal();
+	private final Stack[] heapPool;
+	private final Stack[] directPool;
+	private int poolBytes;
+
+	/**
+	 * Creates an allocator caching buffers up to 256 KB, 8 buffers of each
+	 * size class per thread, and up to 16 MB in the global pool.
+	 */
+	public CachedBufferAllocator() {
+		this(DEFAULT_MAX_CACHED_BUFFER_SIZE, DEFAULT_THREAD_CACHE_SIZE, DEFAULT_MAX_POOL_BYTES);
+	}
+
+	/**
+	 * Creates an allocator.
+	 * @param maxCachedBufferSize the capacity of the largest buffers to recycle
+	 * @param threadCacheSize the number of buffers of each size class cached per thread, or 0 for none
+	 * @param maxPoolBytes the total capacity of the buffers in the global pool
+	 */
+	public CachedBufferAllocator(int maxCachedBufferSize, int threadCacheSize, int maxPoolBytes) {
+		if (maxCachedBufferSize < MIN_CACHED_BUFFER_SIZE)
+			throw new IllegalArgumentException("maxCachedBufferSize: " + maxCachedBufferSize);
+		if (threadCacheSize < 0)
+			throw new IllegalArgumentException("threadCacheSize: " + threadCacheSize);
+		if (maxPoolBytes < 0)
+			throw new IllegalArgumentException("maxPoolBytes: " + maxPoolBytes);
+
+		this.maxCachedBufferSize = IoBuffer.normalizeCapacity(maxCachedBufferSize);
+		this.threadCacheSize = threadCacheSize;
+		this.maxPoolBytes = maxPoolBytes;
+		this.classCount = sizeClass(this.maxCachedBufferSize) + 1;
+		this.heapPool = newStacks(classCount, 0);
+		this.directPool = newStacks(classCount, 0);
+	}
+
+	/**
+	 * Gets the allocator shared by all channels which are not given one explicitly.
+	 */
+	public static synchronized CachedBufferAllocator getDefault() {
+		if (defaultAllocator == null)
+			defaultAllocator = new CachedBufferAllocator();
+		return defaultAllocator;
+	}
+
+	public int getMaxCachedBufferSize() {
+		return maxCachedBufferSize;
+	}
+
+	/**
+	 * Gets the total capacity of the buffers in the global pool.
+	 */
+	public synchronized int getPoolBytes() {
+		return poolBytes;
+	}
+
+	public IoBuffer allocate(int capacity, boolean direct) {
+		return new CachedBuffer(allocateNioBuffer(capacity, direct), true);
+	}
+
+	public ByteBuffer allocateNioBuffer(int capacity, boolean direct) {
+		if (capacity > maxCachedBufferSize)
+			return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+
+		int actual = Math.max(IoBuffer.normalizeCapacity(capacity), MIN_CACHED_BUFFER_SIZE);
+		int index = sizeClass(actual);
+
+		Stack[] cache = getThreadCache(direct);
+		ByteBuffer buf = cache == null ? null : cache[index].pop();
+		if (buf == null) {
+			Stack[] pool = direct ? directPool : heapPool;
+			synchronized (this) {
+				buf = pool[index].pop();
+				if (buf != null)
+					poolBytes -= buf.capacity();
+			}
+		}
+
+		if (buf == null) {
+			buf = direct ? ByteBuffer.allocateDirect(actual) : ByteBuffer.allocate(actual);
+		} else {
+			buf.clear();
+		}
+		buf.limit(capacity);
+		return buf;
+	}
+
+	public IoBuffer wrap(ByteBuffer nioBuffer) {
+		return new CachedBuffer(nioBuffer, false);
+	}
+
+	/**
+	 * Drops all buffers in the global pool.
+	 * Thread caches are dropped with their threads.
+	 */
+	public synchronized void dispose() {
+		for (int i = 0; i < classCount; i++) {
+			heapPool[i].clear();
+			directPool[i].clear();
+		}
+		poolBytes = 0;
+	}
+
+	private void recycle(ByteBuffer buf) {
+		int capacity = buf.capacity();
+		if (capacity > maxCachedBufferSize || capacity < MIN_CACHED_BUFFER_SIZE
+				|| (capacity & (capacity - 1)) != 0 || buf.isReadOnly())
+			return;
+
+		int index = sizeClass(capacity);
+		Stack[] cache = getThreadCache(buf.isDirect());
+		if (cache != null && cache[index].push(buf))
+			return;
+
+		Stack[] pool = buf.isDirect() ? directPool : heapPool;
+		synchronized (this) {
+			if (poolBytes + capacity <= maxPoolBytes && pool[index].push(buf))
+				poolBytes += capacity;
+		}
+	}
+
+	/**
+	 * Gets the cache of the current thread.
+	 * @return null if the thread has no cache
+	 */
+	private Stack[] getThreadCache(boolean direct) {
+		if (threadCacheSize == 0 || isVirtualThread())
+			return null;
+		ThreadLocal caches = direct ? directCaches : heapCaches;
+		Stack[] cache = (Stack[]) caches.get();
+		if (cache == null) {
+			cache = newStacks(classCount, threadCacheSize);
+			caches.set(cache);
+		}
+		return cache;
+	}
+
+	private static boolean isVirtualThread() {
+		if (isVirtualMethod == null)
+			return false;
+		try {
+			return ((Boolean) isVirtualMethod.invoke(Thread.currentThread(), null)).booleanValue();
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private static Method getIsVirtualMethod() {
+		try {
+			return Thread.class.getMethod("isVirtual", null);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static Stack[] newStacks(int count, int capacity) {
+		Stack[] stacks = new Stack[count];
+		for (int i = 0; i < count; i++)
+			stacks[i] = new Stack(capacity);
+		return stacks;
+	}
+
+	/**
+	 * Gets the index of the size class of a power-of-two capacity.
+	 */
+	private static int sizeClass(int capacity) {
+		int index = 0;
+		while ((capacity >>>= 1) != 0)
+			index++;
+		return index;
+	}
+
+	/**
+	 * A stack of buffers with a fixed capacity, or unbounded if 0.
+	 */
+	private static class Stack {
+		private final int capacity;
+		private ByteBuffer[] buffers;
+		private int size;
+
+		public Stack(int capacity) {
+			this.capacity = capacity;
+			this.buffers = new ByteBuffer[capacity > 0 ? capacity : 4];
+		}
+
+		public ByteBuffer pop() {
+			if (size == 0)
+				return null;
+			ByteBuffer buf = buffers[--size];
+			buffers[size] = null;
+			return buf;
+		}
+
+		public boolean push(ByteBuffer buf) {
+			if (size == buffers.length) {
+				if (capacity > 0)
+					return false;
+				ByteBuffer[] tmp = new ByteBuffer[size * 2];
+				System.arraycopy(buffers, 0, tmp, 0, size);
+				buffers = tmp;
+			}
+			buffers[size++] = buf;
+			return true;
+		}
+
+		public void clear() {
+			while (size > 0)
+				buffers[--size] = null;
+		}
+	}
+
+	private class CachedBuffer extends AbstractIoBuffer {
+		private ByteBuffer buf;
+		private boolean owned;
+
+		protected CachedBuffer(ByteBuffer buf, boolean owned) {
+			super(CachedBufferAllocator.this, buf.capacity());
+			this.buf = buf;
+			this.owned = owned;
+			buf.order(ByteOrder.BIG_ENDIAN);
+		}
+
+		protected CachedBuffer(CachedBuffer parent, ByteBuffer buf) {
+			super(parent);
+			this.buf = buf;
+		}
+
+		public ByteBuffer buf() {
+			if (buf == null)
+				throw new IllegalStateException("Buffer already freed");
+			return buf;
+		}
+
+		protected void buf(ByteBuffer buf) {
+			ByteBuffer oldBuf = this.buf;
+			this.buf = buf;
+			free(oldBuf);
+			owned = true;
+		}
+
+		protected IoBuffer duplicate0() {
+			return new CachedBuffer(this, buf().duplicate());
+		}
+
+		protected IoBuffer slice0() {
+			return new CachedBuffer(this, buf().slice());
+		}
+
+		protected IoBuffer asReadOnlyBuffer0() {
+			return new CachedBuffer(this, buf().asReadOnlyBuffer());
+		}
+
+		public byte[] array() {
+			return buf().array();
+		}
+
+		public int arrayOffset() {
+			return buf().arrayOffset();
+		}
+
+		public boolean hasArray() {
+			return buf().hasArray();
+		}
+
+		public void free() {
+			free(buf);
+			buf = null;
+		}
+
+		private void free(ByteBuffer oldBuf) {
+			if (oldBuf != null && owned && !isDerived())
+				recycle(oldBuf);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+/**
+ * Tracks consecutive connection failures to an endpoint.
+ * <p>
+ * After the given number of failures in a row the circuit opens, and
+ * callers should be rejected at once instead of waiting for a connection.
+ * When the retry delay elapses the circuit becomes half-open and lets a
+ * trial connection through. A success closes the circuit, while another
+ * failure opens it again.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+class CircuitBreaker {
+	public static final int CLOSED = 0;
+	public static final int OPEN = 1;
+	public static final int HALF_OPEN = 2;
+
+	private int failureThreshold = 3;
+	private int failures;
+	private int state = CLOSED;
+	private long openUntil;
+
+	public synchronized int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	/**
+	 * Sets the number of consecutive failures which opens the circuit.
+	 * 0 disables the circuit breaker.
+	 */
+	public synchronized void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold < 0 ? 0 : failureThreshold;
+		if (failureThreshold == 0)
+			recordSuccess();
+	}
+
+	public synchronized int getState() {
+		if (state == OPEN && System.currentTimeMillis() >= openUntil)
+			state = HALF_OPEN;
+		return state;
+	}
+
+	public boolean isOpen() {
+		return getState() == OPEN;
+	}
+
+	/**
+	 * Records a failure.
+	 * @param retryDelay the time in milliseconds to keep the circuit open if it opens
+	 */
+	public synchronized void recordFailure(long retryDelay) {
+		failures++;
+		if (failureThreshold > 0 && (getState() == HALF_OPEN || failures >= failureThreshold)) {
+			state = OPEN;
+			openUntil = System.currentTimeMillis() + retryDelay;
+		}
+	}
+
+	public synchronized void recordSuccess() {
+		failures = 0;
+		state = CLOSED;
+	}
+}
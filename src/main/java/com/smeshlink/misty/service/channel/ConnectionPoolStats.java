@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+/**
+ * A snapshot of the statistics of a {@link TcpChannel}'s connection pool.
+ *
+ * @author Longshine
+ *
+ */
+public class ConnectionPoolStats {
+	private final int size;
+	private final int connected;
+	private final int inFlight;
+	private final int waiting;
+	private final long created;
+	private final long closed;
+	private final long evicted;
+	private final long acquired;
+
+	ConnectionPoolStats(int size, int connected, int inFlight, int waiting,
+			long created, long closed, long evicted, long acquired) {
+		this.size = size;
+		this.connected = connected;
+		this.inFlight = inFlight;
+		this.waiting = waiting;
+		this.created = created;
+		this.closed = closed;
+		this.evicted = evicted;
+		this.acquired = acquired;
+	}
+
+	/**
+	 * Gets the number of connections, including those still connecting.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of connections ready for requests.
+	 */
+	public int getConnected() {
+		return connected;
+	}
+
+	/**
+	 * Gets the number of requests waiting for responses on all connections.
+	 */
+	public int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Gets the number of callers waiting for a connection.
+	 */
+	public int getWaiting() {
+		return waiting;
+	}
+
+	/**
+	 * Gets the number of connections opened since the pool was created.
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * Gets the number of connections closed for failures or by the pool.
+	 */
+	public long getClosed() {
+		return closed;
+	}
+
+	/**
+	 * Gets the number of connections closed for being idle too long.
+	 */
+	public long getEvicted() {
+		return evicted;
+	}
+
+	/**
+	 * Gets the number of times a connection was handed out.
+	 */
+	public long getAcquired() {
+		return acquired;
+	}
+
+	public String toString() {
+		return "size=" + size + ", connected=" + connected + ", inFlight=" + inFlight
+				+ ", waiting=" + waiting + ", created=" + created + ", closed=" + closed
+				+ ", evicted=" + evicted + ", acquired=" + acquired;
+	}
+}
@@ -0,0 +1,439 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.smeshlink.misty.service.ServiceException;
+
+/**
+ * Keeps the connections of a {@link TcpChannel}.
+ * <p>
+ * Requests go to the connected connector with the fewest requests in
+ * flight. Another connection is opened in the background whenever all
+ * connectors are busy, up to the maximum size. A maintenance task closes
+ * connections idle longer than the idle timeout, keeping the minimum size,
+ * probes idle connections if validation is enabled, and reopens the
+ * minimum number of connections.
+ * </p>
+ * <p>
+ * Failed connection attempts are retried with an {@link ExponentialBackoff}.
+ * Once a {@link CircuitBreaker} sees too many failures in a row, callers
+ * are rejected immediately until the next attempt is due. Callers never
+ * wait longer than the acquire timeout for a connection. They wait on
+ * a lock condition rather than the monitor of the pool, so that virtual
+ * threads do not pin their carriers while waiting.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+class ConnectorPool {
+	static final int MAINTENANCE_INTERVAL = 5000;
+
+	private final TcpChannel channel;
+	private final Timer timer;
+	private final List connectors = new ArrayList();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private volatile int minSize = 1;
+	private volatile int maxSize = 1;
+	private volatile int idleTimeout = 60000;
+	private volatile int validationInterval = 0;
+	private volatile int acquireTimeout = 10000;
+	private volatile int maxInFlightPerConnection;
+	private final ExponentialBackoff backoff = new ExponentialBackoff();
+	private final CircuitBreaker breaker = new CircuitBreaker();
+	private long nextAttempt;
+	private TimerTask maintenanceTask;
+	private boolean closed;
+	private volatile int waiting;
+	private long created;
+	private long closedCount;
+	private long evicted;
+	private long acquired;
+
+	public ConnectorPool(TcpChannel channel, Timer timer) {
+		this.channel = channel;
+		this.timer = timer;
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public void setMinSize(int minSize) {
+		lock.lock();
+		try {
+			if (minSize < 0)
+				throw new IllegalArgumentException("minSize: " + minSize);
+			this.minSize = minSize;
+			if (maxSize < minSize)
+				maxSize = minSize;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(int maxSize) {
+		lock.lock();
+		try {
+			if (maxSize < 1)
+				throw new IllegalArgumentException("maxSize: " + maxSize);
+			this.maxSize = maxSize;
+			if (minSize > maxSize)
+				minSize = maxSize;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout < 0 ? 0 : idleTimeout;
+	}
+
+	public int getValidationInterval() {
+		return validationInterval;
+	}
+
+	public void setValidationInterval(int validationInterval) {
+		this.validationInterval = validationInterval < 0 ? 0 : validationInterval;
+	}
+
+	public ExponentialBackoff getBackoff() {
+		return backoff;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	public int getMaxInFlightPerConnection() {
+		return maxInFlightPerConnection;
+	}
+
+	public void setMaxInFlightPerConnection(int maxInFlightPerConnection) {
+		lock.lock();
+		try {
+			this.maxInFlightPerConnection = maxInFlightPerConnection < 0 ? 0 : maxInFlightPerConnection;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getAcquireTimeout() {
+		return acquireTimeout;
+	}
+
+	public void setAcquireTimeout(int acquireTimeout) {
+		this.acquireTimeout = acquireTimeout < 0 ? 0 : acquireTimeout;
+	}
+
+	/**
+	 * Opens connections up to the minimum size without waiting for them.
+	 */
+	public void warmUp() {
+		lock.lock();
+		try {
+			checkClosed();
+			startMaintenance();
+			while (connectors.size() < minSize)
+				open();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the connected connector with the fewest requests in flight,
+	 * waiting until one is connected and below the per-connection limit.
+	 * The caller must {@link TcpChannel.Connector#release()} the connector
+	 * when its request is done.
+	 * @throws ServiceException with status 503 if the circuit is open,
+	 * or 504 if the acquire timeout elapses
+	 */
+	public TcpChannel.Connector acquire() throws InterruptedException {
+		lock.lock();
+		try {
+			startMaintenance();
+			long deadline = acquireTimeout > 0 ? System.currentTimeMillis() + acquireTimeout : 0;
+
+			while (true) {
+				checkClosed();
+
+				TcpChannel.Connector best = null;
+				int connecting = 0;
+				for (Iterator it = connectors.iterator(); it.hasNext(); ) {
+					TcpChannel.Connector c = (TcpChannel.Connector) it.next();
+					if (!c.isConnected())
+						connecting++;
+					else if (c.isOpen() && (maxInFlightPerConnection == 0 || c.getInFlight() < maxInFlightPerConnection)
+							&& (best == null || c.getInFlight() < best.getInFlight()))
+						best = c;
+				}
+
+				if (best != null) {
+					if (best.getInFlight() > 0 && connecting == 0 && connectors.size() < maxSize
+							&& System.currentTimeMillis() >= nextAttempt)
+						// all busy, grow in background unless backing off
+						open();
+					best.reserve();
+					acquired++;
+					return best;
+				}
+
+				if (connecting == 0 && breaker.isOpen())
+					throw ServiceException.unavailable("Connection to " + channel.getAddress()
+							+ " failed, retrying in " + (nextAttempt - System.currentTimeMillis()) + " ms");
+
+				long now = System.currentTimeMillis();
+				long wait = 0;
+				if (connecting == 0 && connectors.size() < maxSize) {
+					wait = nextAttempt - now;
+					if (wait <= 0) {
+						open();
+						wait = 0;
+					}
+				}
+
+				if (deadline > 0) {
+					long remaining = deadline - now;
+					if (remaining <= 0)
+						throw ServiceException.timeout("No connection available in " + acquireTimeout + " ms");
+					if (wait == 0 || remaining < wait)
+						wait = remaining;
+				}
+
+				waiting++;
+				try {
+					if (wait == 0)
+						changed.await();
+					else
+						changed.await(wait, TimeUnit.MILLISECONDS);
+				} finally {
+					waiting--;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called when a request is done, waking up a caller waiting
+	 * for a connection below the per-connection limit.
+	 */
+	public void released() {
+		if (waiting > 0 && maxInFlightPerConnection > 0) {
+			lock.lock();
+			try {
+				changed.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Called when a connector becomes ready. Resets the backoff and
+	 * wakes up the callers waiting for a connection.
+	 */
+	public void connected(TcpChannel.Connector c) {
+		lock.lock();
+		try {
+			backoff.reset();
+			breaker.recordSuccess();
+			nextAttempt = 0;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes and removes a connector.
+	 */
+	public void remove(TcpChannel.Connector c, Exception ex) {
+		lock.lock();
+		try {
+			if (!connectors.remove(c))
+				return;
+			closedCount++;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		closeConnector(c, ex);
+	}
+
+	private static void closeConnector(TcpChannel.Connector c, Exception ex) {
+		System.out.println("Removing connector " + ex.getMessage());
+		try {
+			c.close(ex);
+		} catch (IOException e) {
+			System.out.println("Removing connector " + e);
+		}
+	}
+
+	/**
+	 * Removes a connector which failed to connect. No new connection
+	 * is attempted until the backoff delay elapses.
+	 */
+	public void connectFailed(TcpChannel.Connector c, Exception ex) {
+		lock.lock();
+		try {
+			long delay = backoff.nextDelay();
+			nextAttempt = System.currentTimeMillis() + delay;
+			breaker.recordFailure(delay);
+		} finally {
+			lock.unlock();
+		}
+		remove(c, ex);
+	}
+
+	/**
+	 * Closes all connectors. The pool cannot be used afterwards.
+	 */
+	public void close() {
+		List list;
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			if (maintenanceTask != null)
+				maintenanceTask.cancel();
+			list = new ArrayList(connectors);
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		for (Iterator it = list.iterator(); it.hasNext(); ) {
+			remove((TcpChannel.Connector) it.next(), new IOException("Channel closed"));
+		}
+	}
+
+	public ConnectionPoolStats getStats() {
+		lock.lock();
+		try {
+			int connected = 0, inFlight = 0;
+			for (Iterator it = connectors.iterator(); it.hasNext(); ) {
+				TcpChannel.Connector c = (TcpChannel.Connector) it.next();
+				if (c.isConnected())
+					connected++;
+				inFlight += c.getInFlight();
+			}
+			return new ConnectionPoolStats(connectors.size(), connected, inFlight, waiting,
+					created, closedCount, evicted, acquired);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void open() {
+		TcpChannel.Connector c = channel.newConnector(this);
+		connectors.add(c);
+		created++;
+		c.start();
+	}
+
+	private void checkClosed() {
+		if (closed)
+			throw new ServiceException(ServiceException.INTERNAL_SERVER_ERROR, "Channel closed");
+	}
+
+	private void startMaintenance() {
+		if (maintenanceTask != null || closed)
+			return;
+		maintenanceTask = new TimerTask() {
+			public void run() {
+				maintain();
+			}
+		};
+		timer.schedule(maintenanceTask, MAINTENANCE_INTERVAL, MAINTENANCE_INTERVAL);
+	}
+
+	/**
+	 * Evicts idle connections, validates the rest and opens connections
+	 * up to the minimum size. Evicted connectors leave the pool before
+	 * the lock is released so that no caller can acquire them while
+	 * they are being closed.
+	 */
+	void maintain() {
+		List idle = new ArrayList();
+		List dead = new ArrayList();
+		List probes = new ArrayList();
+		long now = System.currentTimeMillis();
+
+		lock.lock();
+		try {
+			if (closed)
+				return;
+
+			int remaining = connectors.size();
+			for (Iterator it = connectors.iterator(); it.hasNext(); ) {
+				TcpChannel.Connector c = (TcpChannel.Connector) it.next();
+				if (!c.isConnected())
+					continue;
+
+				long idleTime = now - c.getLastActive();
+				if (!c.isOpen()) {
+					it.remove();
+					dead.add(c);
+					remaining--;
+				} else if (idleTimeout > 0 && idleTime >= idleTimeout
+						&& c.getInFlight() == 0 && remaining > minSize) {
+					it.remove();
+					idle.add(c);
+					remaining--;
+				} else if (validationInterval > 0 && idleTime >= validationInterval) {
+					probes.add(c);
+				}
+			}
+
+			closedCount += dead.size() + idle.size();
+			evicted += idle.size();
+			if (!dead.isEmpty() || !idle.isEmpty())
+				changed.signalAll();
+			while (remaining < minSize && now >= nextAttempt) {
+				open();
+				remaining++;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		for (Iterator it = dead.iterator(); it.hasNext(); ) {
+			closeConnector((TcpChannel.Connector) it.next(), new IOException("Connection lost"));
+		}
+		for (Iterator it = idle.iterator(); it.hasNext(); ) {
+			closeConnector((TcpChannel.Connector) it.next(), new IOException("Idle timeout"));
+		}
+		for (Iterator it = probes.iterator(); it.hasNext(); ) {
+			((TcpChannel.Connector) it.next()).validate();
+		}
+	}
+}
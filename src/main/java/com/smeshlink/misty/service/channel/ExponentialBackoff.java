@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.util.Random;
+
+/**
+ * Computes retry delays which double with each consecutive failure up
+ * to a maximum. A random part of each delay is taken off so that many
+ * clients failing at once do not retry in lockstep.
+ *
+ * @author Longshine
+ *
+ */
+class ExponentialBackoff {
+	private final Random random = new Random();
+	private int initialDelay = 1000;
+	private int maxDelay = 60000;
+	private double jitter = 0.5;
+	private int attempts;
+
+	public synchronized int getInitialDelay() {
+		return initialDelay;
+	}
+
+	public synchronized void setInitialDelay(int initialDelay) {
+		this.initialDelay = initialDelay < 0 ? 0 : initialDelay;
+	}
+
+	public synchronized int getMaxDelay() {
+		return maxDelay;
+	}
+
+	public synchronized void setMaxDelay(int maxDelay) {
+		this.maxDelay = maxDelay < 0 ? 0 : maxDelay;
+	}
+
+	/**
+	 * Sets the fraction of a delay which may be randomly taken off,
+	 * between 0 and 1.
+	 */
+	public synchronized void setJitter(double jitter) {
+		if (jitter < 0 || jitter > 1)
+			throw new IllegalArgumentException("jitter: " + jitter);
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Records a failure and returns the delay before the next attempt.
+	 */
+	public synchronized long nextDelay() {
+		long delay = initialDelay;
+		for (int i = 0; i < attempts && delay < maxDelay; i++)
+			delay <<= 1;
+		if (delay > maxDelay)
+			delay = maxDelay;
+		attempts++;
+		return delay - (long) (delay * jitter * random.nextDouble());
+	}
+
+	/**
+	 * Starts over from the initial delay after a success.
+	 */
+	public synchronized void reset() {
+		attempts = 0;
+	}
+}
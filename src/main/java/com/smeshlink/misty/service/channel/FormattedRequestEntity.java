@@ -0,0 +1,303 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.httpclient.ChunkedOutputStream;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.json.JSONObject;
+
+import com.smeshlink.misty.entity.Entry;
+import com.smeshlink.misty.entity.Feed;
+import com.smeshlink.misty.formatter.IFeedFormatter;
+import com.smeshlink.misty.formatter.JSONFormatter;
+import com.smeshlink.misty.formatter.XmlFormatter;
+
+/**
+ * Writes the body of a request with an {@link IFeedFormatter} straight
+ * into the connection.
+ * <p>
+ * The length is not known in advance, so the body is sent with chunked
+ * transfer encoding and never held in memory as a whole. Feeds, collections
+ * of feeds and entries are formatted in the format of the request. A
+ * collection is only iterated, so its feeds may be produced while they are
+ * written. Other bodies, such as commands, are written as JSON values, or
+ * as text in XML requests. The body is formatted again if the request is
+ * retried.
+ * </p>
+ * <p>
+ * With a compression threshold, the body is sent by a {@link Method}, which
+ * formats it once, holding back up to the threshold before the request
+ * head is written. A body no longer than that is sent as it is, with its
+ * length. A longer one is compressed with gzip from where the threshold is
+ * crossed, continuing the same pass, and the request gets a
+ * <code>Content-Encoding: gzip</code> header.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+class FormattedRequestEntity implements RequestEntity {
+	private final Object body;
+	private final String format;
+	private final String contentType;
+	private final int compressionThreshold;
+	private long contentLength = -1;
+
+	/**
+	 * @param body the body of the request
+	 * @param format the format of the request, <code>json</code> or <code>xml</code>
+	 * @param contentType the content type of the format
+	 * @param compressionThreshold the length in bytes above which the body
+	 *        is compressed, or -1 to never compress it
+	 */
+	public FormattedRequestEntity(Object body, String format, String contentType, int compressionThreshold) {
+		this.body = body;
+		this.format = format;
+		this.contentType = contentType;
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	/**
+	 * Checks if the body may be compressed, in which case it must be
+	 * sent by a {@link Method}.
+	 */
+	public boolean isCompressible() {
+		return compressionThreshold >= 0;
+	}
+
+	/**
+	 * Writes the body uncompressed.
+	 */
+	public void writeRequest(OutputStream out) throws IOException {
+		format(out);
+	}
+
+	/**
+	 * Formats the body once, starting the request when the length
+	 * is known or the compression threshold is crossed.
+	 */
+	void send(Head head) throws IOException {
+		ThresholdOutputStream out = new ThresholdOutputStream(head);
+		format(out);
+		out.finish();
+	}
+
+	private void format(OutputStream out) throws IOException {
+		try {
+			if (body instanceof Feed) {
+				getFormatter().format(out, (Feed) body);
+			} else if (body instanceof List) {
+				getFormatter().format(out, (List) body);
+			} else if (body instanceof Collection) {
+				getFormatter().format(out, new CollectionList((Collection) body));
+			} else if (body instanceof Entry) {
+				getFormatter().format(out, (Entry) body);
+			} else if (isXml()) {
+				out.write(body.toString().getBytes("utf-8"));
+			} else {
+				out.write(JSONObject.valueToString(body).getBytes("utf-8"));
+			}
+		} catch (RuntimeException e) {
+			// the formatters wrap I/O errors
+			for (Throwable t = e.getCause(); t != null; t = t.getCause()) {
+				if (t instanceof IOException)
+					throw (IOException) t;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the length of a short body once it is formatted,
+	 * or -1 if it is not known.
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	public String getContentType() {
+		return contentType + "; charset=utf-8";
+	}
+
+	private boolean isXml() {
+		return "xml".equalsIgnoreCase(format);
+	}
+
+	private IFeedFormatter getFormatter() {
+		return isXml() ? (IFeedFormatter) new XmlFormatter() : new JSONFormatter();
+	}
+
+	/**
+	 * Writes the head of a request once the body is ready to follow.
+	 */
+	interface Head {
+		/**
+		 * Writes the head of the request.
+		 * @param gzip whether the body is compressed
+		 * @return the stream of the body, chunked if the length is not known
+		 */
+		OutputStream start(boolean gzip) throws IOException;
+	}
+
+	/**
+	 * Holds back the bytes written up to the compression threshold,
+	 * then starts the request and compresses the rest.
+	 */
+	private class ThresholdOutputStream extends OutputStream {
+		private final Head head;
+		private ByteArrayOutputStream buffer;
+		private GZIPOutputStream out;
+
+		public ThresholdOutputStream(Head head) {
+			this.head = head;
+			buffer = new ByteArrayOutputStream(Math.min(compressionThreshold, 1024));
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (out == null) {
+				if (buffer.size() + len <= compressionThreshold) {
+					buffer.write(b, off, len);
+					return;
+				}
+				contentLength = -1;
+				out = new GZIPOutputStream(head.start(true), TcpChannel.READ_CHUNK_SIZE) {
+					public void close() {
+						// leaves the connection open
+						def.end();
+					}
+				};
+				buffer.writeTo(out);
+				buffer = null;
+			}
+			out.write(b, off, len);
+		}
+
+		public void finish() throws IOException {
+			if (out == null) {
+				contentLength = buffer.size();
+				buffer.writeTo(head.start(false));
+			} else {
+				try {
+					out.finish();
+				} finally {
+					out.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A <code>POST</code> or <code>PUT</code> request which sends a
+	 * compressible {@link FormattedRequestEntity} in a single pass.
+	 */
+	static class Method extends EntityEnclosingMethod {
+		private final String name;
+
+		public Method(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		protected void writeRequest(final HttpState state, final HttpConnection conn)
+				throws IOException, HttpException {
+			RequestEntity entity = getRequestEntity();
+			if (!(entity instanceof FormattedRequestEntity)
+					|| !((FormattedRequestEntity) entity).isCompressible()) {
+				super.writeRequest(state, conn);
+				return;
+			}
+
+			final ChunkedOutputStream[] chunked = new ChunkedOutputStream[1];
+			((FormattedRequestEntity) entity).send(new Head() {
+				public OutputStream start(boolean gzip) throws IOException {
+					// set again from the entity when a retry starts
+					removeRequestHeader("Content-Length");
+					removeRequestHeader("Transfer-Encoding");
+					if (gzip)
+						setRequestHeader("Content-Encoding", "gzip");
+					else
+						removeRequestHeader("Content-Encoding");
+					writeRequestLine(state, conn);
+					writeRequestHeaders(state, conn);
+					conn.writeLine();
+
+					OutputStream out = conn.getRequestOutputStream();
+					if (!gzip)
+						return out;
+					chunked[0] = new ChunkedOutputStream(out);
+					return chunked[0];
+				}
+			});
+			if (chunked[0] != null)
+				chunked[0].finish();
+			conn.flushRequestOutputStream();
+		}
+	}
+	
+	/**
+	 * Passes a collection to the formatters without copying it. Elements
+	 * are got by index from an iterator kept between calls, so reading
+	 * them in order costs no more than iterating the collection.
+	 */
+	private static class CollectionList extends AbstractList {
+		private final Collection collection;
+		private Iterator cursor;
+		/** the index of the element the cursor returns next */
+		private int position;
+		
+		public CollectionList(Collection collection) {
+			this.collection = collection;
+		}
+		
+		public Iterator iterator() {
+			return collection.iterator();
+		}
+		
+		public int size() {
+			return collection.size();
+		}
+		
+		public Object get(int index) {
+			if (index < 0 || index >= collection.size())
+				throw new IndexOutOfBoundsException("Index: " + index);
+			if (cursor == null || index < position) {
+				cursor = collection.iterator();
+				position = 0;
+			}
+			while (position < index) {
+				cursor.next();
+				position++;
+			}
+			position++;
+			return cursor.next();
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses the length-prefixed frames of a connection
+ * with DEFLATE.
+ * <p>
+ * Each direction of a connection is one DEFLATE stream, preset with a
+ * dictionary of the JSON common to Misty requests and responses, and
+ * flushed at the end of every frame. Later frames thus refer back to the
+ * keys, headers and resources of earlier ones, so that even small frames
+ * shrink to a fraction of their size. As in the WebSocket
+ * <code>permessage-deflate</code> extension, the empty block ending each
+ * flush is not sent.
+ * </p>
+ * <p>
+ * A compressed frame has the highest bit of its length prefix set, so
+ * that plain and compressed frames can be mixed. Since the streams carry
+ * state from frame to frame, frames must be compressed in the order they
+ * are sent, and decompressed in the order they are received.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+class FrameCompressor {
+	/**
+	 * The flag set in the length prefix of compressed frames.
+	 */
+	public static final int FLAG_COMPRESSED = 0x80000000;
+	/**
+	 * The first byte of compressed frames.
+	 */
+	public static final byte FLAG_BYTE = (byte) 0x80;
+	/**
+	 * The dictionary preset in both directions. The most frequent
+	 * strings come last, where they are cheapest to refer to.
+	 */
+	static final byte[] DICTIONARY = toBytes("{\"name\":\"\",\"title\":\"\",\"description\":\"\",\"website\":\"\","
+			+ "\"email\":\"\",\"created\":\"\",\"updated\":\"\",\"keyType\":\"\",\"valueType\":\"\",\"tags\":[],"
+			+ "\"location\":{\"domain\":\"physical\",\"disposition\":\"fixed\",\"exposure\":\"indoor\",\"lat\":,\"lng\":,\"ele\":},"
+			+ "\"unit\":{\"label\":\"\",\"symbol\":\"\",\"type\":\"\"},\"children\":[],\"current\":,"
+			+ "{\"totalResults\":,\"startIndex\":,\"itemsPerPage\":,\"results\":[]}"
+			+ "{\"status\":200,\"message\":\"\",\"X-ApiKey\":\"\",\"X-Framing\":\"length-prefixed\","
+			+ "{\"method\":\"OPTIONS\"{\"method\":\"DELETE\"{\"method\":\"POST\"{\"method\":\"GET\""
+			+ "\"data\":[{\"at\":\"2014-01-01T00:00:00.000+08:00\",\"value\":},{\"at\":\"2014-01-01T00:00:00.000+08:00\",\"value\":}]"
+			+ "\"body\":{\"status\":200,\"resource\":\"/feeds/\",\"token\":\"\"}"
+			+ "{\"method\":\"PUT\",\"resource\":\"/feeds/\",\"headers\":{\"Content-Type\":\"application/json\","
+			+ "\"User-Agent\":\"Misty-Java-Lib/1.0\"},\"token\":\"");
+	/**
+	 * The empty stored block ending a flush, stripped from compressed frames.
+	 */
+	private static final byte[] FLUSH_TAIL = { 0, 0, (byte) 0xFF, (byte) 0xFF };
+
+	private final IoBufferAllocator allocator;
+	private final int level;
+	private final Object deflaterLock = new Object();
+	private final Object inflaterLock = new Object();
+	private Deflater deflater;
+	private Inflater inflater;
+	private byte[] inflaterInput = new byte[TcpChannel.FRAME_BUFFER_SIZE];
+	private byte[] inflaterOutput = new byte[TcpChannel.FRAME_BUFFER_SIZE];
+	private volatile boolean ended;
+
+	/**
+	 * Creates a compressor.
+	 * @param allocator the allocator of compressed frames
+	 * @param level the compression level, from 0 to 9, or -1 for the default
+	 */
+	public FrameCompressor(IoBufferAllocator allocator, int level) {
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("level: " + level);
+		this.allocator = allocator;
+		this.level = level;
+	}
+
+	/**
+	 * Compresses a frame ready for writing, with its length prefix in the
+	 * first {@link LengthPrefixedFrameDecoder#PREFIX_LENGTH} bytes.
+	 * The frame is freed.
+	 * @return the compressed frame ready for writing
+	 * @throws IOException if the compressor is closed
+	 */
+	public IoBuffer compress(IoBuffer frame) throws IOException {
+		synchronized (deflaterLock) {
+			if (ended)
+				throw new IOException("Connection closed");
+			if (deflater == null) {
+				deflater = new Deflater(level, true);
+				deflater.setDictionary(DICTIONARY);
+			}
+
+			int offset = frame.position() + LengthPrefixedFrameDecoder.PREFIX_LENGTH;
+			int length = frame.limit() - offset;
+			deflater.setInput(frame.array(), frame.arrayOffset() + offset, length);
+
+			IoBuffer out = allocator.allocate(length / 2 + 64, false);
+			out.position(LengthPrefixedFrameDecoder.PREFIX_LENGTH);
+			while (true) {
+				int n = deflater.deflate(out.array(), out.arrayOffset() + out.position(),
+						out.remaining(), Deflater.SYNC_FLUSH);
+				out.skip(n);
+				if (out.hasRemaining())
+					break;
+				out.expand(out.capacity());
+			}
+			frame.free();
+
+			out.flip();
+			// drop the empty block ending the flush
+			out.limit(out.limit() - FLUSH_TAIL.length);
+			int compressed = out.limit() - LengthPrefixedFrameDecoder.PREFIX_LENGTH;
+			if (compressed > LengthPrefixedFrameDecoder.MAX_FRAME_LENGTH)
+				throw new BufferDataException("Frame length exceeds " + LengthPrefixedFrameDecoder.MAX_FRAME_LENGTH);
+			out.putInt(0, FLAG_COMPRESSED | compressed);
+			return out;
+		}
+	}
+
+	/**
+	 * Decompresses the data of a compressed frame, without its length prefix.
+	 * @param maxLength the maximum length of the decompressed frame
+	 * @return the text of the frame
+	 * @throws IOException if the data is corrupt or the compressor is closed
+	 * @throws BufferDataException if the frame is longer than <code>maxLength</code>
+	 */
+	public String decompress(byte[] data, int offset, int length, int maxLength) throws IOException {
+		synchronized (inflaterLock) {
+			if (ended)
+				throw new IOException("Connection closed");
+			if (inflater == null) {
+				inflater = new Inflater(true);
+				inflater.setDictionary(DICTIONARY);
+			}
+
+			int inputLength = length + FLUSH_TAIL.length;
+			if (inflaterInput.length < inputLength)
+				inflaterInput = new byte[IoBuffer.normalizeCapacity(inputLength)];
+			System.arraycopy(data, offset, inflaterInput, 0, length);
+			System.arraycopy(FLUSH_TAIL, 0, inflaterInput, length, FLUSH_TAIL.length);
+			inflater.setInput(inflaterInput, 0, inputLength);
+
+			int size = 0;
+			try {
+				while (true) {
+					if (size == inflaterOutput.length) {
+						if (size > maxLength)
+							throw new BufferDataException("Frame length exceeds " + maxLength);
+						byte[] tmp = new byte[size * 2];
+						System.arraycopy(inflaterOutput, 0, tmp, 0, size);
+						inflaterOutput = tmp;
+					}
+					int n = inflater.inflate(inflaterOutput, size, inflaterOutput.length - size);
+					size += n;
+					if (n == 0 && size < inflaterOutput.length)
+						break;
+				}
+			} catch (DataFormatException ex) {
+				throw new IOException("Corrupt compressed frame: " + ex.getMessage());
+			}
+
+			if (size > maxLength)
+				throw new BufferDataException("Frame length exceeds " + maxLength);
+			return new String(inflaterOutput, 0, size, "utf-8");
+		}
+	}
+
+	/**
+	 * Releases the native resources of both streams.
+	 * Frames can no longer be compressed or decompressed.
+	 */
+	public void end() {
+		ended = true;
+		synchronized (deflaterLock) {
+			if (deflater != null)
+				deflater.end();
+		}
+		synchronized (inflaterLock) {
+			if (inflater != null)
+				inflater.end();
+		}
+	}
+
+	private static byte[] toBytes(String s) {
+		try {
+			return s.getBytes("utf-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex.getMessage());
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A timer for large numbers of short one-shot timeouts, such as those of
+ * requests in flight.
+ * <p>
+ * Timeouts are hashed by their deadlines into the buckets of a wheel,
+ * which a worker thread advances one bucket per tick, expiring the
+ * timeouts due. Scheduling and cancelling are O(1), at the cost of
+ * firing up to one tick late. Cancelled timeouts are dropped when
+ * their bucket is next visited.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+class HashedWheelTimer implements Runnable {
+	private final String name;
+	private final long tickDuration;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final ConcurrentLinkedQueue added = new ConcurrentLinkedQueue();
+	private volatile long startTime;
+	private Thread thread;
+	private volatile boolean stopped;
+
+	/**
+	 * Creates a timer.
+	 * @param name the name of the worker thread
+	 * @param tickDuration the duration of a tick in milliseconds
+	 * @param ticksPerWheel the number of buckets, rounded up to a power of two
+	 */
+	public HashedWheelTimer(String name, long tickDuration, int ticksPerWheel) {
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("tickDuration: " + tickDuration);
+		if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 30)
+			throw new IllegalArgumentException("ticksPerWheel: " + ticksPerWheel);
+
+		this.name = name;
+		this.tickDuration = tickDuration;
+		wheel = new Bucket[IoBuffer.normalizeCapacity(ticksPerWheel)];
+		for (int i = 0; i < wheel.length; i++)
+			wheel[i] = new Bucket();
+		mask = wheel.length - 1;
+	}
+
+	/**
+	 * Runs a task in the worker thread once the delay elapses.
+	 * The task should be quick, as it delays all other timeouts.
+	 * @param delay the delay in milliseconds
+	 */
+	public Timeout newTimeout(Runnable task, long delay) {
+		start();
+		Timeout timeout = new Timeout(task, System.currentTimeMillis() + delay);
+		added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the worker thread. Pending timeouts never fire.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	private synchronized void start() {
+		if (thread != null)
+			return;
+		if (stopped)
+			throw new IllegalStateException("Timer stopped");
+
+		startTime = System.currentTimeMillis();
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void run() {
+		long tick = 0;
+		while (!stopped) {
+			long sleep = startTime + (tick + 1) * tickDuration - System.currentTimeMillis();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException ex) {
+					continue;
+				}
+			}
+
+			transferAdded(tick);
+			wheel[(int) (tick & mask)].expire();
+			tick++;
+		}
+	}
+
+	/**
+	 * Moves the timeouts scheduled since the last tick into their buckets.
+	 */
+	private void transferAdded(long tick) {
+		Timeout timeout;
+		while ((timeout = (Timeout) added.poll()) != null) {
+			if (timeout.isCancelled())
+				continue;
+
+			long expiryTick = (timeout.deadline - startTime) / tickDuration;
+			if (expiryTick < tick)
+				expiryTick = tick;
+			timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+			wheel[(int) (expiryTick & mask)].add(timeout);
+		}
+	}
+
+	/**
+	 * A scheduled task, which may be cancelled before it fires.
+	 */
+	static class Timeout {
+		private static final int INIT = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final Runnable task;
+		private final long deadline;
+		private int state = INIT;
+		long remainingRounds;
+		Timeout prev;
+		Timeout next;
+
+		Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels this timeout.
+		 * @return false if it already fired or was cancelled
+		 */
+		public synchronized boolean cancel() {
+			if (state != INIT)
+				return false;
+			state = CANCELLED;
+			return true;
+		}
+
+		public synchronized boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		public synchronized boolean isExpired() {
+			return state == EXPIRED;
+		}
+
+		private void expire() {
+			synchronized (this) {
+				if (state != INIT)
+					return;
+				state = EXPIRED;
+			}
+
+			try {
+				task.run();
+			} catch (RuntimeException ex) {
+				System.out.println("Timeout task failed " + ex);
+			}
+		}
+	}
+
+	/**
+	 * A doubly linked list of timeouts, only touched by the worker thread.
+	 */
+	private static class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		public void add(Timeout timeout) {
+			if (tail == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		public void expire() {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.isCancelled()) {
+					remove(timeout);
+				} else if (timeout.remainingRounds <= 0) {
+					remove(timeout);
+					timeout.expire();
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+
+		private void remove(Timeout timeout) {
+			if (timeout.prev == null)
+				head = timeout.next;
+			else
+				timeout.prev.next = timeout.next;
+			if (timeout.next == null)
+				tail = timeout.prev;
+			else
+				timeout.next.prev = timeout.prev;
+			timeout.prev = null;
+			timeout.next = null;
+		}
+	}
+}
@@ -0,0 +1,396 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.smeshlink.misty.service.ICredential;
+import com.smeshlink.misty.service.IServiceRequest;
+import com.smeshlink.misty.service.IServiceResponse;
+import com.smeshlink.misty.service.UserCredential;
+
+/**
+ * Keeps the bodies of <code>GET</code> responses of an {@link HttpChannel}
+ * along with their validators, so that unchanged resources are not
+ * transferred again.
+ * <p>
+ * A response is stored if it has an <code>ETag</code> or a
+ * <code>Last-Modified</code> header and no <code>Cache-Control: no-store</code>.
+ * The same request is then sent with <code>If-None-Match</code> and
+ * <code>If-Modified-Since</code>, and a <code>304 Not Modified</code> is
+ * answered from the cache. Requests are told apart by their host, resource,
+ * format, parameters and credential. <code>POST</code>, <code>PUT</code>
+ * and <code>DELETE</code> requests drop the entries of their resource.
+ * </p>
+ * <p>
+ * The cache holds at most its maximum size in bytes, counting bodies and
+ * keys, and evicts the least recently used entries to stay below it.
+ * Larger responses than the maximum entry size are not stored. A cache may
+ * be shared by several channels.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+public class HttpCache {
+	/**
+	 * The bytes counted for an entry besides its body and key.
+	 */
+	static final int ENTRY_OVERHEAD = 256;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+	private final long maxSize;
+	private long maxEntrySize;
+	private long size;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * Creates a cache.
+	 * @param maxSize the maximum size in bytes
+	 */
+	public HttpCache(long maxSize) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("maxSize: " + maxSize);
+		this.maxSize = maxSize;
+		this.maxEntrySize = maxSize / 8;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized long getMaxEntrySize() {
+		return maxEntrySize;
+	}
+
+	/**
+	 * Sets the size in bytes of the largest body stored.
+	 * The default is an eighth of the maximum size.
+	 */
+	public synchronized void setMaxEntrySize(long maxEntrySize) {
+		if (maxEntrySize < 0 || maxEntrySize > maxSize)
+			throw new IllegalArgumentException("maxEntrySize: " + maxEntrySize);
+		this.maxEntrySize = maxEntrySize;
+	}
+
+	/**
+	 * Gets the number of bytes held.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of responses held.
+	 */
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Gets the number of responses served from the cache.
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Gets the number of requests which had to be answered in full.
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Gets the number of entries evicted to stay below the maximum size.
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * Removes the entries of a resource, whatever their parameters
+	 * and credentials.
+	 */
+	public synchronized void invalidate(String host, String resource) {
+		for (Iterator it = entries.values().iterator(); it.hasNext(); ) {
+			Entry entry = (Entry) it.next();
+			if (entry.host.equals(host) && entry.resource.equals(resource)) {
+				it.remove();
+				size -= entry.size;
+			}
+		}
+	}
+
+	/**
+	 * Gets the key of a request. The credential is kept as a digest so
+	 * that secrets do not stay in memory with the cached bodies.
+	 */
+	static String getKey(String host, IServiceRequest request) {
+		StringBuffer sb = new StringBuffer();
+		sb.append(host).append(' ').append(request.getResource())
+			.append('.').append(request.getFormat());
+
+		Map params = request.getParameters();
+		if (params != null && !params.isEmpty()) {
+			// the same parameters in any order
+			Map sorted = new TreeMap();
+			for (Iterator it = params.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry e = (Map.Entry) it.next();
+				if (e.getKey() != null && e.getValue() != null)
+					sorted.put(e.getKey().toString(), e.getValue().toString());
+			}
+			char sep = '?';
+			for (Iterator it = sorted.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry e = (Map.Entry) it.next();
+				sb.append(sep).append(e.getKey()).append('=').append(e.getValue());
+				sep = '&';
+			}
+		}
+
+		ICredential cred = request.getCredential();
+		if (cred instanceof UserCredential) {
+			UserCredential uc = (UserCredential) cred;
+			sb.append(' ').append(digest(uc.getUsername() + ':' + uc.getPassword()));
+		} else if (cred != null) {
+			ICredential.Pair pair = cred.getCredential();
+			sb.append(' ').append(digest(pair.getKey() + ':' + pair.getValue()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Gets the SHA-256 digest of a string in hexadecimal.
+	 */
+	static String digest(String s) {
+		byte[] hash;
+		try {
+			hash = MessageDigest.getInstance("SHA-256").digest(s.getBytes("utf-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e.toString());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.toString());
+		}
+		StringBuffer sb = new StringBuffer(hash.length * 2);
+		for (int i = 0; i < hash.length; i++) {
+			sb.append(HEX_DIGITS[(hash[i] >> 4) & 0x0f]).append(HEX_DIGITS[hash[i] & 0x0f]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Gets an entry, marking it as recently used.
+	 */
+	synchronized Entry get(String key) {
+		return (Entry) entries.get(key);
+	}
+
+	/**
+	 * Answers a request from an entry after a <code>304</code> response.
+	 */
+	IServiceResponse hit(Entry entry) {
+		synchronized (this) {
+			hitCount++;
+		}
+		return new CachedResponse(entry);
+	}
+
+	/**
+	 * Stores a <code>200</code> response if it can be cached, reading its
+	 * body up to the maximum entry size.
+	 * @return a response to read instead of the one given
+	 */
+	IServiceResponse store(String key, String host, IServiceRequest request,
+			IServiceResponse response, String etag, String lastModified, String cacheControl) throws IOException {
+		synchronized (this) {
+			missCount++;
+			Entry old = (Entry) entries.remove(key);
+			if (old != null)
+				size -= old.size;
+		}
+		if ((etag == null && lastModified == null)
+				|| (cacheControl != null && cacheControl.toLowerCase().indexOf("no-store") >= 0))
+			return response;
+
+		long limit = getMaxEntrySize();
+		InputStream is = response.getResponseStream();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buf = new byte[TcpChannel.READ_CHUNK_SIZE];
+		int n;
+		while (bytes.size() <= limit && (n = is.read(buf)) != -1)
+			bytes.write(buf, 0, n);
+		if (bytes.size() > limit)
+			// too large, read the rest as it comes
+			return new PartialResponse(response,
+					new SequenceInputStream(new ByteArrayInputStream(bytes.toByteArray()), is));
+
+		Map headers = new HashMap();
+		for (Iterator it = response.getHeaders().entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry e = (Map.Entry) it.next();
+			String name = e.getKey().toString();
+			// the body is kept decoded
+			if (!name.equalsIgnoreCase("Content-Encoding") && !name.equalsIgnoreCase("Content-Length"))
+				headers.put(name, e.getValue());
+		}
+		Entry entry = new Entry(key, host, request.getResource(), etag, lastModified,
+				headers, bytes.toByteArray());
+		response.dispose();
+		put(entry);
+		return new CachedResponse(entry);
+	}
+
+	private synchronized void put(Entry entry) {
+		Entry old = (Entry) entries.put(entry.key, entry);
+		if (old != null)
+			size -= old.size;
+		size += entry.size;
+
+		for (Iterator it = entries.values().iterator(); size > maxSize && it.hasNext(); ) {
+			Entry eldest = (Entry) it.next();
+			it.remove();
+			size -= eldest.size;
+			evictionCount++;
+		}
+	}
+
+	/**
+	 * A stored response.
+	 */
+	static class Entry {
+		final String key;
+		final String host;
+		final String resource;
+		final String etag;
+		final String lastModified;
+		final Map headers;
+		final byte[] body;
+		final long size;
+
+		Entry(String key, String host, String resource, String etag,
+				String lastModified, Map headers, byte[] body) {
+			this.key = key;
+			this.host = host;
+			this.resource = resource;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.headers = headers;
+			this.body = body;
+			this.size = body.length + key.length() * 2 + ENTRY_OVERHEAD;
+		}
+	}
+
+	/**
+	 * A response read from an entry.
+	 */
+	private static class CachedResponse implements IServiceResponse {
+		private final Entry entry;
+
+		public CachedResponse(Entry entry) {
+			this.entry = entry;
+		}
+
+		public String getResource() {
+			return entry.resource;
+		}
+
+		public int getStatus() {
+			return 200;
+		}
+
+		public Object getBody() {
+			return null;
+		}
+
+		public Map getHeaders() {
+			return new HashMap(entry.headers);
+		}
+
+		public String getToken() {
+			return null;
+		}
+
+		public void setToken(String token) {
+			// do nothing
+		}
+
+		public InputStream getResponseStream() {
+			return new ByteArrayInputStream(entry.body);
+		}
+
+		public void dispose() {
+			// nothing to release
+		}
+	}
+
+	/**
+	 * A response whose beginning has already been read.
+	 */
+	private static class PartialResponse implements IServiceResponse {
+		private final IServiceResponse response;
+		private final InputStream stream;
+
+		public PartialResponse(IServiceResponse response, InputStream stream) {
+			this.response = response;
+			this.stream = stream;
+		}
+
+		public String getResource() {
+			return response.getResource();
+		}
+
+		public int getStatus() {
+			return response.getStatus();
+		}
+
+		public Object getBody() {
+			return response.getBody();
+		}
+
+		public Map getHeaders() {
+			return response.getHeaders();
+		}
+
+		public String getToken() {
+			return response.getToken();
+		}
+
+		public void setToken(String token) {
+			response.setToken(token);
+		}
+
+		public InputStream getResponseStream() {
+			return stream;
+		}
+
+		public void dispose() {
+			response.dispose();
+		}
+	}
+}
@@ -8,57 +8,240 @@ package com.smeshlink.misty.service.channel;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.URI;
 import org.apache.commons.httpclient.URIException;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
-import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.auth.BasicScheme;
 import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.PutMethod;
-import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.commons.httpclient.methods.OptionsMethod;
 
 import com.smeshlink.misty.service.ICredential;
+import com.smeshlink.misty.service.IServiceCallback;
 import com.smeshlink.misty.service.IServiceRequest;
 import com.smeshlink.misty.service.IServiceResponse;
 import com.smeshlink.misty.service.MistyService;
 import com.smeshlink.misty.service.ServiceException;
+import com.smeshlink.misty.service.ServiceFuture;
 import com.smeshlink.misty.service.UserCredential;
 
 /**
  * HTTP channel.
+ * <p>
+ * Requests share a pool of persistent connections, so that any number of
+ * threads may use the same channel. Nothing about a request is kept in
+ * the shared client; credentials are sent with each request.
+ * </p>
  * 
  * @author Longshine
  * 
  */
 public class HttpChannel implements IServiceChannel {
+	private static final int DEFAULT_MAX_CONNECTIONS = 8;
+	private static final String HEADER_AUTHORIZATION = "Authorization";
+	private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+	private static final String HEADER_ETAG = "ETag";
+	private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+	private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+	private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+	private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+	private static int threadCount;
+	
 	private String host;
-	private HttpClient client = new HttpClient();
+	private final MultiThreadedHttpConnectionManager manager;
+	private final HttpClient client;
+	private ExecutorService executor;
+	private boolean ownExecutor;
+	private final InFlightLimiter inFlightLimiter = new InFlightLimiter(0);
+	private volatile boolean acceptCompression = true;
+	private volatile boolean compressRequests = true;
+	private volatile int compressionThreshold = 2048;
+	private volatile HttpCache cache;
 	
 	public HttpChannel(String host) {
 		this.host = host;
+		
+		manager = new MultiThreadedHttpConnectionManager();
+		manager.getParams().setDefaultMaxConnectionsPerHost(DEFAULT_MAX_CONNECTIONS);
+		manager.getParams().setMaxTotalConnections(DEFAULT_MAX_CONNECTIONS);
+		client = new HttpClient(manager);
+		setTimeout(30000);
+		setConnectTimeout(10000);
+		setAcquireTimeout(10000);
 	}
 	
 	public void setRequestListener(IRequestListener listener) {
 		// do nothing
 	}
 	
+	/**
+	 * Sets how long in milliseconds to wait for data of a response,
+	 * after which the request fails with status 504. 0 means no timeout.
+	 * The default is 30000.
+	 */
 	public void setTimeout(int timeout) {
-		// TODO
+		manager.getParams().setSoTimeout(timeout < 0 ? 0 : timeout);
 	}
 	
 	public int getTimeout() {
-		// TODO
-		return 0;
+		return manager.getParams().getSoTimeout();
+	}
+	
+	public int getConnectTimeout() {
+		return manager.getParams().getConnectionTimeout();
+	}
+	
+	/**
+	 * Sets how long in milliseconds a connection attempt may take.
+	 * 0 means no timeout. The default is 10000.
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		manager.getParams().setConnectionTimeout(connectTimeout < 0 ? 0 : connectTimeout);
+	}
+	
+	public int getAcquireTimeout() {
+		return (int) client.getParams().getConnectionManagerTimeout();
+	}
+	
+	/**
+	 * Sets how long in milliseconds a request may wait for a pooled
+	 * connection before it fails with status 504. 0 means no limit.
+	 * The default is 10000.
+	 */
+	public void setAcquireTimeout(int acquireTimeout) {
+		client.getParams().setConnectionManagerTimeout(acquireTimeout < 0 ? 0 : acquireTimeout);
+	}
+	
+	public int getMaxConnectionsPerHost() {
+		return manager.getParams().getDefaultMaxConnectionsPerHost();
+	}
+	
+	/**
+	 * Sets the maximum number of connections to one host. The default is 8.
+	 */
+	public void setMaxConnectionsPerHost(int maxConnections) {
+		if (maxConnections < 1)
+			throw new IllegalArgumentException("maxConnections: " + maxConnections);
+		manager.getParams().setDefaultMaxConnectionsPerHost(maxConnections);
+	}
+	
+	public int getMaxTotalConnections() {
+		return manager.getParams().getMaxTotalConnections();
+	}
+	
+	/**
+	 * Sets the maximum number of connections to all hosts, which matters
+	 * when the host is changed. The default is 8.
+	 */
+	public void setMaxTotalConnections(int maxConnections) {
+		if (maxConnections < 1)
+			throw new IllegalArgumentException("maxConnections: " + maxConnections);
+		manager.getParams().setMaxTotalConnections(maxConnections);
+	}
+	
+	public boolean isAcceptCompression() {
+		return acceptCompression;
+	}
+	
+	/**
+	 * Sets if responses may be compressed with gzip or deflate. They are
+	 * decompressed while read, as they are parsed. The default is true.
+	 */
+	public void setAcceptCompression(boolean acceptCompression) {
+		this.acceptCompression = acceptCompression;
+	}
+	
+	public boolean isCompressRequests() {
+		return compressRequests;
+	}
+	
+	/**
+	 * Sets if request bodies longer than the compression threshold should
+	 * be compressed with gzip. The server must accept a gzip
+	 * <code>Content-Encoding</code>. The default is true.
+	 */
+	public void setCompressRequests(boolean compressRequests) {
+		this.compressRequests = compressRequests;
+	}
+	
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+	
+	/**
+	 * Sets the length in bytes from which request bodies are compressed.
+	 * Shorter bodies are sent as they are, with their length. The default
+	 * is 2048.
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold < 0 ? 0 : compressionThreshold;
+	}
+	
+	public HttpCache getCache() {
+		return cache;
+	}
+	
+	/**
+	 * Sets the cache of <code>GET</code> responses, or null for none,
+	 * the default. Cached responses are revalidated with their
+	 * <code>ETag</code> or <code>Last-Modified</code> header, and served
+	 * from the cache if the server answers <code>304 Not Modified</code>.
+	 */
+	public void setCache(HttpCache cache) {
+		this.cache = cache;
+	}
+	
+	/**
+	 * Gets the number of open connections, in use or idle.
+	 */
+	public int getConnectionsInPool() {
+		return manager.getConnectionsInPool();
+	}
+	
+	/**
+	 * Closes the connections idle for longer than the given time
+	 * in milliseconds.
+	 */
+	public void closeIdleConnections(long idleTime) {
+		manager.closeIdleConnections(idleTime);
+	}
+	
+	/**
+	 * Closes all connections and stops the worker threads this channel
+	 * created. The channel cannot be used afterwards.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (ownExecutor && executor != null)
+				executor.shutdown();
+		}
+		manager.shutdown();
 	}
 	
 	public void setHost(String host) {
@@ -69,44 +252,198 @@ public class HttpChannel implements IServiceChannel {
 		return host;
 	}
 	
+	public String toString() {
+		return "HttpChannel " + host;
+	}
+	
+	/**
+	 * Gets the limiter of the requests in flight, which is
+	 * unlimited unless configured.
+	 */
+	public InFlightLimiter getInFlightLimiter() {
+		return inFlightLimiter;
+	}
+	
+	/**
+	 * Executes a request in the calling thread. Returns null if the
+	 * request times out.
+	 */
 	public IServiceResponse execute(IServiceRequest request) {
+		inFlightLimiter.acquire();
+		try {
+			return doExecute(request);
+		} catch (ServiceException e) {
+			if (e.getStatus() == ServiceException.GATEWAY_TIMEOUT)
+				return null;
+			throw e;
+		} finally {
+			inFlightLimiter.release();
+		}
+	}
+	
+	private IServiceResponse doExecute(IServiceRequest request) {
 		if (request.getFormat() == null)
 			request.setFormat("json");
 		
 		HttpMethod method = buildMethod(request);
+		HttpCache cache = this.cache;
+		if (cache != null && "GET".equals(request.getMethod()))
+			return executeCached(cache, request, method);
+		
+		try {
+			int status = client.executeMethod(method);
+			if (cache != null && status < 300 && !"OPTIONS".equals(request.getMethod()))
+				cache.invalidate(host, request.getResource());
+			return new HttpResponse(request.getResource(), status, method);
+		} catch (ConnectionPoolTimeoutException e) {
+			method.releaseConnection();
+			throw ServiceException.timeout("No connection available in " + getAcquireTimeout() + " ms");
+		} catch (InterruptedIOException e) {
+			method.releaseConnection();
+			throw ServiceException.timeout(e.getMessage());
+		} catch (IOException e) {
+			method.releaseConnection();
+			throw ServiceException.error(e);
+		} catch (RuntimeException e) {
+			method.releaseConnection();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Executes a <code>GET</code> request, made conditional if
+	 * its response is in the cache.
+	 */
+	private IServiceResponse executeCached(HttpCache cache, IServiceRequest request, HttpMethod method) {
+		String key = HttpCache.getKey(host, request);
+		HttpCache.Entry entry = cache.get(key);
+		if (entry != null) {
+			if (entry.etag != null)
+				method.setRequestHeader(HEADER_IF_NONE_MATCH, entry.etag);
+			if (entry.lastModified != null)
+				method.setRequestHeader(HEADER_IF_MODIFIED_SINCE, entry.lastModified);
+		}
 		
 		try {
-			return new HttpResponse(request.getResource(), client.executeMethod(method), method);
+			int status = client.executeMethod(method);
+			if (status == 304 && entry != null) {
+				method.releaseConnection();
+				return cache.hit(entry);
+			}
+			
+			HttpResponse response = new HttpResponse(request.getResource(), status, method);
+			if (status != 200)
+				return response;
+			return cache.store(key, host, request, response, getResponseHeader(method, HEADER_ETAG),
+					getResponseHeader(method, HEADER_LAST_MODIFIED), getResponseHeader(method, HEADER_CACHE_CONTROL));
+		} catch (ConnectionPoolTimeoutException e) {
+			method.releaseConnection();
+			throw ServiceException.timeout("No connection available in " + getAcquireTimeout() + " ms");
+		} catch (InterruptedIOException e) {
+			method.releaseConnection();
+			throw ServiceException.timeout(e.getMessage());
 		} catch (IOException e) {
+			method.releaseConnection();
 			throw ServiceException.error(e);
+		} catch (RuntimeException e) {
+			method.releaseConnection();
+			throw e;
 		}
 	}
 	
+	private static String getResponseHeader(HttpMethod method, String name) {
+		Header header = method.getResponseHeader(name);
+		return header == null ? null : header.getValue();
+	}
+	
+	/**
+	 * Executes a request in a worker thread. The HTTP client blocks,
+	 * so at most as many requests as worker threads are in flight
+	 * and the rest wait in the executor's queue. Requests count
+	 * against the in-flight limit from the time they are queued, so
+	 * the caller is held back once the limit is reached.
+	 */
+	public ServiceFuture executeAsync(final IServiceRequest request, IServiceCallback callback) {
+		final ServiceFuture future = new ServiceFuture(callback);
+		
+		try {
+			inFlightLimiter.acquire();
+		} catch (ServiceException e) {
+			future.fail(e);
+			return future;
+		}
+		
+		try {
+			getExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						if (!future.isDone())
+							future.complete(doExecute(request));
+					} catch (ServiceException e) {
+						future.fail(e);
+					} catch (RuntimeException e) {
+						future.fail(ServiceException.error(e));
+					} finally {
+						inFlightLimiter.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			inFlightLimiter.release();
+			future.fail(ServiceException.error(e));
+		}
+		
+		return future;
+	}
+	
+	/**
+	 * Gets the executor running asynchronous requests. Unless set, it has
+	 * as many threads as the maximum number of connections per host when
+	 * first used.
+	 */
+	public synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(getMaxConnectionsPerHost(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Misty-HttpChannel-" + nextThreadId());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			ownExecutor = true;
+		}
+		return executor;
+	}
+	
+	/**
+	 * Sets the executor running asynchronous requests. The connection
+	 * limits should be raised if it runs more requests at a time.
+	 */
+	public synchronized void setExecutor(ExecutorService executor) {
+		if (ownExecutor && this.executor != null)
+			this.executor.shutdown();
+		this.executor = executor;
+		ownExecutor = false;
+	}
+	
+	private static synchronized int nextThreadId() {
+		return ++threadCount;
+	}
+	
 	private HttpMethod buildMethod(IServiceRequest request) {
 		String method = request.getMethod();
-		String entity = null;
 		String contentType = MistyService.getContentType(request.getFormat());
 		HttpMethod m = null;
 		if ("GET".equals(method)) {
 			m = new GetMethod();
-		} else if ("POST".equals(method)) {
-			PostMethod post = new PostMethod();
-			try {
-				post.setRequestEntity(new StringRequestEntity(entity, contentType, "utf-8"));
-			} catch (UnsupportedEncodingException e) {
-				ServiceException.badRequest(e.getMessage());
-			}
-			m = post;
-		} else if ("PUT".equals(method)) {
-			PutMethod put = new PutMethod();
-			try {
-				put.setRequestEntity(new StringRequestEntity(entity, contentType, "utf-8"));
-			} catch (UnsupportedEncodingException e) {
-				ServiceException.badRequest(e.getMessage());
-			}
-			m = put;
+		} else if ("POST".equals(method) || "PUT".equals(method)) {
+			FormattedRequestEntity.Method entityMethod = new FormattedRequestEntity.Method(method);
+			setRequestEntity(entityMethod, request, contentType);
+			m = entityMethod;
 		} else if ("DELETE".equals(method)) {
 			m = new DeleteMethod();
+		} else if ("OPTIONS".equals(method)) {
+			m = new OptionsMethod();
 		} else {
 			ServiceException.badRequest("Unknown request method " + method);
 		}
@@ -119,6 +456,7 @@ public class HttpChannel implements IServiceChannel {
 		} catch (URIException e) {
 			ServiceException.badRequest("Invalid URI requested.");
 		}
+		m.setQueryString(buildQueryString(request.getParameters()));
 		
 		Map headers = request.getHeaders();
 		if (headers != null) {
@@ -131,38 +469,109 @@ public class HttpChannel implements IServiceChannel {
 		}
 		m.setRequestHeader(MistyService.HEADER_USER_AGENT, MistyService.VERSION);
 		m.setRequestHeader(MistyService.HEADER_ACCEPT, contentType);
+		if (acceptCompression)
+			m.setRequestHeader(HEADER_ACCEPT_ENCODING, "gzip, deflate");
 		
 		ICredential cred = request.getCredential();
-		if (cred == null) {
-			client.getParams().setAuthenticationPreemptive(false);
-			client.getState().clearCredentials();
-		} else if (cred instanceof UserCredential) {
+		if (cred instanceof UserCredential) {
+			// basic authentication, sent up front like a preemptive one
 			UserCredential uc = (UserCredential) cred;
-			client.getParams().setAuthenticationPreemptive(true);
-			client.getState().setCredentials(AuthScope.ANY,
-					new UsernamePasswordCredentials(uc.getUsername(), uc.getPassword()));
-		} else {
+			m.setRequestHeader(HEADER_AUTHORIZATION, BasicScheme.authenticate(
+					new UsernamePasswordCredentials(uc.getUsername(), uc.getPassword()), "utf-8"));
+		} else if (cred != null) {
 			ICredential.Pair pair = cred.getCredential();
 			m.setRequestHeader(pair.getKey(), pair.getValue());
 		}
 		
-		Map params = request.getParameters();
-		if (params != null) {
+		return m;
+	}
+	
+	/**
+	 * Builds the query string of request parameters. A list value
+	 * repeats its parameter for each element.
+	 * @return the encoded query string, or null if there are no parameters
+	 */
+	private static String buildQueryString(Map params) {
+		if (params == null || params.isEmpty())
+			return null;
+		
+		StringBuffer sb = new StringBuffer();
+		try {
 			for (Iterator it = params.entrySet().iterator(); it.hasNext(); ) {
 				Map.Entry entry = (Entry) it.next();
 				if (entry.getKey() == null || entry.getValue() == null)
 					continue;
-				m.getParams().setParameter(entry.getKey().toString(), entry.getValue());
+				String name = URLEncoder.encode(entry.getKey().toString(), "utf-8");
+				Iterator values = entry.getValue() instanceof List
+						? ((List) entry.getValue()).iterator()
+						: Collections.singletonList(entry.getValue()).iterator();
+				while (values.hasNext()) {
+					Object value = values.next();
+					if (value == null)
+						continue;
+					if (sb.length() > 0)
+						sb.append('&');
+					sb.append(name).append('=').append(URLEncoder.encode(value.toString(), "utf-8"));
+				}
 			}
+		} catch (UnsupportedEncodingException e) {
+			throw ServiceException.error(e);
+		}
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+	
+	/**
+	 * Sets the body of a request, if any. A body is streamed as it is
+	 * formatted, compressed if longer than the compression threshold.
+	 */
+	private void setRequestEntity(EntityEnclosingMethod m, IServiceRequest request, String contentType) {
+		if (request.getBody() != null) {
+			m.setRequestEntity(new FormattedRequestEntity(request.getBody(), request.getFormat(),
+					contentType, compressRequests ? compressionThreshold : -1));
 		}
+	}
+	
+	/**
+	 * Wraps a response body to decompress it according to its content
+	 * encoding. Deflate bodies may be zlib streams, as the specification
+	 * requires, or raw DEFLATE data, as some servers send.
+	 */
+	static InputStream decode(InputStream stream, String encoding) throws IOException {
+		if (stream == null || encoding == null)
+			return stream;
+		encoding = encoding.trim().toLowerCase();
+		if ("gzip".equals(encoding) || "x-gzip".equals(encoding))
+			return new GZIPInputStream(stream, TcpChannel.READ_CHUNK_SIZE);
+		if (!"deflate".equals(encoding))
+			return stream;
 		
-		return m;
+		PushbackInputStream pis = new PushbackInputStream(stream, 2);
+		byte[] header = new byte[2];
+		int n = pis.read(header);
+		if (n <= 0)
+			return pis;
+		pis.unread(header, 0, n);
+		boolean zlib = n == 2 && (header[0] & 0x0F) == 8
+				&& ((header[0] & 0xFF) << 8 | (header[1] & 0xFF)) % 31 == 0;
+		final Inflater inflater = new Inflater(!zlib);
+		return new InflaterInputStream(pis, inflater, TcpChannel.READ_CHUNK_SIZE) {
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inflater.end();
+				}
+			}
+		};
 	}
 	
 	class HttpResponse implements IServiceResponse {
 		private final String resource;
 		private final int statusCode;
 		private HttpMethod method;
+		private InputStream stream;
+		/** guards the stream, which is opened and closed with socket reads */
+		private final ReentrantLock streamLock = new ReentrantLock();
 		
 		public HttpResponse(String resource, int statusCode, HttpMethod method) {
 			this.resource = resource;
@@ -199,12 +608,33 @@ public class HttpChannel implements IServiceChannel {
 			// do nothing
 		}
 
+		/**
+		 * Gets the body, decompressed if it has a content encoding.
+		 */
 		public InputStream getResponseStream() throws IOException {
-			return method.getResponseBodyAsStream();
+			streamLock.lock();
+			try {
+				if (stream == null) {
+					stream = decode(method.getResponseBodyAsStream(),
+							getResponseHeader(method, HEADER_CONTENT_ENCODING));
+				}
+				return stream;
+			} finally {
+				streamLock.unlock();
+			}
 		}
 
 		public void dispose() {
-			method.releaseConnection();
+			streamLock.lock();
+			try {
+				if (stream != null)
+					stream.close();
+			} catch (IOException e) {
+				// the connection is closed below
+			} finally {
+				streamLock.unlock();
+				method.releaseConnection();
+			}
 		}
 	}
 }
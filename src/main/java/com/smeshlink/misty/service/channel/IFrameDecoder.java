@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Splits a stream of bytes into frames.
+ * <p>
+ * A decoder is stateful and belongs to a single connection. The bytes
+ * received are accumulated in an {@link IoBuffer} which is passed to
+ * {@link #decode(IoBuffer, List)} after each read.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+interface IFrameDecoder {
+	/**
+	 * Decodes all complete frames between the position and the limit
+	 * of the buffer and adds their texts to the output list. The position
+	 * is moved past the last complete frame, leaving an incomplete one
+	 * for the next call. The caller should then compact the buffer.
+	 *
+	 * @param in the buffer which accumulates received bytes
+	 * @param out the list to add decoded frames to
+	 * @throws IOException if the frame cannot be decoded
+	 * @throws BufferDataException if the data is corrupt or a frame is too long
+	 */
+	void decode(IoBuffer in, List out) throws IOException;
+
+	/**
+	 * Discards any partial frame state.
+	 */
+	void reset();
+}
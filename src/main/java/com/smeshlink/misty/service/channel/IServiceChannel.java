@@ -6,8 +6,10 @@
  */
 package com.smeshlink.misty.service.channel;
 
+import com.smeshlink.misty.service.IServiceCallback;
 import com.smeshlink.misty.service.IServiceRequest;
 import com.smeshlink.misty.service.IServiceResponse;
+import com.smeshlink.misty.service.ServiceFuture;
 
 /**
  * @author Longshine
@@ -24,4 +26,13 @@ public interface IServiceChannel {
 	 * @return
 	 */
 	IServiceResponse execute(IServiceRequest request);
+	
+	/**
+	 * Executes a request without waiting for its response.
+	 * @param request the {@link IServiceRequest} to send
+	 * @param callback the {@link IServiceCallback} to notify with
+	 * the {@link IServiceResponse}, or null
+	 * @return a {@link ServiceFuture} of the {@link IServiceResponse}
+	 */
+	ServiceFuture executeAsync(IServiceRequest request, IServiceCallback callback);
 }
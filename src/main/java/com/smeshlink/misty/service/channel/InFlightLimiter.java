@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.smeshlink.misty.service.ServiceException;
+
+/**
+ * Bounds the number of requests a channel has in flight, so that
+ * producers are held back instead of queueing without limit.
+ * <p>
+ * A request takes a permit before it is sent and returns it when its
+ * response arrives or it fails. When no permit is left, a new request
+ * waits for one, waits at most a timeout, or is rejected at once,
+ * depending on the mode. Requests which get no permit fail with
+ * status 503. Waiting requests park on a lock condition, which does not
+ * pin the carriers of virtual threads.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+public class InFlightLimiter {
+	/**
+	 * Requests wait until a permit is available.
+	 */
+	public static final int BLOCK = 0;
+	/**
+	 * Requests wait at most the wait timeout.
+	 */
+	public static final int TIMED_WAIT = 1;
+	/**
+	 * Requests are rejected at once.
+	 */
+	public static final int REJECT = 2;
+
+	private volatile int maxInFlight;
+	private volatile int mode = BLOCK;
+	private volatile int waitTimeout = 3000;
+	private int inFlight;
+	private int waiting;
+	private long rejectedCount;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+
+	/**
+	 * Creates a limiter.
+	 * @param maxInFlight the maximum number of requests in flight, or 0 for no limit
+	 */
+	public InFlightLimiter(int maxInFlight) {
+		setMaxInFlight(maxInFlight);
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Sets the maximum number of requests in flight. 0 means no limit.
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		lock.lock();
+		try {
+			this.maxInFlight = maxInFlight < 0 ? 0 : maxInFlight;
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getMode() {
+		return mode;
+	}
+
+	/**
+	 * Sets what happens to a request when no permit is available, one of
+	 * {@link #BLOCK}, {@link #TIMED_WAIT} or {@link #REJECT}.
+	 * The default is {@link #BLOCK}.
+	 */
+	public void setMode(int mode) {
+		if (mode < BLOCK || mode > REJECT)
+			throw new IllegalArgumentException("mode: " + mode);
+		this.mode = mode;
+	}
+
+	public int getWaitTimeout() {
+		return waitTimeout;
+	}
+
+	/**
+	 * Sets how long in milliseconds a request may wait for a permit in
+	 * {@link #TIMED_WAIT} mode. The default is 3000.
+	 */
+	public void setWaitTimeout(int waitTimeout) {
+		this.waitTimeout = waitTimeout < 0 ? 0 : waitTimeout;
+	}
+
+	/**
+	 * Gets the number of requests in flight.
+	 */
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of requests waiting for a permit.
+	 */
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return waiting;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of requests rejected since created.
+	 */
+	public long getRejectedCount() {
+		lock.lock();
+		try {
+			return rejectedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes a permit, waiting for one according to the mode.
+	 * @throws ServiceException with status 503 if no permit is available
+	 */
+	public void acquire() throws ServiceException {
+		lock.lock();
+		try {
+			if (maxInFlight == 0 || inFlight < maxInFlight) {
+				inFlight++;
+				return;
+			}
+
+			if (mode == REJECT)
+				throw rejected();
+
+			long deadline = mode == TIMED_WAIT ? System.currentTimeMillis() + waitTimeout : 0;
+			waiting++;
+			try {
+				while (maxInFlight > 0 && inFlight >= maxInFlight) {
+					if (deadline == 0) {
+						available.await();
+					} else {
+						long remaining = deadline - System.currentTimeMillis();
+						if (remaining <= 0) {
+							// pass on a notification this thread may have taken
+							available.signal();
+							throw rejected();
+						}
+						available.await(remaining, TimeUnit.MILLISECONDS);
+					}
+				}
+			} catch (InterruptedException ex) {
+				available.signal();
+				Thread.currentThread().interrupt();
+				throw ServiceException.error(ex);
+			} finally {
+				waiting--;
+			}
+			inFlight++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a permit.
+	 */
+	public void release() {
+		lock.lock();
+		try {
+			if (inFlight > 0)
+				inFlight--;
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private ServiceException rejected() {
+		rejectedCount++;
+		return ServiceException.unavailable("Too many requests in flight: " + inFlight);
+	}
+}
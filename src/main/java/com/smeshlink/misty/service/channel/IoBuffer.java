@@ -160,9 +160,9 @@ abstract class IoBuffer implements Comparable {
     }
 
     /**
-     * Sets the allocator used by existing and new buffers
+     * Sets the allocator used by new buffers
      */
-    public void setAllocator(IoBufferAllocator newAllocator) {
+    public static void setAllocator(IoBufferAllocator newAllocator) {
         if (newAllocator == null) {
             throw new IllegalArgumentException("allocator");
         }
@@ -171,7 +171,7 @@ abstract class IoBuffer implements Comparable {
 
         allocator = newAllocator;
 
-        if (null != oldAllocator) {
+        if (null != oldAllocator && oldAllocator != newAllocator) {
             oldAllocator.dispose();
         }
     }
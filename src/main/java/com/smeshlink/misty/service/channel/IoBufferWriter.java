@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * A writer which encodes characters as UTF-8 straight into an
+ * {@link IoBuffer}, growing it as needed. Unlike an
+ * <code>OutputStreamWriter</code>, it needs no intermediate char or
+ * byte arrays.
+ *
+ * @author Longshine
+ *
+ */
+class IoBufferWriter extends Writer {
+	private final IoBuffer buffer;
+	private char highSurrogate;
+
+	public IoBufferWriter(IoBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	public IoBuffer getBuffer() {
+		return buffer;
+	}
+
+	public void write(int c) {
+		encode(ensureRemaining(4), (char) c);
+	}
+
+	public void write(char[] cbuf, int off, int len) {
+		ByteBuffer buf = ensureRemaining(len * 3 + 1);
+		for (int i = off, end = off + len; i < end; i++)
+			encode(buf, cbuf[i]);
+	}
+
+	public void write(String str) {
+		write(str, 0, str.length());
+	}
+
+	public void write(String str, int off, int len) {
+		ByteBuffer buf = ensureRemaining(len * 3 + 1);
+		for (int i = off, end = off + len; i < end; i++)
+			encode(buf, str.charAt(i));
+	}
+
+	public void flush() {
+		// nothing buffered
+	}
+
+	public void close() {
+		flush();
+	}
+
+	private void encode(ByteBuffer buf, char c) {
+		if (highSurrogate != 0) {
+			char high = highSurrogate;
+			highSurrogate = 0;
+			if (c >= '\uDC00' && c <= '\uDFFF') {
+				int cp = 0x10000 + ((high - '\uD800') << 10) + (c - '\uDC00');
+				buf.put((byte) (0xF0 | (cp >> 18)));
+				buf.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				buf.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				buf.put((byte) (0x80 | (cp & 0x3F)));
+				return;
+			}
+			// unpaired, as OutputStreamWriter does
+			buf.put((byte) '?');
+		}
+
+		if (c < 0x80) {
+			buf.put((byte) c);
+		} else if (c < 0x800) {
+			buf.put((byte) (0xC0 | (c >> 6)));
+			buf.put((byte) (0x80 | (c & 0x3F)));
+		} else if (c >= '\uD800' && c <= '\uDBFF') {
+			highSurrogate = c;
+		} else if (c >= '\uDC00' && c <= '\uDFFF') {
+			buf.put((byte) '?');
+		} else {
+			buf.put((byte) (0xE0 | (c >> 12)));
+			buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+			buf.put((byte) (0x80 | (c & 0x3F)));
+		}
+	}
+
+	/**
+	 * Makes room for the given number of bytes, doubling the
+	 * capacity of the buffer if needed.
+	 */
+	private ByteBuffer ensureRemaining(int length) {
+		int required = buffer.position() + length;
+		if (required > buffer.capacity())
+			buffer.capacity(IoBuffer.normalizeCapacity(required));
+		if (required > buffer.limit())
+			buffer.limit(buffer.capacity());
+		return buffer.buf();
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Splits a stream of concatenated JSON documents into frames.
+ * <p>
+ * Each frame is a top-level JSON object or array. Braces and brackets
+ * are only counted outside of string values, so <code>"{"</code> in a
+ * value does not break framing. Bytes between frames are skipped. A
+ * decoder {@link #JsonFrameDecoder(boolean) made to stop at binary frames}
+ * stops instead at a NUL byte or {@link FrameCompressor#FLAG_BYTE}, which
+ * start length-prefixed and compressed frames, and leaves them to the
+ * caller. The scan resumes where the previous call stopped, so every byte
+ * is visited only once no matter how the frame is split across reads.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+class JsonFrameDecoder implements IFrameDecoder {
+	/**
+	 * The default maximum length of a frame, 16 MB.
+	 */
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+	private final boolean stopAtBinary;
+	private int maxFrameLength = DEFAULT_MAX_FRAME_LENGTH;
+	/** bytes of the current frame scanned so far */
+	private int scanned;
+	private int depth;
+	private boolean inString;
+	private boolean escaped;
+
+	/**
+	 * Creates a decoder skipping any bytes between frames.
+	 */
+	public JsonFrameDecoder() {
+		this(false);
+	}
+
+	/**
+	 * Creates a decoder.
+	 * @param stopAtBinary true to stop at the bytes starting binary frames,
+	 *        which are otherwise skipped between frames
+	 */
+	public JsonFrameDecoder(boolean stopAtBinary) {
+		this.stopAtBinary = stopAtBinary;
+	}
+
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	public void setMaxFrameLength(int maxFrameLength) {
+		if (maxFrameLength <= 0)
+			throw new IllegalArgumentException("maxFrameLength: " + maxFrameLength);
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	public void decode(IoBuffer in, List out) throws IOException {
+		byte[] array = in.hasArray() ? in.array() : null;
+		int offset = in.hasArray() ? in.arrayOffset() : 0;
+		int start = in.position();
+		int limit = in.limit();
+		int i = start + scanned;
+
+		while (i < limit) {
+			byte b = array == null ? in.get(i) : array[offset + i];
+			i++;
+
+			if (inString) {
+				if (escaped)
+					escaped = false;
+				else if (b == '\\')
+					escaped = true;
+				else if (b == '"')
+					inString = false;
+			} else if (b == '{' || b == '[') {
+				depth++;
+			} else if (depth == 0) {
+				if (stopAtBinary && (b == 0 || b == FrameCompressor.FLAG_BYTE)) {
+					// not JSON text, leave it to the caller
+					i--;
+					break;
+				}
+				// noise between frames
+				start = i;
+			} else if (b == '"') {
+				inString = true;
+			} else if (b == '}' || b == ']') {
+				if (--depth == 0) {
+					out.add(toString(in, array, offset, start, i - start));
+					start = i;
+				}
+			}
+		}
+
+		in.position(start);
+		scanned = i - start;
+
+		if (scanned > maxFrameLength) {
+			reset();
+			throw new BufferDataException("Frame length exceeds " + maxFrameLength);
+		}
+	}
+
+	/**
+	 * Checks if no partial frame has been scanned.
+	 */
+	public boolean isIdle() {
+		return scanned == 0;
+	}
+
+	public void reset() {
+		scanned = 0;
+		depth = 0;
+		inString = false;
+		escaped = false;
+	}
+
+	private static String toString(IoBuffer in, byte[] array, int offset, int start, int length)
+			throws IOException {
+		if (array == null) {
+			array = new byte[length];
+			for (int i = 0; i < length; i++) {
+				array[i] = in.get(start + i);
+			}
+			offset = -start;
+		}
+		return new String(array, offset + start, length, "utf-8");
+	}
+}
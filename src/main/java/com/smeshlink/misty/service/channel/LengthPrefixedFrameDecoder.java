@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Decodes frames carrying a 4-byte big-endian length prefix.
+ * <p>
+ * Frames are sliced out of the buffer by their lengths without scanning
+ * their contents. The length of a frame is limited below 16 MB, so its
+ * first byte is always zero and can never start JSON text. Frames starting
+ * with anything else are delegated to a {@link JsonFrameDecoder}, which
+ * lets a connection switch from plain JSON to length-prefixed framing at
+ * any frame boundary.
+ * </p>
+ * <p>
+ * Frames whose length prefix has the {@link FrameCompressor#FLAG_COMPRESSED}
+ * bit set are decompressed, if the decoder is given a compressor.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+class LengthPrefixedFrameDecoder implements IFrameDecoder {
+	/**
+	 * The length of the prefix in bytes.
+	 */
+	public static final int PREFIX_LENGTH = 4;
+	/**
+	 * The largest length a frame can have.
+	 */
+	public static final int MAX_FRAME_LENGTH = 0xFFFFFF;
+
+	private final JsonFrameDecoder jsonDecoder = new JsonFrameDecoder(true);
+	private final FrameCompressor compressor;
+	private int maxFrameLength = MAX_FRAME_LENGTH;
+
+	public LengthPrefixedFrameDecoder() {
+		this(null);
+	}
+
+	/**
+	 * Creates a decoder.
+	 * @param compressor the compressor of the connection which decompresses
+	 *        compressed frames, or null to reject them
+	 */
+	public LengthPrefixedFrameDecoder(FrameCompressor compressor) {
+		this.compressor = compressor;
+	}
+
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	public void setMaxFrameLength(int maxFrameLength) {
+		if (maxFrameLength <= 0 || maxFrameLength > MAX_FRAME_LENGTH)
+			throw new IllegalArgumentException("maxFrameLength: " + maxFrameLength);
+		this.maxFrameLength = maxFrameLength;
+		jsonDecoder.setMaxFrameLength(maxFrameLength);
+	}
+
+	public void decode(IoBuffer in, List out) throws IOException {
+		while (in.hasRemaining()) {
+			if (jsonDecoder.isIdle() && in.get(in.position()) == FrameCompressor.FLAG_BYTE) {
+				if (!decodeCompressed(in, out))
+					return;
+			} else if (jsonDecoder.isIdle() && in.get(in.position()) == 0) {
+				if (!in.prefixedDataAvailable(PREFIX_LENGTH, maxFrameLength))
+					return;
+
+				int length = in.getInt();
+				if (in.hasArray()) {
+					out.add(new String(in.array(), in.arrayOffset() + in.position(), length, "utf-8"));
+					in.skip(length);
+				} else {
+					byte[] data = new byte[length];
+					in.get(data);
+					out.add(new String(data, "utf-8"));
+				}
+			} else {
+				int position = in.position();
+				jsonDecoder.decode(in, out);
+				if (in.position() == position)
+					// incomplete JSON frame
+					return;
+			}
+		}
+	}
+
+	/**
+	 * Decodes a compressed frame.
+	 * @return false if the frame is incomplete
+	 */
+	private boolean decodeCompressed(IoBuffer in, List out) throws IOException {
+		if (compressor == null)
+			throw new BufferDataException("Compressed frame not negotiated");
+		if (in.remaining() < PREFIX_LENGTH)
+			return false;
+
+		int length = in.getInt(in.position()) & MAX_FRAME_LENGTH;
+		if (in.remaining() - PREFIX_LENGTH < length)
+			return false;
+
+		in.skip(PREFIX_LENGTH);
+		if (in.hasArray()) {
+			out.add(compressor.decompress(in.array(), in.arrayOffset() + in.position(), length, maxFrameLength));
+			in.skip(length);
+		} else {
+			byte[] data = new byte[length];
+			in.get(data);
+			out.add(compressor.decompress(data, 0, length, maxFrameLength));
+		}
+		return true;
+	}
+
+	public void reset() {
+		jsonDecoder.reset();
+	}
+
+	/**
+	 * Writes the length prefix of a frame.
+	 *
+	 * @param frame the buffer holding a frame at <code>offset</code>, with
+	 *        {@link #PREFIX_LENGTH} bytes reserved before its data
+	 * @param offset the offset of the prefix
+	 * @param length the length of the data, excluding the prefix
+	 */
+	public static void putPrefix(byte[] frame, int offset, int length) {
+		if (length > MAX_FRAME_LENGTH)
+			throw new BufferDataException("Frame length exceeds " + MAX_FRAME_LENGTH);
+		byte[] prefix = TcpChannel.toBytesB(length, PREFIX_LENGTH);
+		System.arraycopy(prefix, 0, frame, offset, PREFIX_LENGTH);
+	}
+}
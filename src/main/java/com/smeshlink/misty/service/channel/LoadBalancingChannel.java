@@ -0,0 +1,511 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.smeshlink.misty.service.IServiceCallback;
+import com.smeshlink.misty.service.IServiceRequest;
+import com.smeshlink.misty.service.IServiceResponse;
+import com.smeshlink.misty.service.ServiceException;
+import com.smeshlink.misty.service.ServiceFuture;
+import com.smeshlink.misty.service.ServiceRequestImpl;
+
+/**
+ * A channel which spreads requests over several channels, such as those
+ * of regional endpoints of the same service.
+ * <p>
+ * Each request goes to the healthy endpoint with the least requests in
+ * flight, or, in {@link #LEAST_LATENCY} mode, with the least expected
+ * latency, which is its average response time weighted by the requests
+ * in flight. A slow endpoint thus gets fewer requests, instead of
+ * holding up a share of them.
+ * </p>
+ * <p>
+ * An endpoint failing {@link #setFailureThreshold(int) several} requests
+ * in a row with status 502, 503 or 504 is taken out of rotation until a
+ * health check succeeds. Health checks are sent to every endpoint
+ * periodically. A request failing with status 503, which means it never
+ * left for the endpoint, is retried on another endpoint. A request which
+ * may have reached the endpoint, failing with status 502 as its connection
+ * was lost or 504 as it timed out, is retried only if it is a
+ * <code>GET</code>, so that no command runs twice. If no endpoint is
+ * healthy, requests are still sent to the one failing the least. Retries
+ * and health checks are sent from an executor, since the callbacks
+ * reporting failures run in the I/O and timer threads of the channels,
+ * and the timer triggering health checks is shared by all balancers,
+ * while sending may block until a connection is available.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+public class LoadBalancingChannel implements IServiceChannel {
+	/**
+	 * Requests go to the endpoint with the least requests in flight.
+	 */
+	public static final int LEAST_OUTSTANDING = 0;
+	/**
+	 * Requests go to the endpoint with the least expected latency.
+	 */
+	public static final int LEAST_LATENCY = 1;
+
+	private static final Timer timer = new Timer("Misty-LoadBalancingChannel-Timer", true);
+	/** the weight of the latest sample in the average latency */
+	private static final double LATENCY_DECAY = 0.2;
+	private static int threadCount;
+
+	private volatile Endpoint[] endpoints = new Endpoint[0];
+	private final Random random = new Random();
+	private IRequestListener requestListener;
+	private int timeout = 3000;
+	private int policy = LEAST_OUTSTANDING;
+	private int failureThreshold = 3;
+	private int healthCheckInterval = 5000;
+	private String healthCheckMethod = "OPTIONS";
+	private String healthCheckResource = "/";
+	private TimerTask healthCheckTask;
+	private ExecutorService executor;
+	private boolean ownExecutor;
+
+	public LoadBalancingChannel() {
+	}
+
+	public LoadBalancingChannel(IServiceChannel[] channels) {
+		for (int i = 0; i < channels.length; i++)
+			addChannel(channels[i]);
+	}
+
+	/**
+	 * Adds a channel to the rotation. Its timeout and request listener
+	 * are set to those of this channel.
+	 */
+	public synchronized void addChannel(IServiceChannel channel) {
+		channel.setTimeout(timeout);
+		if (requestListener != null)
+			channel.setRequestListener(requestListener);
+
+		List list = new ArrayList(Arrays.asList(endpoints));
+		list.add(new Endpoint(channel));
+		endpoints = (Endpoint[]) list.toArray(new Endpoint[list.size()]);
+		scheduleHealthChecks();
+	}
+
+	public synchronized void removeChannel(IServiceChannel channel) {
+		List list = new ArrayList();
+		for (int i = 0; i < endpoints.length; i++) {
+			if (endpoints[i].channel != channel)
+				list.add(endpoints[i]);
+		}
+		endpoints = (Endpoint[]) list.toArray(new Endpoint[list.size()]);
+	}
+
+	/**
+	 * Gets the endpoints with their current state.
+	 */
+	public List getEndpoints() {
+		return Arrays.asList(endpoints);
+	}
+
+	public void setRequestListener(IRequestListener listener) {
+		Endpoint[] list;
+		synchronized (this) {
+			requestListener = listener;
+			list = endpoints;
+		}
+		for (int i = 0; i < list.length; i++)
+			list[i].channel.setRequestListener(listener);
+	}
+
+	/**
+	 * Sets the timeout of all channels.
+	 */
+	public void setTimeout(int timeout) {
+		Endpoint[] list;
+		synchronized (this) {
+			this.timeout = timeout;
+			list = endpoints;
+		}
+		for (int i = 0; i < list.length; i++)
+			list[i].channel.setTimeout(timeout);
+	}
+
+	public synchronized int getTimeout() {
+		return timeout;
+	}
+
+	public synchronized int getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Sets how endpoints are chosen, either {@link #LEAST_OUTSTANDING},
+	 * the default, or {@link #LEAST_LATENCY}.
+	 */
+	public synchronized void setPolicy(int policy) {
+		if (policy != LEAST_OUTSTANDING && policy != LEAST_LATENCY)
+			throw new IllegalArgumentException("policy: " + policy);
+		this.policy = policy;
+	}
+
+	public synchronized int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	/**
+	 * Sets how many requests in a row an endpoint may fail before it is
+	 * taken out of rotation. The default is 3.
+	 */
+	public synchronized void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+	}
+
+	public synchronized int getHealthCheckInterval() {
+		return healthCheckInterval;
+	}
+
+	/**
+	 * Sets how often in milliseconds endpoints are checked. 0 disables
+	 * health checks, which leaves failed endpoints out of rotation
+	 * until all of them fail. The default is 5000.
+	 */
+	public synchronized void setHealthCheckInterval(int healthCheckInterval) {
+		this.healthCheckInterval = healthCheckInterval < 0 ? 0 : healthCheckInterval;
+		scheduleHealthChecks();
+	}
+
+	/**
+	 * Sets the request sent by health checks. The default is
+	 * <code>OPTIONS /</code>, which {@link TcpChannel} servers answer
+	 * and {@link HttpChannel} sends as is. Any response with a status
+	 * below 500 proves the endpoint healthy, while a check failing with
+	 * a status below 500, such as one the channel cannot send, is
+	 * counted neither way.
+	 */
+	public synchronized void setHealthCheck(String method, String resource) {
+		healthCheckMethod = method;
+		healthCheckResource = resource;
+	}
+
+	/**
+	 * Gets the executor sending retries. Unless set, it starts
+	 * threads as needed when first used.
+	 */
+	public synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Misty-LoadBalancingChannel-" + nextThreadId());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			ownExecutor = true;
+		}
+		return executor;
+	}
+
+	/**
+	 * Sets the executor sending retries.
+	 */
+	public synchronized void setExecutor(ExecutorService executor) {
+		if (ownExecutor && this.executor != null)
+			this.executor.shutdown();
+		this.executor = executor;
+		ownExecutor = false;
+	}
+
+	private static synchronized int nextThreadId() {
+		return ++threadCount;
+	}
+
+	/**
+	 * Stops the health checks and the threads sending retries.
+	 * The channels are not closed.
+	 */
+	public synchronized void close() {
+		if (healthCheckTask != null) {
+			healthCheckTask.cancel();
+			healthCheckTask = null;
+		}
+		if (ownExecutor && executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	public IServiceResponse execute(IServiceRequest request) {
+		ServiceFuture future = executeAsync(request, null);
+		try {
+			future.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw ServiceException.error(e);
+		}
+
+		ServiceException ex = future.getException();
+		if (ex == null)
+			return (IServiceResponse) future.getResult();
+		else if (ex.getStatus() == ServiceException.GATEWAY_TIMEOUT)
+			return null;
+		else
+			throw ex;
+	}
+
+	public ServiceFuture executeAsync(IServiceRequest request, IServiceCallback callback) {
+		ServiceFuture future = new ServiceFuture(callback);
+		send(request, future, new ArrayList());
+		return future;
+	}
+
+	/**
+	 * Sends a request to the best endpoint not tried yet.
+	 */
+	private void send(final IServiceRequest request, final ServiceFuture future, final List tried) {
+		final Endpoint endpoint = choose(tried);
+		if (endpoint == null) {
+			future.fail(ServiceException.unavailable("No endpoint available"));
+			return;
+		}
+		tried.add(endpoint);
+
+		final long start = System.currentTimeMillis();
+		endpoint.outstanding.incrementAndGet();
+		IServiceCallback callback = new IServiceCallback() {
+			public void completed(Object result) {
+				endpoint.outstanding.decrementAndGet();
+				IServiceResponse response = (IServiceResponse) result;
+				if (response.getStatus() >= 500)
+					endpoint.failed();
+				else
+					endpoint.succeeded(System.currentTimeMillis() - start);
+				future.complete(result);
+			}
+
+			public void failed(ServiceException e) {
+				endpoint.outstanding.decrementAndGet();
+				int status = e.getStatus();
+				boolean sent = status == ServiceException.BAD_GATEWAY
+						|| status == ServiceException.GATEWAY_TIMEOUT;
+				if (sent || status == ServiceException.SERVICE_UNAVAILABLE)
+					endpoint.failed();
+
+				if (status == ServiceException.SERVICE_UNAVAILABLE
+						|| (sent && "GET".equals(request.getMethod())))
+					retry(request, future, tried, e);
+				else
+					future.fail(e);
+			}
+		};
+
+		try {
+			endpoint.channel.executeAsync(request, callback);
+		} catch (ServiceException e) {
+			callback.failed(e);
+		}
+	}
+
+	/**
+	 * Sends a failed request to the next endpoint from the executor,
+	 * as the callback reporting the failure must not block.
+	 */
+	private void retry(final IServiceRequest request, final ServiceFuture future,
+			final List tried, ServiceException e) {
+		if (tried.size() >= endpoints.length || future.isDone()) {
+			future.fail(e);
+			return;
+		}
+
+		try {
+			getExecutor().execute(new Runnable() {
+				public void run() {
+					send(request, future, tried);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			future.fail(e);
+		}
+	}
+
+	/**
+	 * Chooses the healthy endpoint with the lowest score, or the one with
+	 * the fewest failures if none is healthy.
+	 */
+	private Endpoint choose(List tried) {
+		Endpoint[] list = endpoints;
+		boolean latency = getPolicy() == LEAST_LATENCY;
+		Endpoint best = null;
+		double bestScore = 0;
+		int ties = 0;
+		for (int i = 0; i < list.length; i++) {
+			Endpoint e = list[i];
+			if (!e.healthy || tried.contains(e))
+				continue;
+			double score = latency ? e.latency * (e.outstanding.get() + 1) : e.outstanding.get();
+			if (best == null || score < bestScore) {
+				best = e;
+				bestScore = score;
+				ties = 1;
+			} else if (score == bestScore && random.nextInt(++ties) == 0) {
+				// spread ties evenly
+				best = e;
+			}
+		}
+
+		if (best == null) {
+			for (int i = 0; i < list.length; i++) {
+				Endpoint e = list[i];
+				if (!tried.contains(e) && (best == null || e.failures.get() < best.failures.get()))
+					best = e;
+			}
+		}
+		return best;
+	}
+
+	private synchronized void scheduleHealthChecks() {
+		if (healthCheckTask != null) {
+			healthCheckTask.cancel();
+			healthCheckTask = null;
+		}
+		if (healthCheckInterval == 0 || endpoints.length == 0)
+			return;
+
+		healthCheckTask = new TimerTask() {
+			public void run() {
+				checkHealth();
+			}
+		};
+		timer.schedule(healthCheckTask, healthCheckInterval, healthCheckInterval);
+	}
+
+	private void checkHealth() {
+		Endpoint[] list = endpoints;
+		for (int i = 0; i < list.length; i++)
+			list[i].check();
+	}
+
+	private IServiceRequest newHealthCheckRequest() {
+		ServiceRequestImpl request = new ServiceRequestImpl();
+		synchronized (this) {
+			request.setMethod(healthCheckMethod);
+			request.setResource(healthCheckResource);
+		}
+		return request;
+	}
+
+	/**
+	 * A channel in the rotation.
+	 */
+	public class Endpoint {
+		private final IServiceChannel channel;
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private final AtomicInteger failures = new AtomicInteger();
+		private volatile boolean healthy = true;
+		private volatile boolean checking;
+		/** the average latency in milliseconds, optimistic until measured */
+		private volatile double latency = 1;
+
+		Endpoint(IServiceChannel channel) {
+			this.channel = channel;
+		}
+
+		public IServiceChannel getChannel() {
+			return channel;
+		}
+
+		public boolean isHealthy() {
+			return healthy;
+		}
+
+		/**
+		 * Gets the number of requests in flight.
+		 */
+		public int getOutstanding() {
+			return outstanding.get();
+		}
+
+		/**
+		 * Gets the average latency in milliseconds.
+		 */
+		public double getLatency() {
+			return latency;
+		}
+
+		private void succeeded(long elapsed) {
+			failures.set(0);
+			healthy = true;
+			latency += (Math.max(elapsed, 1) - latency) * LATENCY_DECAY;
+		}
+
+		private void failed() {
+			if (failures.incrementAndGet() >= getFailureThreshold() && healthy) {
+				healthy = false;
+				System.out.println("Endpoint " + channel + " out of rotation");
+			}
+		}
+
+		private void check() {
+			if (checking)
+				return;
+			checking = true;
+
+			final long start = System.currentTimeMillis();
+			final IServiceCallback callback = new IServiceCallback() {
+				public void completed(Object result) {
+					checking = false;
+					IServiceResponse response = (IServiceResponse) result;
+					int status = response.getStatus();
+					// releases the connection of an HTTP response
+					response.dispose();
+					if (status >= 500) {
+						Endpoint.this.failed();
+					} else {
+						if (!healthy)
+							System.out.println("Endpoint " + channel + " back in rotation");
+						succeeded(System.currentTimeMillis() - start);
+					}
+				}
+
+				public void failed(ServiceException e) {
+					checking = false;
+					// the check was refused, not the endpoint down
+					if (e.getStatus() >= 500)
+						Endpoint.this.failed();
+				}
+			};
+
+			try {
+				getExecutor().execute(new Runnable() {
+					public void run() {
+						try {
+							channel.executeAsync(newHealthCheckRequest(), callback);
+						} catch (ServiceException e) {
+							callback.failed(e);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				checking = false;
+			}
+		}
+
+		public String toString() {
+			return channel + (healthy ? " healthy" : " down") + ", outstanding "
+					+ outstanding.get() + ", latency " + (int) latency + " ms";
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * An I/O thread which owns a {@link Selector} and dispatches the ready
+ * events of all the channels registered to it.
+ * <p>
+ * All operations on the selector and its keys are performed in the I/O
+ * thread. Other threads hand work over with {@link #execute(Runnable)}.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+class NioProcessor implements Runnable {
+	private final String name;
+	private final LinkedList tasks = new LinkedList();
+	private Selector selector;
+	private Thread thread;
+	private volatile boolean disposed;
+
+	public NioProcessor(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Registers a channel with the given interest set.
+	 * The handler will be notified with every ready key of the channel.
+	 */
+	public void register(final SelectableChannel channel, final int ops, final IHandler handler) {
+		execute(new Runnable() {
+			public void run() {
+				try {
+					channel.register(selector, ops, handler);
+				} catch (IOException ex) {
+					handler.failed(ex);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs a task in the I/O thread.
+	 */
+	public void execute(Runnable task) {
+		synchronized (tasks) {
+			tasks.add(task);
+		}
+		start();
+		// also from the I/O thread, so that the next select does not block
+		// while tasks added during the processing of keys are waiting
+		selector.wakeup();
+	}
+
+	/**
+	 * Gets the key of a channel registered to this processor,
+	 * or null if not registered yet.
+	 */
+	public SelectionKey keyFor(SelectableChannel channel) {
+		return channel.keyFor(selector);
+	}
+
+	/**
+	 * Checks if the caller is running in the I/O thread.
+	 */
+	public boolean inProcessorThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	public synchronized void dispose() {
+		disposed = true;
+		if (selector != null)
+			selector.wakeup();
+	}
+
+	private synchronized void start() {
+		if (thread != null)
+			return;
+
+		try {
+			selector = Selector.open();
+		} catch (IOException ex) {
+			throw new IllegalStateException("Failed to open a selector: " + ex.getMessage());
+		}
+
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void run() {
+		while (!disposed) {
+			try {
+				selector.select();
+			} catch (IOException ex) {
+				System.out.println("Selector failed " + ex);
+				continue;
+			}
+
+			runTasks();
+
+			for (Iterator it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+				SelectionKey key = (SelectionKey) it.next();
+				it.remove();
+
+				IHandler handler = (IHandler) key.attachment();
+				try {
+					handler.process(key);
+				} catch (IOException ex) {
+					key.cancel();
+					handler.failed(ex);
+				} catch (RuntimeException ex) {
+					key.cancel();
+					handler.failed(new IOException(ex.toString()));
+				}
+			}
+		}
+
+		for (Iterator it = selector.keys().iterator(); it.hasNext(); ) {
+			SelectionKey key = (SelectionKey) it.next();
+			((IHandler) key.attachment()).failed(new IOException("Processor disposed"));
+		}
+
+		try {
+			selector.close();
+		} catch (IOException ex) {
+			// ignore
+		}
+	}
+
+	private void runTasks() {
+		while (true) {
+			Runnable task;
+			synchronized (tasks) {
+				if (tasks.isEmpty())
+					return;
+				task = (Runnable) tasks.removeFirst();
+			}
+
+			try {
+				task.run();
+			} catch (RuntimeException ex) {
+				System.out.println("Task failed " + ex);
+			}
+		}
+	}
+
+	/**
+	 * Handles the ready events of a registered channel.
+	 */
+	interface IHandler {
+		/**
+		 * Processes a selected key. Called in the I/O thread.
+		 */
+		void process(SelectionKey key) throws IOException;
+		/**
+		 * Called in the I/O thread when the channel could not be
+		 * registered or its processing failed.
+		 */
+		void failed(IOException ex);
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+/**
+ * A fixed number of selector threads shared by NIO {@link TcpChannel}s.
+ * Connections are assigned to the threads in a round-robin fashion.
+ *
+ * @author Longshine
+ *
+ */
+public class NioProcessorPool {
+	private static NioProcessorPool defaultPool;
+
+	private final NioProcessor[] processors;
+	private int next;
+
+	/**
+	 * Creates a pool with one I/O thread per available processor.
+	 */
+	public NioProcessorPool() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public NioProcessorPool(int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("size: " + size);
+		processors = new NioProcessor[size];
+		for (int i = 0; i < size; i++) {
+			processors[i] = new NioProcessor("Misty-NioProcessor-" + i);
+		}
+	}
+
+	/**
+	 * Gets the pool shared by all channels which are not given one explicitly.
+	 */
+	public static synchronized NioProcessorPool getDefault() {
+		if (defaultPool == null)
+			defaultPool = new NioProcessorPool();
+		return defaultPool;
+	}
+
+	public int getSize() {
+		return processors.length;
+	}
+
+	synchronized NioProcessor next() {
+		NioProcessor p = processors[next];
+		next = (next + 1) % processors.length;
+		return p;
+	}
+
+	/**
+	 * Stops all I/O threads and closes their connections.
+	 * A disposed pool cannot be reused.
+	 */
+	public void dispose() {
+		for (int i = 0; i < processors.length; i++) {
+			processors[i].dispose();
+		}
+	}
+}
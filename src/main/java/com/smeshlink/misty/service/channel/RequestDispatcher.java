@@ -0,0 +1,252 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link IRequestListener} callbacks for requests pushed by the
+ * server, so that slow handlers do not hold up the I/O threads reading
+ * responses.
+ * <p>
+ * Requests are run by a fixed number of threads. In ordered mode, the
+ * requests for the same resource run one after another in the order
+ * received, while those for different resources run in parallel.
+ * At most <code>maxQueued</code> requests may be waiting or running at a
+ * time; further requests are handled according to the rejection policy.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+public class RequestDispatcher {
+	/**
+	 * Rejected requests are answered with status 503.
+	 */
+	public static final int REJECT = 0;
+	/**
+	 * Rejected requests are dropped without an answer.
+	 */
+	public static final int DISCARD = 1;
+	/**
+	 * Rejected requests are run in the I/O thread, which stops reading
+	 * from the connection until they are done.
+	 */
+	public static final int CALLER_RUNS = 2;
+
+	private static int dispatcherCount;
+
+	private final ExecutorService executor;
+	private final boolean ordered;
+	private final int maxQueued;
+	private final Map queues = new HashMap();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+	private volatile int rejectionPolicy = REJECT;
+
+	/**
+	 * Creates a dispatcher.
+	 * @param threads the number of threads running requests
+	 * @param maxQueued the maximum number of requests waiting or running
+	 * @param ordered true to run the requests for the same resource in order
+	 */
+	public RequestDispatcher(int threads, int maxQueued, boolean ordered) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads: " + threads);
+		if (maxQueued < 1)
+			throw new IllegalArgumentException("maxQueued: " + maxQueued);
+
+		this.ordered = ordered;
+		this.maxQueued = maxQueued;
+
+		final String name = "Misty-RequestDispatcher-" + nextDispatcherId() + "-";
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue(), new ThreadFactory() {
+			private int count;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + (++count));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	private static synchronized int nextDispatcherId() {
+		return ++dispatcherCount;
+	}
+
+	public boolean isOrdered() {
+		return ordered;
+	}
+
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	public int getRejectionPolicy() {
+		return rejectionPolicy;
+	}
+
+	/**
+	 * Sets how to handle requests beyond the maximum queued, one of
+	 * {@link #REJECT}, {@link #DISCARD} or {@link #CALLER_RUNS}.
+	 * The default is {@link #REJECT}.
+	 */
+	public void setRejectionPolicy(int rejectionPolicy) {
+		if (rejectionPolicy < REJECT || rejectionPolicy > CALLER_RUNS)
+			throw new IllegalArgumentException("rejectionPolicy: " + rejectionPolicy);
+		this.rejectionPolicy = rejectionPolicy;
+	}
+
+	/**
+	 * Gets the number of requests waiting or running.
+	 */
+	public int getQueueDepth() {
+		return queued.get();
+	}
+
+	/**
+	 * Gets the number of requests rejected, discarded or run
+	 * by the caller since created.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Runs a task for a request.
+	 * @param key the resource of the request, which orders the tasks in ordered mode
+	 * @return false if the task was rejected or the dispatcher is shut down,
+	 * and the request should be answered with status 503
+	 */
+	public boolean dispatch(String key, Runnable task) {
+		if (queued.incrementAndGet() > maxQueued) {
+			queued.decrementAndGet();
+			rejected.incrementAndGet();
+			switch (rejectionPolicy) {
+			case CALLER_RUNS:
+				task.run();
+				return true;
+			case DISCARD:
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		if (!ordered) {
+			try {
+				executor.execute(new Task(task));
+			} catch (RejectedExecutionException ex) {
+				// shut down
+				queued.decrementAndGet();
+				rejected.incrementAndGet();
+				return false;
+			}
+			return true;
+		}
+
+		if (key == null)
+			key = "";
+
+		SerialQueue queue;
+		boolean start = false;
+		synchronized (queues) {
+			queue = (SerialQueue) queues.get(key);
+			if (queue == null) {
+				queue = new SerialQueue(key);
+				queues.put(key, queue);
+				start = true;
+			}
+			queue.tasks.add(task);
+		}
+
+		if (start) {
+			try {
+				executor.execute(queue);
+			} catch (RejectedExecutionException ex) {
+				// shut down, drop the queue with the tasks added meanwhile
+				synchronized (queues) {
+					queues.remove(key);
+					queued.addAndGet(-queue.tasks.size());
+					rejected.addAndGet(queue.tasks.size());
+					queue.tasks.clear();
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the threads once the queued requests are done.
+	 * Requests dispatched afterwards are rejected.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private void run(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException ex) {
+			System.out.println("Request handler failed " + ex);
+		} finally {
+			queued.decrementAndGet();
+		}
+	}
+
+	private class Task implements Runnable {
+		private final Runnable task;
+
+		public Task(Runnable task) {
+			this.task = task;
+		}
+
+		public void run() {
+			RequestDispatcher.this.run(task);
+		}
+	}
+
+	/**
+	 * The tasks of one resource, run one after another by one thread.
+	 * Removed from the map once empty.
+	 */
+	private class SerialQueue implements Runnable {
+		private final String key;
+		private final LinkedList tasks = new LinkedList();
+
+		public SerialQueue(String key) {
+			this.key = key;
+		}
+
+		public void run() {
+			while (true) {
+				Runnable task;
+				synchronized (queues) {
+					if (tasks.isEmpty()) {
+						queues.remove(key);
+						return;
+					}
+					task = (Runnable) tasks.removeFirst();
+				}
+				RequestDispatcher.this.run(task);
+			}
+		}
+	}
+}
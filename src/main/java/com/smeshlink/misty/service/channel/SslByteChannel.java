@@ -0,0 +1,299 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Encrypts the bytes written to a socket channel and decrypts those read
+ * from it with an {@link SSLEngine}.
+ * <p>
+ * The socket channel may be blocking or not. In non-blocking mode,
+ * {@link #handshake()} and {@link #read(ByteBuffer)} return early when no
+ * more bytes can be read, and encrypted bytes the socket did not accept
+ * are kept until the next {@link #flush()}, which should be retried once
+ * the socket is writable. Writes and reads may happen in different threads;
+ * writes are serialized by a {@link ReentrantLock}, so that a virtual thread
+ * blocked writing a blocking socket does not pin its carrier.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+class SslByteChannel implements ByteChannel, GatheringByteChannel {
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SSLEngine engine;
+	private final SocketChannel channel;
+	private final ReentrantLock writeLock = new ReentrantLock();
+	/** encrypted bytes read, in write mode */
+	private ByteBuffer netIn;
+	/** encrypted bytes to write, in read mode */
+	private ByteBuffer netOut;
+	/** decrypted bytes not read yet, in write mode */
+	private ByteBuffer appIn;
+	private long handshakeStart;
+
+	public SslByteChannel(SSLEngine engine, SocketChannel channel) {
+		this.engine = engine;
+		this.channel = channel;
+		SSLSession session = engine.getSession();
+		netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+		netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+		netOut.flip();
+		appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+	}
+
+	/**
+	 * Gets the room a buffer passed to {@link #read(ByteBuffer)} should have.
+	 */
+	public int getApplicationBufferSize() {
+		return engine.getSession().getApplicationBufferSize();
+	}
+
+	/**
+	 * Checks if the session of the last handshake was resumed from
+	 * an earlier connection rather than newly negotiated.
+	 */
+	public boolean isSessionResumed() {
+		return engine.getSession().getCreationTime() < handshakeStart;
+	}
+
+	/**
+	 * Starts the initial handshake.
+	 */
+	public void beginHandshake() throws IOException {
+		handshakeStart = System.currentTimeMillis();
+		engine.beginHandshake();
+	}
+
+	/**
+	 * Continues the handshake as far as possible.
+	 * @return true if it is finished, false if more bytes must be read
+	 *         or written first
+	 */
+	public boolean handshake() throws IOException {
+		while (true) {
+			SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+			if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+				runDelegatedTasks();
+			} else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+				writeLock.lock();
+				try {
+					if (!flush())
+						return false;
+					wrap(new ByteBuffer[] { EMPTY }, 0, 1);
+				} finally {
+					writeLock.unlock();
+				}
+			} else if (status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+				SSLEngineResult result = unwrap(appIn);
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+					int read = fill();
+					if (read < 0)
+						throw new SSLException("Connection closed during handshake");
+					if (read == 0)
+						return false;
+				} else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					throw new SSLException("Connection closed during handshake");
+				}
+			} else {
+				return flush();
+			}
+		}
+	}
+
+	/**
+	 * Checks if encrypted bytes are waiting to be written.
+	 */
+	public boolean hasPendingOutput() {
+		writeLock.lock();
+		try {
+			return netOut.hasRemaining();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the encrypted bytes the socket did not accept before.
+	 * @return true if none are left
+	 */
+	public boolean flush() throws IOException {
+		writeLock.lock();
+		try {
+			while (netOut.hasRemaining()) {
+				if (channel.write(netOut) == 0)
+					return false;
+			}
+			return true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[] { src }, 0, 1);
+	}
+
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	/**
+	 * Encrypts and writes bytes until all are written or the socket
+	 * accepts no more.
+	 * @return the number of plain bytes consumed
+	 */
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		writeLock.lock();
+		try {
+			long consumed = 0;
+			while (flush() && hasRemaining(srcs, offset, length))
+				consumed += wrap(srcs, offset, length);
+			return consumed;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Reads and decrypts bytes. The buffer should have room for
+	 * {@link #getApplicationBufferSize()} bytes, or bytes are read
+	 * in smaller pieces.
+	 * @return the number of bytes read, 0 if none could be read without
+	 *         blocking, or -1 at the end of the stream
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		while (true) {
+			if (appIn.position() > 0) {
+				appIn.flip();
+				int n = Math.min(appIn.remaining(), dst.remaining());
+				ByteBuffer slice = appIn.duplicate();
+				slice.limit(slice.position() + n);
+				dst.put(slice);
+				appIn.position(appIn.position() + n);
+				appIn.compact();
+				return n;
+			}
+
+			boolean direct = dst.remaining() >= getApplicationBufferSize();
+			SSLEngineResult result = unwrap(direct ? dst : appIn);
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+				return -1;
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+				int read = fill();
+				if (read <= 0)
+					return read;
+				continue;
+			}
+
+			if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+					&& result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED)
+				// renegotiation or post-handshake messages
+				handshake();
+			if (direct && result.bytesProduced() > 0)
+				return result.bytesProduced();
+		}
+	}
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Closes the socket without waiting for the peer to close the session.
+	 */
+	public void close() throws IOException {
+		engine.closeOutbound();
+		channel.close();
+	}
+
+	/**
+	 * Encrypts one record into the output buffer and tries to write it.
+	 * @return the number of plain bytes consumed
+	 */
+	private int wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		while (true) {
+			netOut.clear();
+			SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+			netOut.flip();
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				netOut = ByteBuffer.allocate(netOut.capacity() * 2);
+				netOut.flip();
+				continue;
+			}
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+				throw new SSLException("Session closed");
+			if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK)
+				runDelegatedTasks();
+			flush();
+			return result.bytesConsumed();
+		}
+	}
+
+	private SSLEngineResult unwrap(ByteBuffer dst) throws IOException {
+		while (true) {
+			netIn.flip();
+			SSLEngineResult result;
+			try {
+				result = engine.unwrap(netIn, dst);
+			} finally {
+				netIn.compact();
+			}
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				if (dst != appIn)
+					throw new SSLException("No room for decrypted bytes");
+				ByteBuffer tmp = ByteBuffer.allocate(appIn.capacity() + getApplicationBufferSize());
+				appIn.flip();
+				tmp.put(appIn);
+				appIn = dst = tmp;
+				continue;
+			}
+			if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK)
+				runDelegatedTasks();
+			return result;
+		}
+	}
+
+	/**
+	 * Reads encrypted bytes from the socket, making room first if needed.
+	 */
+	private int fill() throws IOException {
+		if (!netIn.hasRemaining()) {
+			ByteBuffer tmp = ByteBuffer.allocate(netIn.capacity() * 2);
+			netIn.flip();
+			tmp.put(netIn);
+			netIn = tmp;
+		}
+		return channel.read(netIn);
+	}
+
+	private void runDelegatedTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null)
+			task.run();
+	}
+
+	private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (srcs[i].hasRemaining())
+				return true;
+		}
+		return false;
+	}
+}
@@ -6,26 +6,44 @@
  */
 package com.smeshlink.misty.service.channel;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
 
 import org.json.JSONObject;
 
 import com.smeshlink.misty.formatter.JSONFormatter;
 import com.smeshlink.misty.service.ICredential;
+import com.smeshlink.misty.service.IServiceCallback;
 import com.smeshlink.misty.service.IServiceRequest;
 import com.smeshlink.misty.service.IServiceResponse;
 import com.smeshlink.misty.service.JsonRequest;
 import com.smeshlink.misty.service.JsonResponse;
 import com.smeshlink.misty.service.MistyService;
+import com.smeshlink.misty.service.ServiceException;
+import com.smeshlink.misty.service.ServiceFuture;
+import com.smeshlink.misty.service.ServiceRequestImpl;
 
 /**
  * TCP channel.
@@ -34,15 +52,84 @@ import com.smeshlink.misty.service.MistyService;
  * 
  */
 public class TcpChannel implements IServiceChannel {
+	/**
+	 * Frames are JSON documents delimited by their own braces.
+	 */
+	public static final int FRAMING_JSON = 0;
+	/**
+	 * Frames carry a 4-byte length prefix, if the server agrees to it.
+	 */
+	public static final int FRAMING_LENGTH_PREFIXED = 1;
+	/**
+	 * The header used to negotiate the framing mode.
+	 */
+	public static final String HEADER_FRAMING = "X-Framing";
+	public static final String FRAMING_LENGTH_PREFIXED_NAME = "length-prefixed";
+	/**
+	 * Frames are sent as they are.
+	 */
+	public static final int COMPRESSION_NONE = 0;
+	/**
+	 * Frames are compressed with DEFLATE, if the server agrees to it.
+	 */
+	public static final int COMPRESSION_DEFLATE = 1;
+	/**
+	 * The header used to negotiate the compression.
+	 */
+	public static final String HEADER_COMPRESSION = "X-Compression";
+	public static final String COMPRESSION_DEFLATE_NAME = "deflate";
+	/**
+	 * Requests which may wait behind others, such as large reads of history.
+	 */
+	public static final int PRIORITY_BULK = 0;
+	/**
+	 * Latency-critical requests, such as device commands.
+	 */
+	public static final int PRIORITY_CONTROL = 1;
+	
+	static final int RECEIVE_BUFFER_SIZE = 10240;
+	static final int READ_CHUNK_SIZE = 8192;
+	static final int FRAME_BUFFER_SIZE = 256;
+	/**
+	 * The granularity of request timeouts and write delays in milliseconds.
+	 */
+	static final int TICK_DURATION = 10;
+	private static final Timer timer = new Timer("Misty-TcpChannel-Timer", true);
+	/**
+	 * How long in milliseconds to wait for the response to a probe if
+	 * neither a read idle timeout, a heartbeat interval nor a request
+	 * timeout is set.
+	 */
+	static final int DEFAULT_PROBE_TIMEOUT = 10000;
+	/** sends the probes of blocking connections, started on demand */
+	private static ExecutorService probeExecutor;
+	private static int probeThreadCount;
+	static final HashedWheelTimer timeouts = new HashedWheelTimer(
+			"Misty-TcpChannel-Timeouts", TICK_DURATION, 1024);
+	
 	private String host;
 	private int port = 9011;
 	private InetSocketAddress address;
-	private int retryInterval = 10000;
-	private int maxPoolSize = 1;
-	private List pool = new ArrayList();
+	private final ConnectorPool pool = new ConnectorPool(this, timer);
+	private final ConnectorPool controlPool = new ConnectorPool(this, timer);
+	private String[] controlMethods = { "CMD" };
+	private final InFlightLimiter inFlightLimiter = new InFlightLimiter(0);
 	private JSONFormatter formatter = new JSONFormatter();
 	private IRequestListener requestListener;
+	private RequestDispatcher requestDispatcher;
 	private int timeout = 3000;
+	private int connectTimeout = 10000;
+	private int writeDelay = 0;
+	private int writeBufferSize = 65536;
+	private int heartbeatInterval = 0;
+	private int readIdleTimeout = 0;
+	private boolean useNio = false;
+	private NioProcessorPool processorPool;
+	private int framing = FRAMING_JSON;
+	private int compression = COMPRESSION_NONE;
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private SSLContext sslContext;
+	private IoBufferAllocator bufferAllocator = CachedBufferAllocator.getDefault();
 	
 	public TcpChannel(String host) {
         setHost(host);
@@ -52,6 +139,24 @@ public class TcpChannel implements IServiceChannel {
 		requestListener = listener;
 	}
 	
+	public RequestDispatcher getRequestDispatcher() {
+		return requestDispatcher;
+	}
+	
+	/**
+	 * Sets the dispatcher running the request listener. Without one, the
+	 * default, the listener runs in the I/O thread of the connection, and
+	 * no responses are read from it meanwhile.
+	 */
+	public void setRequestDispatcher(RequestDispatcher dispatcher) {
+		requestDispatcher = dispatcher;
+	}
+	
+	/**
+	 * Sets how long in milliseconds to wait for a response. The request
+	 * fails with status 504 afterwards. 0 means no timeout. The default
+	 * is 3000. Timeouts fire up to {@link #TICK_DURATION} late.
+	 */
 	public void setTimeout(int timeout) {
 		this.timeout = timeout < 0 ? 0 : timeout;
 	}
@@ -60,8 +165,514 @@ public class TcpChannel implements IServiceChannel {
 		return timeout;
 	}
 	
-	public synchronized IServiceResponse execute(IServiceRequest request) {
-		Connector connector = getConnector();
+	/**
+	 * Checks if connections are served by shared selector threads
+	 * instead of one blocking thread per connection.
+	 */
+	public boolean isUseNio() {
+		return useNio;
+	}
+	
+	/**
+	 * Sets if connections should be served by shared selector threads
+	 * instead of one blocking thread per connection.
+	 * Only affects connections opened afterwards.
+	 */
+	public void setUseNio(boolean useNio) {
+		this.useNio = useNio;
+	}
+	
+	public int getFraming() {
+		return framing;
+	}
+	
+	/**
+	 * Sets the framing mode of new connections, either {@link #FRAMING_JSON}
+	 * or {@link #FRAMING_LENGTH_PREFIXED}.
+	 * <p>
+	 * In length-prefixed mode, a connection first asks the server to switch
+	 * by sending an <code>OPTIONS</code> request with the {@link #HEADER_FRAMING}
+	 * header. It uses length prefixes only if the server echoes the header in
+	 * a 200 response, and keeps plain JSON frames otherwise, also if no
+	 * response arrives within the connect timeout. Received frames may use
+	 * either form.
+	 * </p>
+	 */
+	public void setFraming(int framing) {
+		if (framing != FRAMING_JSON && framing != FRAMING_LENGTH_PREFIXED)
+			throw new IllegalArgumentException("framing: " + framing);
+		this.framing = framing;
+	}
+	
+	public int getCompression() {
+		return compression;
+	}
+	
+	/**
+	 * Sets the compression of new connections, either {@link #COMPRESSION_NONE}
+	 * or {@link #COMPRESSION_DEFLATE}.
+	 * <p>
+	 * Compressed frames are length-prefixed, so a connection asks for
+	 * the compression with the {@link #HEADER_COMPRESSION} header in the
+	 * <code>OPTIONS</code> request negotiating the framing, even in
+	 * {@link #FRAMING_JSON} mode. It compresses frames only if the server
+	 * echoes both headers in a 200 response. Each direction of a connection
+	 * is then a DEFLATE stream, preset with a dictionary of common Misty
+	 * JSON, so that repeated keys, headers and resources take a few bytes.
+	 * Received frames may be compressed or not.
+	 * </p>
+	 */
+	public void setCompression(int compression) {
+		if (compression != COMPRESSION_NONE && compression != COMPRESSION_DEFLATE)
+			throw new IllegalArgumentException("compression: " + compression);
+		this.compression = compression;
+	}
+	
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+	
+	/**
+	 * Sets the DEFLATE level of new connections, from 1 for the fastest
+	 * to 9 for the smallest frames. The default is -1, which is level 6.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("compressionLevel: " + compressionLevel);
+		this.compressionLevel = compressionLevel;
+	}
+	
+	public SSLContext getSslContext() {
+		return sslContext;
+	}
+	
+	/**
+	 * Sets the context of TLS connections, or null for plain connections,
+	 * the default. Only affects connections opened afterwards.
+	 * <p>
+	 * The server certificate must be trusted by the context and match the
+	 * host name. Connections of both the blocking and the NIO modes use
+	 * an {@link SSLEngine}, created with the host and port of the channel,
+	 * so that the client session cache of the context resumes the sessions
+	 * of earlier connections and skips the full handshake. Its size and
+	 * timeout are configured by {@link SSLContext#getClientSessionContext()}.
+	 * The TLS handshake is bounded by the connect timeout.
+	 * </p>
+	 * <p>
+	 * TLS connections need Java 7 or later.
+	 * </p>
+	 */
+	public void setSslContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+	
+	public boolean isUseSsl() {
+		return sslContext != null;
+	}
+	
+	/**
+	 * Sets if new connections should use TLS with the default
+	 * {@link SSLContext} of the JVM.
+	 * @see #setSslContext(SSLContext)
+	 */
+	public void setUseSsl(boolean useSsl) {
+		if (!useSsl) {
+			sslContext = null;
+		} else if (sslContext == null) {
+			try {
+				sslContext = SSLContext.getDefault();
+			} catch (java.security.NoSuchAlgorithmException ex) {
+				throw new IllegalStateException("TLS not available: " + ex.getMessage());
+			}
+		}
+	}
+	
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+	
+	/**
+	 * Sets how long in milliseconds a connection attempt may take.
+	 * 0 means no timeout. The default is 10000.
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout < 0 ? 0 : connectTimeout;
+	}
+	
+	public int getWriteDelay() {
+		return writeDelay;
+	}
+	
+	/**
+	 * Sets how long in milliseconds outbound frames may be held back to be
+	 * coalesced with later ones into a single write. A longer delay saves
+	 * system calls under load at the cost of latency. With the default of 0,
+	 * only frames queued while a write is in progress are coalesced.
+	 * In NIO mode, the delay is rounded up to {@link #TICK_DURATION}.
+	 */
+	public void setWriteDelay(int writeDelay) {
+		this.writeDelay = writeDelay < 0 ? 0 : writeDelay;
+	}
+	
+	public int getWriteBufferSize() {
+		return writeBufferSize;
+	}
+	
+	/**
+	 * Sets the number of queued bytes which triggers a write without
+	 * waiting for the write delay. The default is 65536.
+	 * Only affects connections opened afterwards.
+	 */
+	public void setWriteBufferSize(int writeBufferSize) {
+		this.writeBufferSize = writeBufferSize < 1 ? 1 : writeBufferSize;
+	}
+	
+	public int getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+	
+	/**
+	 * Sets how long in milliseconds a connection may go without sending
+	 * or receiving before it sends a heartbeat. A heartbeat is an
+	 * <code>OPTIONS</code> request, and the connection is closed if its
+	 * response does not arrive within the request timeout. This keeps
+	 * NAT mappings alive and detects half-open connections.
+	 * 0, the default, disables heartbeats.
+	 * Only affects connections opened afterwards.
+	 */
+	public void setHeartbeatInterval(int heartbeatInterval) {
+		this.heartbeatInterval = heartbeatInterval < 0 ? 0 : heartbeatInterval;
+	}
+	
+	public int getReadIdleTimeout() {
+		return readIdleTimeout;
+	}
+	
+	/**
+	 * Sets how long in milliseconds a connection may go without receiving
+	 * anything before it is closed. Should be longer than the heartbeat
+	 * interval if both are set. 0, the default, means never.
+	 * Only affects connections opened afterwards.
+	 */
+	public void setReadIdleTimeout(int readIdleTimeout) {
+		this.readIdleTimeout = readIdleTimeout < 0 ? 0 : readIdleTimeout;
+	}
+	
+	public int getRetryInterval() {
+		return pool.getBackoff().getInitialDelay();
+	}
+	
+	/**
+	 * Sets the delay in milliseconds before reconnecting after the first
+	 * failed connection attempt. The delay doubles with every further
+	 * failure, up to the maximum retry interval. The default is 1000.
+	 */
+	public void setRetryInterval(int retryInterval) {
+		pool.getBackoff().setInitialDelay(retryInterval);
+		controlPool.getBackoff().setInitialDelay(retryInterval);
+	}
+	
+	public int getMaxRetryInterval() {
+		return pool.getBackoff().getMaxDelay();
+	}
+	
+	/**
+	 * Sets the maximum delay in milliseconds between connection attempts.
+	 * The default is 60000.
+	 */
+	public void setMaxRetryInterval(int maxRetryInterval) {
+		pool.getBackoff().setMaxDelay(maxRetryInterval);
+		controlPool.getBackoff().setMaxDelay(maxRetryInterval);
+	}
+	
+	public int getFailureThreshold() {
+		return pool.getCircuitBreaker().getFailureThreshold();
+	}
+	
+	/**
+	 * Sets the number of failed connection attempts in a row after which
+	 * requests are rejected immediately with status 503, until the next
+	 * attempt is due. 0 disables it. The default is 3.
+	 */
+	public void setFailureThreshold(int failureThreshold) {
+		pool.getCircuitBreaker().setFailureThreshold(failureThreshold);
+		controlPool.getCircuitBreaker().setFailureThreshold(failureThreshold);
+	}
+	
+	/**
+	 * Checks if requests are currently rejected because the endpoint
+	 * could not be reached.
+	 */
+	public boolean isCircuitOpen() {
+		return pool.getCircuitBreaker().isOpen();
+	}
+	
+	/**
+	 * Gets the limiter of the requests in flight over all connections,
+	 * which is unlimited unless configured.
+	 */
+	public InFlightLimiter getInFlightLimiter() {
+		return inFlightLimiter;
+	}
+	
+	public int getMaxInFlightPerConnection() {
+		return pool.getMaxInFlightPerConnection();
+	}
+	
+	/**
+	 * Sets the maximum number of requests in flight on one connection.
+	 * Once all connections are full and the pool cannot grow, requests
+	 * wait for a connection up to the acquire timeout. 0, the default,
+	 * means no limit.
+	 */
+	public void setMaxInFlightPerConnection(int maxInFlightPerConnection) {
+		pool.setMaxInFlightPerConnection(maxInFlightPerConnection);
+	}
+	
+	public int getAcquireTimeout() {
+		return pool.getAcquireTimeout();
+	}
+	
+	/**
+	 * Sets how long in milliseconds a request may wait for a connection
+	 * before it fails with status 504. 0 means no limit. The default is 10000.
+	 */
+	public void setAcquireTimeout(int acquireTimeout) {
+		pool.setAcquireTimeout(acquireTimeout);
+		controlPool.setAcquireTimeout(acquireTimeout);
+	}
+	
+	public int getMinPoolSize() {
+		return pool.getMinSize();
+	}
+	
+	/**
+	 * Sets the number of connections kept open even when idle.
+	 * The default is 1.
+	 */
+	public void setMinPoolSize(int minPoolSize) {
+		pool.setMinSize(minPoolSize);
+	}
+	
+	public int getMaxPoolSize() {
+		return pool.getMaxSize();
+	}
+	
+	/**
+	 * Sets the maximum number of connections. Requests are spread over
+	 * the connections by their numbers of requests in flight, and a new
+	 * connection is opened when all are busy. The default is 1.
+	 */
+	public void setMaxPoolSize(int maxPoolSize) {
+		pool.setMaxSize(maxPoolSize);
+	}
+	
+	public int getIdleTimeout() {
+		return pool.getIdleTimeout();
+	}
+	
+	/**
+	 * Sets how long in milliseconds a connection may be idle before it is
+	 * closed, unless needed to keep the minimum pool size. 0 means never.
+	 * The default is 60000.
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		pool.setIdleTimeout(idleTimeout);
+		controlPool.setIdleTimeout(idleTimeout);
+	}
+	
+	public int getValidationInterval() {
+		return pool.getValidationInterval();
+	}
+	
+	/**
+	 * Sets how long in milliseconds a connection may be idle before it
+	 * is validated by an <code>OPTIONS</code> request. A connection is
+	 * closed if the request times out. 0, the default, disables validation.
+	 */
+	public void setValidationInterval(int validationInterval) {
+		pool.setValidationInterval(validationInterval);
+		controlPool.setValidationInterval(validationInterval);
+	}
+	
+	public int getControlPoolSize() {
+		return controlPool.getMaxSize();
+	}
+	
+	/**
+	 * Sets the number of connections reserved for requests of
+	 * {@link #PRIORITY_CONTROL}. 0 means none, so that all requests
+	 * share the same connections. The default is 1.
+	 * <p>
+	 * Frames are written and read in order on a connection, so a command
+	 * sent after a large request, or answered after a large response,
+	 * waits until it is through. Control requests thus go over their own
+	 * connections, opened with the first of them and kept open afterwards.
+	 * They are not held back by the write delay, nor counted by the
+	 * {@link #getInFlightLimiter() in-flight limiter}.
+	 * </p>
+	 */
+	public void setControlPoolSize(int controlPoolSize) {
+		if (controlPoolSize < 0)
+			throw new IllegalArgumentException("controlPoolSize: " + controlPoolSize);
+		if (controlPoolSize > 0)
+			controlPool.setMaxSize(controlPoolSize);
+		controlPool.setMinSize(controlPoolSize);
+	}
+	
+	public synchronized String[] getControlMethods() {
+		return (String[]) controlMethods.clone();
+	}
+	
+	/**
+	 * Sets the methods of the requests of {@link #PRIORITY_CONTROL}.
+	 * The default is <code>CMD</code>, the method of device commands.
+	 */
+	public synchronized void setControlMethods(String[] controlMethods) {
+		this.controlMethods = (String[]) controlMethods.clone();
+	}
+	
+	/**
+	 * Gets the priority of a request, {@link #PRIORITY_CONTROL} if its
+	 * method is one of the control methods, or {@link #PRIORITY_BULK}.
+	 * Subclasses may classify requests otherwise.
+	 */
+	protected int getPriority(IServiceRequest request) {
+		String[] methods;
+		synchronized (this) {
+			methods = controlMethods;
+		}
+		for (int i = 0; i < methods.length; i++) {
+			if (methods[i].equals(request.getMethod()))
+				return PRIORITY_CONTROL;
+		}
+		return PRIORITY_BULK;
+	}
+	
+	/**
+	 * Opens the minimum number of connections in the background,
+	 * so that the first requests do not wait for them.
+	 */
+	public void warmUp() {
+		pool.warmUp();
+	}
+	
+	/**
+	 * Gets the statistics of the connection pool.
+	 */
+	public ConnectionPoolStats getPoolStats() {
+		return pool.getStats();
+	}
+	
+	/**
+	 * Gets the statistics of the connections reserved for control requests.
+	 */
+	public ConnectionPoolStats getControlPoolStats() {
+		return controlPool.getStats();
+	}
+	
+	/**
+	 * Closes all connections. Requests in flight fail with status 502.
+	 */
+	public void close() {
+		pool.close();
+		controlPool.close();
+	}
+	
+	/**
+	 * Gets the allocator of the buffers connections read into and
+	 * encode frames into.
+	 */
+	public synchronized IoBufferAllocator getBufferAllocator() {
+		return bufferAllocator;
+	}
+	
+	/**
+	 * Sets the allocator of the buffers connections read into and encode
+	 * frames into. All channels share {@link CachedBufferAllocator#getDefault()}
+	 * unless set. If null, buffers are allocated anew every time.
+	 * Only affects connections opened afterwards.
+	 */
+	public synchronized void setBufferAllocator(IoBufferAllocator allocator) {
+		this.bufferAllocator = allocator == null ? new SimpleBufferAllocator() : allocator;
+	}
+	
+	/**
+	 * Gets the selector threads used in NIO mode.
+	 */
+	public synchronized NioProcessorPool getProcessorPool() {
+		if (processorPool == null)
+			processorPool = NioProcessorPool.getDefault();
+		return processorPool;
+	}
+	
+	/**
+	 * Sets the selector threads used in NIO mode.
+	 * All channels share {@link NioProcessorPool#getDefault()} unless set.
+	 */
+	public synchronized void setProcessorPool(NioProcessorPool processorPool) {
+		this.processorPool = processorPool;
+	}
+	
+	/**
+	 * Executes a request over a shared connection. Any number of threads
+	 * may have requests in flight on the same connection at the same time;
+	 * responses are matched to requests by their tokens.
+	 */
+	public IServiceResponse execute(IServiceRequest request) {
+		ServiceFuture future = executeAsync(request, null);
+		try {
+			future.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw ServiceException.error(e);
+		}
+		
+		ServiceException ex = future.getException();
+		if (ex == null)
+			return (IServiceResponse) future.getResult();
+		else if (ex.getStatus() == ServiceException.GATEWAY_TIMEOUT)
+			return null;
+		else
+			throw ex;
+	}
+	
+	/**
+	 * Sends a request without waiting for its response. The future is
+	 * completed in the I/O thread when the response arrives, or failed
+	 * when the timeout elapses. The caller may still be blocked while
+	 * the first connection is being established, up to the acquire timeout.
+	 */
+	public ServiceFuture executeAsync(IServiceRequest request, IServiceCallback callback) {
+		ServiceFuture future = new ServiceFuture(callback);
+		boolean control = controlPool.getMinSize() > 0 && getPriority(request) == PRIORITY_CONTROL;
+		InFlightLimiter limiter = control ? null : inFlightLimiter;
+		
+		if (limiter != null) {
+			try {
+				limiter.acquire();
+			} catch (ServiceException ex) {
+				future.fail(ex);
+				return future;
+			}
+		}
+		
+		Connector connector;
+		try {
+			connector = getConnector(control ? controlPool : pool);
+		} catch (ServiceException ex) {
+			if (limiter != null)
+				limiter.release();
+			future.fail(ex);
+			return future;
+		}
+		if (connector == null) {
+			if (limiter != null)
+				limiter.release();
+			future.fail(ServiceException.error(new InterruptedException()));
+			return future;
+		}
+		future.addCallback(new Release(connector, limiter));
 		
 		request.getHeaders().put(MistyService.HEADER_CONTENT_TYPE,
 				MistyService.getContentType(request.getFormat()));
@@ -74,243 +685,964 @@ public class TcpChannel implements IServiceChannel {
         	request.getHeaders().put(pair.getKey(), pair.getValue());
         }
 		
-		Pair pair = connector.execute(request);
-		connector.free();
+		connector.execute(request, future);
 		
-		return pair.getResponse();
+		return future;
 	}
 	
-	private synchronized Connector getConnector() {
-		while (true) {
-			for (Iterator it = pool.iterator(); it.hasNext(); ) {
-				Connector c = (Connector) it.next();
-				if (c.isFree() && c.isConnected()) {
-					c.take();
-					return c;
+	/**
+	 * Gets the executor sending the probes of blocking connections, so
+	 * that a write blocked on one connection does not hold up the timer
+	 * shared by all channels.
+	 */
+	private static synchronized ExecutorService getProbeExecutor() {
+		if (probeExecutor == null) {
+			probeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Misty-TcpChannel-Probe-" + nextProbeThreadId());
+					t.setDaemon(true);
+					return t;
 				}
-			}
-			
-			if (pool.size() < maxPoolSize) {
-				final Connector c = new Connector();
-				pool.add(c);
-				Thread t = new Thread(c);
-				t.setDaemon(true);
-				t.start();
-				
-				if (c.isConnected()) {
-					c.take();
-					return c;
-				}
-			}
-			
-			try {
-				wait(3000);
-			} catch (InterruptedException e) {
-				break;
-			}
+			});
 		}
-		return null;
+		return probeExecutor;
+	}
+	
+	private static synchronized int nextProbeThreadId() {
+		return ++probeThreadCount;
+	}
+	
+	/**
+	 * Gets how long to wait for the response to a probe. Nothing received
+	 * for the read idle timeout closes the connection anyway, otherwise a
+	 * heartbeat must be answered before the next one is due.
+	 */
+	private int getProbeTimeout() {
+		if (readIdleTimeout > 0)
+			return readIdleTimeout;
+		if (heartbeatInterval > 0)
+			return heartbeatInterval;
+		return timeout > 0 ? timeout : DEFAULT_PROBE_TIMEOUT;
 	}
 	
-	private synchronized void removeConnector(Connector c, Exception ex) {
-		System.out.println("Removing connector " + ex.getMessage());
+	private static Connector getConnector(ConnectorPool pool) {
 		try {
-			c.close();
-		} catch (IOException e) {
-			System.out.println("Removing connector " + e);
+			return pool.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
 		}
-		pool.remove(c);
 	}
 	
-	private synchronized void wakeup() {
-		notifyAll();
+	Connector newConnector(ConnectorPool pool) {
+		return useNio ? (Connector) new NioConnector(pool, getProcessorPool().next())
+				: new SocketConnector(pool);
 	}
-
-	private boolean waitRetry() {
-		if (retryInterval > 0) {
-			try {
-				Thread.sleep(retryInterval);
-			} catch (InterruptedException ex) {
-				return false;
-			}
-			return true;
-		} else {
-			return false;
+	
+	private static void removeConnector(Connector c, Exception ex) {
+		c.pool.remove(c, ex);
+	}
+	
+	
+	/**
+	 * Returns the permits of a request when it is done.
+	 */
+	private static class Release implements IServiceCallback {
+		private final Connector connector;
+		private final InFlightLimiter limiter;
+		
+		/**
+		 * @param limiter the limiter the request took a permit from, or null
+		 */
+		public Release(Connector connector, InFlightLimiter limiter) {
+			this.connector = connector;
+			this.limiter = limiter;
+		}
+		
+		public void completed(Object result) {
+			release();
+		}
+		
+		public void failed(ServiceException e) {
+			release();
+		}
+		
+		private void release() {
+			connector.release();
+			if (limiter != null)
+				limiter.release();
 		}
 	}
 	
-	class Pair {
-		IServiceRequest request;
-		private IServiceResponse response;
+	/**
+	 * A request waiting for its response.
+	 */
+	class Pair implements Runnable {
+		final String token;
+		final ServiceFuture future;
+		private final Connector connector;
+		private volatile HashedWheelTimer.Timeout timeoutHandle;
 		
-		public Pair(IServiceRequest request) {
-			this.request = request;
+		public Pair(String token, ServiceFuture future, Connector connector) {
+			this.token = token;
+			this.future = future;
+			this.connector = connector;
 		}
 		
-		public synchronized IServiceResponse getResponse() {
-			if (response == null) {
-				notifyAll();
-				try {
-					wait(timeout);
-				} catch (InterruptedException e) {
-					// ignore
-				}
-			}
-			return response;
+		/**
+		 * Starts the timeout of this request.
+		 */
+		public void schedule(long delay) {
+			timeoutHandle = timeouts.newTimeout(this, delay);
+			if (future.isDone())
+				cancel();
+		}
+		
+		private void cancel() {
+			HashedWheelTimer.Timeout handle = timeoutHandle;
+			if (handle != null)
+				handle.cancel();
+		}
+		
+		public void setResponse(IServiceResponse response) {
+			future.complete(response);
+			cancel();
+		}
+		
+		public void setException(ServiceException e) {
+			future.fail(e);
+			cancel();
 		}
 		
-		public synchronized void setResponse(IServiceResponse response) {
-			this.response = response;
-			notifyAll();
+		/**
+		 * Expires the request when the timeout elapses.
+		 */
+		public void run() {
+			connector.waitingRequests.remove(token);
+			future.fail(ServiceException.timeout("No response in " + timeout + " ms"));
 		}
 	}
 	
-	class Connector implements Runnable {
-		private Socket socket;
-		private boolean connected = false;
-		private boolean free = true;
-		private Map waitingRequests = new HashMap();
+	abstract class Connector {
+		/** the pool this connector belongs to */
+		protected final ConnectorPool pool;
+		protected volatile boolean connected = false;
+		protected volatile boolean closed = false;
+		private volatile long lastActive = System.currentTimeMillis();
+		private volatile long lastRead = lastActive;
+		private volatile long lastWrite = lastActive;
+		private volatile boolean probing;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private TimerTask idleTask;
+		private Map waitingRequests = new ConcurrentHashMap();
+		private final IoBufferAllocator allocator = bufferAllocator;
+		private IoBuffer packetBuffer = allocator.allocate(RECEIVE_BUFFER_SIZE, false);
+		private final FrameCompressor compressor = compression == COMPRESSION_DEFLATE
+				? new FrameCompressor(allocator, compressionLevel) : null;
+		private IFrameDecoder decoder = framing == FRAMING_LENGTH_PREFIXED || compressor != null
+				? (IFrameDecoder) new LengthPrefixedFrameDecoder(compressor) : new JsonFrameDecoder();
+		private List frames = new ArrayList();
+		private volatile boolean lengthPrefixed;
+		private int readChunkSize = READ_CHUNK_SIZE;
+		protected volatile SslByteChannel ssl;
+		protected final WriteQueue writeQueue = new WriteQueue(writeBufferSize);
+		
+		protected Connector(ConnectorPool pool) {
+			this.pool = pool;
+		}
 		
-		public boolean isFree() {
-			return free;
+		/**
+		 * Gets how long outbound frames may be held back, which is 0
+		 * for the connections reserved for control requests.
+		 */
+		protected int getWriteDelay() {
+			return pool == controlPool ? 0 : writeDelay;
 		}
 		
 		public boolean isConnected() {
 			return connected;
 		}
 		
-		public void take() {
-			free = false;
+		/**
+		 * Called when the socket is connected. Negotiates the framing
+		 * and compression if needed before the connector can be used.
+		 */
+		protected void connected() {
+			if (framing == FRAMING_LENGTH_PREFIXED || compressor != null)
+				negotiateFraming();
+			else
+				ready();
+		}
+		
+		/**
+		 * Marks this connector as connected and wakes up the callers
+		 * waiting for a connection.
+		 */
+		private void ready() {
+			connected = true;
+			startIdleTimer();
+			pool.connected(this);
+		}
+		
+		private void negotiateFraming() {
+			ServiceRequestImpl request = newOptionsRequest();
+			request.getHeaders().put(HEADER_FRAMING, FRAMING_LENGTH_PREFIXED_NAME);
+			if (compressor != null)
+				request.getHeaders().put(HEADER_COMPRESSION, COMPRESSION_DEFLATE_NAME);
+			
+			// bounded even without a request timeout, since no caller
+			// can use this connector until it is ready
+			int negotiationTimeout = connectTimeout > 0 ? connectTimeout
+					: timeout > 0 ? timeout : DEFAULT_PROBE_TIMEOUT;
+			execute(request, new ServiceFuture(new IServiceCallback() {
+				public void completed(Object result) {
+					IServiceResponse response = (IServiceResponse) result;
+					lengthPrefixed = response.getStatus() == 200
+							&& FRAMING_LENGTH_PREFIXED_NAME.equals(response.getHeaders().get(HEADER_FRAMING));
+					if (lengthPrefixed && compressor != null
+							&& COMPRESSION_DEFLATE_NAME.equals(response.getHeaders().get(HEADER_COMPRESSION)))
+						writeQueue.setCompressor(compressor);
+					ready();
+				}
+				
+				public void failed(ServiceException e) {
+					// keeps plain JSON frames
+					if (e.getStatus() == ServiceException.GATEWAY_TIMEOUT)
+						ready();
+				}
+			}), negotiationTimeout);
+		}
+		
+		/**
+		 * Gets the number of requests given this connector by the pool
+		 * and not done yet.
+		 */
+		public int getInFlight() {
+			return inFlight.get();
+		}
+		
+		void reserve() {
+			inFlight.incrementAndGet();
+		}
+		
+		void release() {
+			inFlight.decrementAndGet();
+			pool.released();
+		}
+		
+		/**
+		 * Gets the last time data was sent or received.
+		 */
+		public long getLastActive() {
+			return lastActive;
+		}
+		
+		/**
+		 * Starts connecting to the remote address.
+		 */
+		public abstract void start();
+		
+		/**
+		 * Checks if the socket is still open.
+		 */
+		public abstract boolean isOpen();
+		
+		/**
+		 * Closes the socket. Requests in flight fail at once.
+		 * @param reason why the connector is closed
+		 */
+		public void close(Exception reason) throws IOException {
+			closed = true;
+			connected = false;
+			synchronized (this) {
+				if (idleTask != null)
+					idleTask.cancel();
+			}
+			try {
+				closeSocket();
+			} finally {
+				writeQueue.clear();
+				if (compressor != null)
+					compressor.end();
+				failPending(reason);
+			}
+		}
+		
+		private void failPending(Exception reason) {
+			for (Iterator it = waitingRequests.keySet().iterator(); it.hasNext(); ) {
+				Pair pair = (Pair) waitingRequests.remove(it.next());
+				if (pair != null)
+					pair.setException(connectionLost(reason));
+			}
 		}
 		
-		public void free() {
-			free = true;
-			wakeup();
+		/**
+		 * Fails a request which may have been sent already.
+		 */
+		private ServiceException connectionLost(Exception reason) {
+			return ServiceException.connectionLost("Connection lost: " + reason.getMessage());
+		}
+		
+		private synchronized void startIdleTimer() {
+			int period = 0;
+			if (heartbeatInterval > 0)
+				period = heartbeatInterval;
+			if (readIdleTimeout > 0 && (period == 0 || readIdleTimeout < period))
+				period = readIdleTimeout;
+			if (period == 0 || closed)
+				return;
+			
+			period = Math.max(period / 4, 100);
+			idleTask = new TimerTask() {
+				public void run() {
+					checkIdle();
+				}
+			};
+			timer.schedule(idleTask, period, period);
+		}
+		
+		/**
+		 * Closes this connector if nothing was received for too long,
+		 * or sends a heartbeat if it has been quiet.
+		 */
+		private void checkIdle() {
+			long now = System.currentTimeMillis();
+			if (readIdleTimeout > 0 && now - lastRead >= readIdleTimeout) {
+				removeConnector(this, new IOException("Nothing received in " + readIdleTimeout + " ms"));
+			} else if (heartbeatInterval > 0
+					&& (now - lastRead >= heartbeatInterval || now - lastWrite >= heartbeatInterval)) {
+				probe("Heartbeat timed out");
+			}
 		}
 		
-		private synchronized void setResponse(IServiceResponse response) {
+		protected abstract void closeSocket() throws IOException;
+		
+		/**
+		 * Creates the TLS layer over a connected socket. Reads are then
+		 * sized to hold a whole TLS record.
+		 */
+		protected SslByteChannel newSslChannel(SocketChannel socketChannel) {
+			SSLEngine engine = sslContext.createSSLEngine(address.getHostString(), address.getPort());
+			engine.setUseClientMode(true);
+			SSLParameters params = engine.getSSLParameters();
+			params.setEndpointIdentificationAlgorithm("HTTPS");
+			engine.setSSLParameters(params);
+			
+			SslByteChannel channel = new SslByteChannel(engine, socketChannel);
+			readChunkSize = Math.max(READ_CHUNK_SIZE, channel.getApplicationBufferSize());
+			ssl = channel;
+			return channel;
+		}
+		
+		protected void handshakeCompleted() {
+			System.out.println((ssl.isSessionResumed() ? "Resumed" : "Established")
+					+ " TLS session with " + address);
+		}
+		
+		/**
+		 * Queues an encoded frame to be written to the socket.
+		 * Frames written concurrently must not be interleaved.
+		 */
+		protected abstract void write(IoBuffer frame) throws IOException;
+		
+		private void setResponse(IServiceResponse response) {
+			if (response.getToken() == null)
+				return;
 			Pair pair = (Pair) waitingRequests.remove(response.getToken());
 			if (pair != null)
 				pair.setResponse(response);
 		}
 		
 		private void processRequest(IServiceRequest request) {
-			if (requestListener != null) {
-				IServiceResponse response = requestListener.process(request);
-				if (response != null) {
-					if (response.getToken() == null)
-						response.setToken(request.getToken());
-					send(response);
-				}
+			if ("OPTIONS".equals(request.getMethod()) && request.getHeaders().get(HEADER_FRAMING) == null) {
+				// heartbeat from the peer
+				send(newResponse(200, request.getToken()));
+				return;
+			}
+			
+			final IRequestListener listener = requestListener;
+			if (listener == null)
+				return;
+			
+			RequestDispatcher dispatcher = requestDispatcher;
+			if (dispatcher == null) {
+				process(listener, request);
+			} else {
+				final IServiceRequest req = request;
+				boolean accepted = dispatcher.dispatch(request.getResource(), new Runnable() {
+					public void run() {
+						process(listener, req);
+					}
+				});
+				if (!accepted)
+					send(newResponse(ServiceException.SERVICE_UNAVAILABLE, request.getToken()));
 			}
 		}
 		
-		private IoBuffer packetBuffer = IoBuffer.allocate(10240).setAutoExpand(true);
-		private byte[] byteBuffer = new byte[1];
-        private int counter;
-        
-        public void close() throws IOException {
-        	if (socket != null)
-        		socket.close();
-        }
-        
-		public void run() {
-			while (true) {
-				System.out.println("Connecting to " + address);
-				try {
-					socket = new Socket();
-					socket.connect(address);
-				} catch (IOException ex) {
-					socket = null;
+		private void process(IRequestListener listener, IServiceRequest request) {
+			IServiceResponse response = listener.process(request);
+			if (response != null) {
+				if (response.getToken() == null)
+					response.setToken(request.getToken());
+				send(response);
+			}
+		}
+		
+		private IServiceResponse newResponse(int status, String token) {
+			JSONObject json = new JSONObject();
+			json.put("status", status);
+			IServiceResponse response = new JsonResponse(json);
+			response.setToken(token);
+			return response;
+		}
+		
+		/**
+		 * Checks that the peer still responds by sending an <code>OPTIONS</code>
+		 * request. Any response proves the connection alive, while a timeout
+		 * closes it.
+		 */
+		public void validate() {
+			probe("Validation timed out");
+		}
+		
+		/**
+		 * Sends an <code>OPTIONS</code> request unless one is already
+		 * in flight, closing this connector if it times out.
+		 */
+		private void probe(final String timeoutMessage) {
+			synchronized (this) {
+				if (probing || closed)
+					return;
+				probing = true;
+			}
+			
+			final ServiceFuture future = new ServiceFuture(new IServiceCallback() {
+				public void completed(Object result) {
+					probing = false;
 				}
 				
-				if (socket == null) {
-					if (waitRetry())
-						continue;
-				} else {
-					connected = true;
+				public void failed(ServiceException e) {
+					probing = false;
+					if (e.getStatus() == ServiceException.GATEWAY_TIMEOUT)
+						removeConnector(Connector.this, new IOException(timeoutMessage));
 				}
-				
-				break;
+			});
+			try {
+				sendFromTimer(new Runnable() {
+					public void run() {
+						execute(newOptionsRequest(), future, getProbeTimeout());
+					}
+				});
+			} catch (RejectedExecutionException ex) {
+				probing = false;
+			}
+		}
+		
+		/**
+		 * Runs a task sending a request for a timer thread, which must
+		 * not block. Runs it at once by default, as frames are queued
+		 * without blocking.
+		 */
+		protected void sendFromTimer(Runnable task) {
+			task.run();
+		}
+		
+		private ServiceRequestImpl newOptionsRequest() {
+			ServiceRequestImpl request = new ServiceRequestImpl();
+			request.setMethod("OPTIONS");
+			request.setResource("/");
+			return request;
+		}
+		
+		/**
+		 * Gets the buffer to read into, making room for at least
+		 * {@link TcpChannel#READ_CHUNK_SIZE} more bytes, or a whole
+		 * TLS record.
+		 */
+		protected IoBuffer receiveBuffer() {
+			int required = packetBuffer.position() + readChunkSize;
+			if (required > packetBuffer.capacity())
+				packetBuffer.capacity(IoBuffer.normalizeCapacity(required));
+			packetBuffer.limit(packetBuffer.capacity());
+			return packetBuffer;
+		}
+		
+		/**
+		 * Returns the receive buffer to the allocator. Called by the
+		 * thread reading from the socket once the connector is closed.
+		 */
+		protected void freeReceiveBuffer() {
+			if (packetBuffer != null) {
+				packetBuffer.free();
+				packetBuffer = null;
+			}
+		}
+		
+		/**
+		 * Decodes the bytes read into {@link #receiveBuffer()} and
+		 * dispatches all completed packets.
+		 */
+		protected void received() throws IOException {
+			lastActive = System.currentTimeMillis();
+			lastRead = lastActive;
+			packetBuffer.flip();
+			try {
+				decoder.decode(packetBuffer, frames);
+			} finally {
+				packetBuffer.compact();
 			}
 			
-			if (connected) {
-				free();
-				
-				InputStream in;
+			try {
+				for (Iterator it = frames.iterator(); it.hasNext(); ) {
+					JSONObject jsonObj = new JSONObject((String) it.next());
+					if (jsonObj.has("status"))
+						setResponse(new JsonResponse(jsonObj));
+					else if (jsonObj.has("method"))
+						processRequest(new JsonRequest(jsonObj));
+				}
+			} finally {
+				frames.clear();
+			}
+		}
+		
+		public void execute(IServiceRequest request, ServiceFuture future) {
+			execute(request, future, timeout);
+		}
+		
+		/**
+		 * Sends a request.
+		 * @param timeout how long in milliseconds to wait for the response,
+		 *        or 0 for no limit
+		 */
+		public void execute(IServiceRequest request, ServiceFuture future, int timeout) {
+			if (request.getToken() == null) {
+				future.fail(new ServiceException(ServiceException.BAD_REQUEST, "Missing request token"));
+				return;
+			}
+			
+			// formatted before it waits for a response, so that a body
+			// which cannot be formatted leaves nothing behind
+			IoBufferWriter writer = newFrameWriter();
+			try {
+				formatter.format(writer, request);
+			} catch (RuntimeException ex) {
+				writer.getBuffer().free();
+				future.fail(ex instanceof ServiceException ? (ServiceException) ex : ServiceException.error(ex));
+				return;
+			}
+			
+			Pair pair = new Pair(request.getToken(), future, this);
+			waitingRequests.put(pair.token, pair);
+			if (closed) {
+				writer.getBuffer().free();
+				// not sent, so another connection may take it
+				if (waitingRequests.remove(pair.token) != null)
+					pair.setException(ServiceException.unavailable("Connection closed"));
+				return;
+			}
+			if (timeout > 0)
+				pair.schedule(timeout);
+			
+			try {
+				lastActive = System.currentTimeMillis();
+				lastWrite = lastActive;
+				write(toFrame(writer.getBuffer()));
+			} catch (IOException ex) {
+				if (waitingRequests.remove(pair.token) != null)
+					pair.setException(connectionLost(ex));
+				removeConnector(this, ex);
+			}
+		}
+		
+		private void send(IServiceResponse response) {
+			IoBufferWriter writer = newFrameWriter();
+			formatter.format(writer, response);
+			
+			try {
+				lastWrite = System.currentTimeMillis();
+				write(toFrame(writer.getBuffer()));
+			} catch (IOException ex) {
+				removeConnector(this, ex);
+			}
+		}
+		
+		/**
+		 * Creates a writer which encodes a frame as UTF-8 straight into
+		 * a buffer, reserving room for the length prefix if needed.
+		 */
+		private IoBufferWriter newFrameWriter() {
+			IoBuffer buf = allocator.allocate(FRAME_BUFFER_SIZE, false);
+			if (lengthPrefixed)
+				buf.position(LengthPrefixedFrameDecoder.PREFIX_LENGTH);
+			return new IoBufferWriter(buf);
+		}
+		
+		/**
+		 * Flips an encoded frame for writing, filling in the length
+		 * prefix if needed.
+		 */
+		private IoBuffer toFrame(IoBuffer buf) {
+			buf.flip();
+			if (lengthPrefixed)
+				buf.putInt(0, buf.limit() - LengthPrefixedFrameDecoder.PREFIX_LENGTH);
+			return buf;
+		}
+	}
+	
+	/**
+	 * Connector with a blocking socket and a dedicated reader thread.
+	 * Frames are written by the first caller finding the write queue
+	 * empty, together with those queued by other callers meanwhile.
+	 * The socket is written under a {@link ReentrantLock}, which a
+	 * virtual thread blocked in the write does not pin to its carrier.
+	 */
+	class SocketConnector extends Connector implements Runnable {
+		private final ReentrantLock writeLock = new ReentrantLock();
+		private SocketChannel socketChannel;
+		
+		public SocketConnector(ConnectorPool pool) {
+			super(pool);
+		}
+		
+		public void start() {
+			Thread t = new Thread(this);
+			t.setDaemon(true);
+			t.start();
+		}
+		
+		public boolean isOpen() {
+			SocketChannel sc = socketChannel;
+			return sc != null && sc.isOpen() && !sc.socket().isInputShutdown();
+		}
+		
+		protected void closeSocket() throws IOException {
+			if (ssl != null)
+				ssl.close();
+			else if (socketChannel != null)
+				socketChannel.close();
+		}
+		
+		/**
+		 * Sends from a thread of the probe executor, since writing to the
+		 * blocking socket stalls while its send buffer is full.
+		 */
+		protected void sendFromTimer(Runnable task) {
+			getProbeExecutor().execute(task);
+		}
+		
+		protected void write(IoBuffer frame) throws IOException {
+			if (writeQueue.add(frame) != WriteQueue.FIRST)
+				return;
+			
+			int delay = getWriteDelay();
+			if (delay > 0) {
 				try {
-					in = socket.getInputStream();
+					writeQueue.linger(delay);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			
+			writeLock.lock();
+			try {
+				if (ssl != null)
+					writeQueue.flush(ssl);
+				else
+					writeQueue.flush(socketChannel);
+			} finally {
+				writeLock.unlock();
+			}
+		}
+		
+		public void run() {
+			try {
+				connectAndRead();
+			} finally {
+				freeReceiveBuffer();
+			}
+		}
+		
+		private void connectAndRead() {
+			if (closed)
+				return;
+			
+			System.out.println("Connecting to " + address);
+			try {
+				SocketChannel sc = SocketChannel.open();
+				socketChannel = sc;
+				sc.socket().connect(address, connectTimeout);
+				if (sslContext != null)
+					handshake();
+			} catch (IOException ex) {
+				pool.connectFailed(this, ex);
+				return;
+			}
+			
+			connected();
+			
+			while (socketChannel.isOpen()) {
+				try {
+					int read = ssl != null ? ssl.read(receiveBuffer().buf())
+							: socketChannel.read(receiveBuffer().buf());
+					if (read < 0)
+						throw new IOException("EOF");
+					received();
 				} catch (IOException ex) {
 					removeConnector(this, ex);
+				} catch (RuntimeException ex) {
+					removeConnector(this, ex);
+				}
+			}
+		}
+		
+		/**
+		 * Runs the TLS handshake, closing the socket if it takes
+		 * longer than the connect timeout.
+		 */
+		private void handshake() throws IOException {
+			SslByteChannel channel = newSslChannel(socketChannel);
+			HashedWheelTimer.Timeout timeout = null;
+			if (connectTimeout > 0) {
+				timeout = timeouts.newTimeout(new Runnable() {
+					public void run() {
+						try {
+							socketChannel.close();
+						} catch (IOException ignored) {
+						}
+					}
+				}, connectTimeout);
+			}
+			
+			try {
+				channel.beginHandshake();
+				if (!channel.handshake())
+					throw new SSLException("Handshake incomplete");
+			} catch (IOException ex) {
+				if (timeout != null && timeout.isExpired())
+					throw new IOException("Handshake with " + address + " timed out");
+				throw ex;
+			} finally {
+				if (timeout != null)
+					timeout.cancel();
+			}
+			handshakeCompleted();
+		}
+	}
+	
+	/**
+	 * Connector with a non-blocking socket driven by a shared {@link NioProcessor}.
+	 */
+	class NioConnector extends Connector implements NioProcessor.IHandler {
+		private final NioProcessor processor;
+		private SocketChannel socketChannel;
+		/** true until the TLS handshake is done, if any */
+		private volatile boolean handshaking = sslContext != null;
+		private final Runnable flushTask = new Runnable() {
+			public void run() {
+				if (!socketChannel.isOpen())
 					return;
+				try {
+					flush();
+				} catch (IOException ex) {
+					failed(ex);
 				}
-				
-				while (!socket.isClosed()) {
-					try {
-						int bytesToRead = in.available();
-						if (bytesToRead == 0)
-							bytesToRead = 1;
-						for (int i = 0; i < bytesToRead; i++) {
-							int read = in.read(byteBuffer, 0, 1);
-							if (read < 0)
-								throw new IOException("EOF");
-							else if (read == 0)
-								continue;
-							
-							packetBuffer.put(byteBuffer[0]);
-							
-							if ('{' == byteBuffer[0]) {
-								counter++;
-							} else if ('}' == byteBuffer[0]) {
-								counter--;
-								
-								if (counter == 0) {
-									packetBuffer.flip();
-									String json = new String(packetBuffer.array(), packetBuffer.arrayOffset(), packetBuffer.limit(), "utf-8");
-									JSONObject jsonObj = new JSONObject(json);
-									if (jsonObj.has("status"))
-										setResponse(new JsonResponse(jsonObj));
-									else if (jsonObj.has("method"))
-										processRequest(new JsonRequest(jsonObj));
-									packetBuffer.clear();
-									break;
+			}
+		};
+		private final Runnable freeTask = new Runnable() {
+			public void run() {
+				freeReceiveBuffer();
+			}
+		};
+		
+		public NioConnector(ConnectorPool pool, NioProcessor processor) {
+			super(pool);
+			this.processor = processor;
+		}
+		
+		public void start() {
+			System.out.println("Connecting to " + address);
+			try {
+				socketChannel = SocketChannel.open();
+				socketChannel.configureBlocking(false);
+				if (socketChannel.connect(address)) {
+					processor.register(socketChannel, SelectionKey.OP_READ, this);
+					if (handshaking) {
+						processor.execute(new Runnable() {
+							public void run() {
+								try {
+									startHandshake();
+								} catch (IOException ex) {
+									failed(ex);
 								}
 							}
-						}
-					} catch (IOException ex) {
-						removeConnector(this, ex);
+						});
+					} else {
+						connected();
 					}
+				} else {
+					processor.register(socketChannel, SelectionKey.OP_CONNECT, this);
+				}
+				if (connectTimeout > 0 && (handshaking || !socketChannel.isConnected()))
+					timeouts.newTimeout(new Runnable() {
+						public void run() {
+							connectTimedOut();
+						}
+					}, connectTimeout);
+			} catch (IOException ex) {
+				pool.connectFailed(this, ex);
+			}
+		}
+		
+		private void connectTimedOut() {
+			processor.execute(new Runnable() {
+				public void run() {
+					if (closed || connected || (socketChannel.isConnected() && !handshaking))
+						return;
+					SelectionKey key = processor.keyFor(socketChannel);
+					if (key != null)
+						key.cancel();
+					failed(new IOException("Connection to " + address + " timed out"));
 				}
+			});
+		}
+		
+		public boolean isOpen() {
+			return socketChannel != null && socketChannel.isOpen();
+		}
+		
+		protected void closeSocket() throws IOException {
+			try {
+				if (ssl != null)
+					ssl.close();
+				else if (socketChannel != null)
+					socketChannel.close();
+			} finally {
+				// the I/O thread may still be reading into the buffer
+				if (processor.inProcessorThread())
+					freeReceiveBuffer();
+				else
+					processor.execute(freeTask);
 			}
 		}
 		
-		public synchronized Pair execute(IServiceRequest request) {
-			Pair pair = new Pair(request);
-			waitingRequests.put(request.getToken(), pair);
+		protected void write(IoBuffer frame) throws IOException {
+			if (!socketChannel.isOpen())
+				throw new IOException("Connection closed");
 			
-			ByteArrayOutputStream stream = new ByteArrayOutputStream();
-			formatter.format(stream, request);
+			int state = writeQueue.add(frame);
+			int delay = getWriteDelay();
+			if (state == WriteQueue.FIRST && delay > 0 && !writeQueue.isFull()) {
+				timeouts.newTimeout(new Runnable() {
+					public void run() {
+						processor.execute(flushTask);
+					}
+				}, delay);
+			} else if (state != WriteQueue.PENDING) {
+				processor.execute(flushTask);
+			}
+		}
+		
+		/**
+		 * Writes as much queued data as the socket accepts. Called in the I/O thread.
+		 */
+		private void flush() throws IOException {
+			if (handshaking)
+				return;
 			
-			try {
-				socket.getOutputStream().write(stream.toByteArray());
-			} catch (IOException ex) {
-				removeConnector(this, ex);
-				return null;
+			boolean drained;
+			if (ssl != null)
+				drained = ssl.flush() && writeQueue.flush(ssl) && ssl.flush();
+			else
+				drained = writeQueue.flush(socketChannel);
+			setWriteInterest(!drained);
+		}
+		
+		private void setWriteInterest(boolean write) {
+			SelectionKey key = processor.keyFor(socketChannel);
+			if (key != null && key.isValid()) {
+				if (write)
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				else
+					key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+		
+		private void startHandshake() throws IOException {
+			newSslChannel(socketChannel).beginHandshake();
+			continueHandshake();
+		}
+		
+		/**
+		 * Continues the TLS handshake as far as the socket allows, and
+		 * completes the connection once it is done. Called in the I/O thread.
+		 */
+		private void continueHandshake() throws IOException {
+			if (!ssl.handshake()) {
+				setWriteInterest(ssl.hasPendingOutput());
+				return;
 			}
 			
-			return pair;
+			handshaking = false;
+			handshakeCompleted();
+			connected();
+			flush();
+			// records may have arrived with the end of the handshake
+			read();
 		}
 		
-		private synchronized void send(IServiceResponse response) {
-			ByteArrayOutputStream stream = new ByteArrayOutputStream();
-			formatter.format(stream, response);
+		public void process(SelectionKey key) throws IOException {
+			if (closed)
+				return;
 			
-			try {
-				socket.getOutputStream().write(stream.toByteArray());
-			} catch (IOException ex) {
-				removeConnector(this, ex);
+			if (key.isConnectable()) {
+				socketChannel.finishConnect();
+				key.interestOps(SelectionKey.OP_READ);
+				if (handshaking) {
+					startHandshake();
+					return;
+				}
+				connected();
+				flush();
+			}
+			
+			if (handshaking) {
+				if (ssl != null)
+					continueHandshake();
+				return;
+			}
+			
+			if (key.isValid() && key.isWritable())
+				flush();
+			
+			if (key.isValid() && key.isReadable())
+				read();
+		}
+		
+		/**
+		 * Reads what the socket has. With TLS, reads until no whole
+		 * record is left, since decrypted bytes may be pending without
+		 * the socket being readable.
+		 */
+		private void read() throws IOException {
+			while (true) {
+				int read = ssl != null ? ssl.read(receiveBuffer().buf())
+						: socketChannel.read(receiveBuffer().buf());
+				if (read < 0)
+					throw new IOException("EOF");
+				if (read == 0)
+					return;
+				received();
+				if (ssl == null)
+					return;
 			}
 		}
+		
+		public void failed(IOException ex) {
+			if (connected)
+				removeConnector(this, ex);
+			else
+				pool.connectFailed(this, ex);
+		}
 	}
 	
 	public static int toInt32B(byte[] value, int offset, int length) {
@@ -396,4 +1728,8 @@ public class TcpChannel implements IServiceChannel {
 	public void setAddress(InetSocketAddress address) {
 		this.address = address;
 	}
+	
+	public String toString() {
+		return "TcpChannel " + address;
+	}
 }
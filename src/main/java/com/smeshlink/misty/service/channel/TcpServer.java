@@ -0,0 +1,716 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONObject;
+
+import com.smeshlink.misty.formatter.JSONFormatter;
+import com.smeshlink.misty.service.IServiceCallback;
+import com.smeshlink.misty.service.IServiceRequest;
+import com.smeshlink.misty.service.IServiceResponse;
+import com.smeshlink.misty.service.JsonRequest;
+import com.smeshlink.misty.service.JsonResponse;
+import com.smeshlink.misty.service.ServiceException;
+import com.smeshlink.misty.service.ServiceFuture;
+
+/**
+ * A server speaking the JSON-over-TCP protocol of {@link TcpChannel},
+ * for load tests and local relays.
+ * <p>
+ * Requests are routed by resource to the handlers added with
+ * {@link #addHandler(String, IRequestListener)}. A handler added for
+ * <code>/feeds</code> serves <code>/feeds</code> and all resources below
+ * it, unless a handler with a longer prefix matches. Requests no handler
+ * matches are answered with status 404. Handlers run in the I/O threads,
+ * or in a {@link RequestDispatcher} if one is set.
+ * </p>
+ * <p>
+ * Each connected client is a {@link Session}, to which the server can
+ * push requests of its own and wait for their responses. The framing and
+ * compression a client asks for with an <code>OPTIONS</code> request are
+ * accepted, and heartbeats are answered.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+public class TcpServer {
+	private static final ThreadLocal currentSession = new ThreadLocal();
+
+	private final InetSocketAddress bindAddress;
+	private final Map sessions = new ConcurrentHashMap();
+	private volatile Route[] routes = new Route[0];
+	private IRequestListener defaultHandler;
+	private ISessionListener sessionListener;
+	private RequestDispatcher requestDispatcher;
+	private NioProcessorPool processorPool;
+	private IoBufferAllocator bufferAllocator = CachedBufferAllocator.getDefault();
+	private JSONFormatter formatter = new JSONFormatter();
+	private int timeout = 3000;
+	private int backlog = 50;
+	private boolean allowLengthPrefixed = true;
+	private boolean allowCompression = true;
+	private ServerSocketChannel serverChannel;
+
+	/**
+	 * Creates a server listening on all interfaces.
+	 * @param port the port, or 0 for any free port
+	 */
+	public TcpServer(int port) {
+		this(new InetSocketAddress(port));
+	}
+
+	public TcpServer(InetSocketAddress bindAddress) {
+		this.bindAddress = bindAddress;
+	}
+
+	/**
+	 * Gets the session whose request the calling handler is processing,
+	 * or null if not called by a handler.
+	 */
+	public static Session getCurrentSession() {
+		return (Session) currentSession.get();
+	}
+
+	/**
+	 * Routes the requests for a resource and those below it to a handler,
+	 * replacing any handler of the same resource.
+	 */
+	public synchronized void addHandler(String resource, IRequestListener handler) {
+		String prefix = normalize(resource);
+		List list = new ArrayList();
+		for (int i = 0; i < routes.length; i++) {
+			if (!routes[i].prefix.equals(prefix))
+				list.add(routes[i]);
+		}
+
+		// longest prefixes first
+		Route route = new Route(prefix, handler);
+		int index = 0;
+		while (index < list.size() && ((Route) list.get(index)).prefix.length() >= prefix.length())
+			index++;
+		list.add(index, route);
+		routes = (Route[]) list.toArray(new Route[list.size()]);
+	}
+
+	public synchronized void removeHandler(String resource) {
+		String prefix = normalize(resource);
+		List list = new ArrayList();
+		for (int i = 0; i < routes.length; i++) {
+			if (!routes[i].prefix.equals(prefix))
+				list.add(routes[i]);
+		}
+		routes = (Route[]) list.toArray(new Route[list.size()]);
+	}
+
+	public IRequestListener getDefaultHandler() {
+		return defaultHandler;
+	}
+
+	/**
+	 * Sets the handler of requests no other handler matches.
+	 */
+	public void setDefaultHandler(IRequestListener defaultHandler) {
+		this.defaultHandler = defaultHandler;
+	}
+
+	public ISessionListener getSessionListener() {
+		return sessionListener;
+	}
+
+	public void setSessionListener(ISessionListener sessionListener) {
+		this.sessionListener = sessionListener;
+	}
+
+	public RequestDispatcher getRequestDispatcher() {
+		return requestDispatcher;
+	}
+
+	/**
+	 * Sets the dispatcher running the handlers. Without one, the
+	 * default, handlers run in the I/O thread of the session.
+	 */
+	public void setRequestDispatcher(RequestDispatcher requestDispatcher) {
+		this.requestDispatcher = requestDispatcher;
+	}
+
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Sets how long in milliseconds to wait for the response to a pushed
+	 * request. 0 means no timeout. The default is 3000.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout < 0 ? 0 : timeout;
+	}
+
+	public int getBacklog() {
+		return backlog;
+	}
+
+	public void setBacklog(int backlog) {
+		this.backlog = backlog;
+	}
+
+	public boolean isAllowLengthPrefixed() {
+		return allowLengthPrefixed;
+	}
+
+	/**
+	 * Sets if clients may switch to length-prefixed framing.
+	 * The default is true.
+	 */
+	public void setAllowLengthPrefixed(boolean allowLengthPrefixed) {
+		this.allowLengthPrefixed = allowLengthPrefixed;
+	}
+
+	public boolean isAllowCompression() {
+		return allowCompression;
+	}
+
+	/**
+	 * Sets if clients may compress frames. The default is true.
+	 */
+	public void setAllowCompression(boolean allowCompression) {
+		this.allowCompression = allowCompression;
+	}
+
+	public synchronized NioProcessorPool getProcessorPool() {
+		if (processorPool == null)
+			processorPool = NioProcessorPool.getDefault();
+		return processorPool;
+	}
+
+	/**
+	 * Sets the I/O threads serving the sessions. The default is the
+	 * pool shared with {@link TcpChannel}.
+	 */
+	public synchronized void setProcessorPool(NioProcessorPool processorPool) {
+		this.processorPool = processorPool;
+	}
+
+	/**
+	 * Gets the allocator of the buffers sessions read into and
+	 * encode frames into.
+	 */
+	public synchronized IoBufferAllocator getBufferAllocator() {
+		return bufferAllocator;
+	}
+
+	/**
+	 * Sets the allocator of the buffers sessions read into and encode
+	 * frames into. The default is {@link CachedBufferAllocator#getDefault()}.
+	 * If null, buffers are allocated anew every time.
+	 * Only affects sessions accepted afterwards.
+	 */
+	public synchronized void setBufferAllocator(IoBufferAllocator allocator) {
+		this.bufferAllocator = allocator == null ? new SimpleBufferAllocator() : allocator;
+	}
+
+	/**
+	 * Starts listening.
+	 */
+	public synchronized void start() throws IOException {
+		if (serverChannel != null)
+			throw new IllegalStateException("Server already started");
+
+		ServerSocketChannel sc = ServerSocketChannel.open();
+		try {
+			sc.socket().setReuseAddress(true);
+			sc.socket().bind(bindAddress, backlog);
+			sc.configureBlocking(false);
+		} catch (IOException ex) {
+			sc.close();
+			throw ex;
+		}
+		serverChannel = sc;
+
+		getProcessorPool().next().register(sc, SelectionKey.OP_ACCEPT, new Acceptor(sc));
+		System.out.println("Listening on " + sc.socket().getLocalSocketAddress());
+	}
+
+	/**
+	 * Stops listening and closes all sessions.
+	 */
+	public void stop() {
+		ServerSocketChannel sc;
+		synchronized (this) {
+			sc = serverChannel;
+			serverChannel = null;
+		}
+		if (sc != null) {
+			try {
+				sc.close();
+			} catch (IOException ex) {
+				// ignore
+			}
+		}
+
+		for (Iterator it = getSessions().iterator(); it.hasNext(); )
+			((Session) it.next()).close();
+	}
+
+	public synchronized boolean isStarted() {
+		return serverChannel != null;
+	}
+
+	/**
+	 * Gets the port listened on, which is chosen by the system if the
+	 * server was created with port 0, or -1 if not started.
+	 */
+	public synchronized int getLocalPort() {
+		return serverChannel == null ? -1 : serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Gets the connected sessions.
+	 */
+	public List getSessions() {
+		return new ArrayList(sessions.values());
+	}
+
+	/**
+	 * Pushes a request to all connected sessions.
+	 * @return the futures of the responses of the sessions
+	 */
+	public List broadcast(IServiceRequest request) {
+		List futures = new ArrayList();
+		for (Iterator it = getSessions().iterator(); it.hasNext(); )
+			futures.add(((Session) it.next()).executeAsync(request, null));
+		return futures;
+	}
+
+	private IRequestListener findHandler(String resource) {
+		if (resource != null) {
+			Route[] list = routes;
+			for (int i = 0; i < list.length; i++) {
+				String prefix = list[i].prefix;
+				if (resource.startsWith(prefix) && (resource.length() == prefix.length()
+						|| prefix.endsWith("/") || resource.charAt(prefix.length()) == '/'))
+					return list[i].handler;
+			}
+		}
+		return defaultHandler;
+	}
+
+	private static String normalize(String resource) {
+		if (resource == null || resource.length() == 0)
+			return "/";
+		if (resource.length() > 1 && resource.endsWith("/"))
+			resource = resource.substring(0, resource.length() - 1);
+		return resource.startsWith("/") ? resource : "/" + resource;
+	}
+
+	private static IServiceResponse newResponse(int status, String token, String message) {
+		JSONObject json = new JSONObject();
+		json.put("status", status);
+		if (token != null)
+			json.put("token", token);
+		if (message != null)
+			json.put("body", message);
+		return new JsonResponse(json);
+	}
+
+	/**
+	 * Notified when clients connect and disconnect.
+	 */
+	public interface ISessionListener {
+		void sessionOpened(Session session);
+		void sessionClosed(Session session);
+	}
+
+	private static class Route {
+		final String prefix;
+		final IRequestListener handler;
+
+		public Route(String prefix, IRequestListener handler) {
+			this.prefix = prefix;
+			this.handler = handler;
+		}
+	}
+
+	private class Acceptor implements NioProcessor.IHandler {
+		private final ServerSocketChannel serverChannel;
+
+		public Acceptor(ServerSocketChannel serverChannel) {
+			this.serverChannel = serverChannel;
+		}
+
+		public void process(SelectionKey key) throws IOException {
+			SocketChannel sc;
+			while ((sc = serverChannel.accept()) != null) {
+				try {
+					sc.configureBlocking(false);
+					sc.socket().setTcpNoDelay(true);
+				} catch (IOException ex) {
+					sc.close();
+					continue;
+				}
+				new Session(sc, getProcessorPool().next()).open();
+			}
+		}
+
+		public void failed(IOException ex) {
+			if (serverChannel.isOpen())
+				System.out.println("Acceptor failed " + ex);
+		}
+	}
+
+	/**
+	 * A connected client.
+	 */
+	public class Session implements NioProcessor.IHandler {
+		private final SocketChannel socketChannel;
+		private final NioProcessor processor;
+		private final SocketAddress remoteAddress;
+		private final IoBufferAllocator allocator = bufferAllocator;
+		private final Map waitingRequests = new ConcurrentHashMap();
+		private final WriteQueue writeQueue = new WriteQueue(65536);
+		private final FrameCompressor compressor = allowCompression
+				? new FrameCompressor(allocator, -1) : null;
+		private final IFrameDecoder decoder = new LengthPrefixedFrameDecoder(compressor);
+		private final List frames = new ArrayList();
+		private IoBuffer packetBuffer = allocator.allocate(TcpChannel.RECEIVE_BUFFER_SIZE, false);
+		private volatile boolean lengthPrefixed;
+		private volatile boolean closed;
+		private final Runnable flushTask = new Runnable() {
+			public void run() {
+				if (closed)
+					return;
+				try {
+					flush();
+				} catch (IOException ex) {
+					failed(ex);
+				}
+			}
+		};
+		private final Runnable freeTask = new Runnable() {
+			public void run() {
+				packetBuffer.free();
+				packetBuffer = null;
+			}
+		};
+
+		Session(SocketChannel socketChannel, NioProcessor processor) {
+			this.socketChannel = socketChannel;
+			this.processor = processor;
+			this.remoteAddress = socketChannel.socket().getRemoteSocketAddress();
+		}
+
+		private void open() {
+			sessions.put(this, this);
+			processor.register(socketChannel, SelectionKey.OP_READ, this);
+			ISessionListener listener = sessionListener;
+			if (listener != null)
+				listener.sessionOpened(this);
+		}
+
+		public SocketAddress getRemoteAddress() {
+			return remoteAddress;
+		}
+
+		public TcpServer getServer() {
+			return TcpServer.this;
+		}
+
+		public boolean isOpen() {
+			return !closed;
+		}
+
+		/**
+		 * Pushes a request to the client and waits for its response.
+		 * @throws ServiceException with status 504 if the client does not
+		 *         respond in time, or 503 if the session is closed
+		 */
+		public IServiceResponse execute(IServiceRequest request) {
+			ServiceFuture future = executeAsync(request, null);
+			try {
+				future.await();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw ServiceException.error(ex);
+			}
+			return (IServiceResponse) future.getResult();
+		}
+
+		/**
+		 * Pushes a request to the client.
+		 * @param callback notified of the response, or null
+		 */
+		public ServiceFuture executeAsync(IServiceRequest request, IServiceCallback callback) {
+			final ServiceFuture future = new ServiceFuture(callback);
+			final String token = request.getToken();
+			if (token == null) {
+				future.fail(new ServiceException(ServiceException.BAD_REQUEST, "Missing request token"));
+				return future;
+			}
+
+			waitingRequests.put(token, future);
+			if (closed) {
+				if (waitingRequests.remove(token) != null)
+					future.fail(ServiceException.unavailable("Session closed"));
+				return future;
+			}
+			if (timeout > 0) {
+				final HashedWheelTimer.Timeout t = TcpChannel.timeouts.newTimeout(new Runnable() {
+					public void run() {
+						if (waitingRequests.remove(token) != null)
+							future.fail(ServiceException.timeout("No response in " + timeout + " ms"));
+					}
+				}, timeout);
+				future.addCallback(new IServiceCallback() {
+					public void completed(Object result) {
+						t.cancel();
+					}
+
+					public void failed(ServiceException e) {
+						t.cancel();
+					}
+				});
+			}
+
+			IoBufferWriter writer = newFrameWriter();
+			formatter.format(writer, request);
+			try {
+				write(toFrame(writer.getBuffer()));
+			} catch (IOException ex) {
+				if (waitingRequests.remove(token) != null)
+					future.fail(ServiceException.unavailable("Session closed: " + ex.getMessage()));
+				close();
+			}
+			return future;
+		}
+
+		/**
+		 * Closes the connection. Pushed requests waiting for
+		 * responses fail at once.
+		 */
+		public void close() {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+			}
+
+			sessions.remove(this);
+			try {
+				socketChannel.close();
+			} catch (IOException ex) {
+				// ignore
+			}
+			writeQueue.clear();
+			if (compressor != null)
+				compressor.end();
+			// the I/O thread may still be reading into the buffer
+			if (processor.inProcessorThread())
+				freeTask.run();
+			else
+				processor.execute(freeTask);
+
+			for (Iterator it = waitingRequests.keySet().iterator(); it.hasNext(); ) {
+				ServiceFuture future = (ServiceFuture) waitingRequests.remove(it.next());
+				if (future != null)
+					future.fail(ServiceException.unavailable("Session closed"));
+			}
+
+			ISessionListener listener = sessionListener;
+			if (listener != null)
+				listener.sessionClosed(this);
+		}
+
+		public void process(SelectionKey key) throws IOException {
+			if (closed)
+				return;
+
+			if (key.isValid() && key.isWritable())
+				flush();
+
+			if (key.isValid() && key.isReadable()) {
+				int required = packetBuffer.position() + TcpChannel.READ_CHUNK_SIZE;
+				if (required > packetBuffer.capacity())
+					packetBuffer.capacity(IoBuffer.normalizeCapacity(required));
+				packetBuffer.limit(packetBuffer.capacity());
+
+				int read = socketChannel.read(packetBuffer.buf());
+				if (read < 0)
+					throw new IOException("EOF");
+				if (read > 0)
+					received();
+			}
+		}
+
+		public void failed(IOException ex) {
+			close();
+		}
+
+		private void received() throws IOException {
+			packetBuffer.flip();
+			try {
+				decoder.decode(packetBuffer, frames);
+			} finally {
+				packetBuffer.compact();
+			}
+
+			try {
+				for (Iterator it = frames.iterator(); it.hasNext(); ) {
+					JSONObject jsonObj = new JSONObject((String) it.next());
+					if (jsonObj.has("status"))
+						setResponse(new JsonResponse(jsonObj));
+					else if (jsonObj.has("method"))
+						processRequest(new JsonRequest(jsonObj));
+				}
+			} finally {
+				frames.clear();
+			}
+		}
+
+		private void setResponse(IServiceResponse response) {
+			if (response.getToken() == null)
+				return;
+			ServiceFuture future = (ServiceFuture) waitingRequests.remove(response.getToken());
+			if (future != null)
+				future.complete(response);
+		}
+
+		private void processRequest(IServiceRequest request) throws IOException {
+			if ("OPTIONS".equals(request.getMethod())) {
+				negotiate(request);
+				return;
+			}
+
+			final IRequestListener handler = findHandler(request.getResource());
+			if (handler == null) {
+				send(newResponse(ServiceException.NOT_FOUND, request.getToken(),
+						"No handler for " + request.getResource()));
+				return;
+			}
+
+			RequestDispatcher dispatcher = requestDispatcher;
+			if (dispatcher == null) {
+				process(handler, request);
+			} else {
+				final IServiceRequest req = request;
+				boolean accepted = dispatcher.dispatch(request.getResource(), new Runnable() {
+					public void run() {
+						try {
+							process(handler, req);
+						} catch (IOException ex) {
+							close();
+						}
+					}
+				});
+				if (!accepted)
+					send(newResponse(ServiceException.SERVICE_UNAVAILABLE, request.getToken(), null));
+			}
+		}
+
+		private void process(IRequestListener handler, IServiceRequest request) throws IOException {
+			IServiceResponse response;
+			currentSession.set(this);
+			try {
+				response = handler.process(request);
+			} catch (ServiceException ex) {
+				response = newResponse(ex.getStatus(), request.getToken(), ex.getMessage());
+			} catch (RuntimeException ex) {
+				System.out.println("Request handler failed " + ex);
+				response = newResponse(ServiceException.INTERNAL_SERVER_ERROR, request.getToken(), null);
+			} finally {
+				currentSession.set(null);
+			}
+
+			if (response != null) {
+				if (response.getToken() == null)
+					response.setToken(request.getToken());
+				send(response);
+			}
+		}
+
+		/**
+		 * Answers an <code>OPTIONS</code> request, accepting the framing
+		 * and compression asked for if allowed. Frames sent after the
+		 * response use them.
+		 */
+		private void negotiate(IServiceRequest request) throws IOException {
+			JsonResponse response = (JsonResponse) newResponse(200, request.getToken(), null);
+			Map headers = request.getHeaders();
+			boolean prefixed = allowLengthPrefixed && TcpChannel.FRAMING_LENGTH_PREFIXED_NAME
+					.equals(headers.get(TcpChannel.HEADER_FRAMING));
+			boolean deflate = prefixed && compressor != null && TcpChannel.COMPRESSION_DEFLATE_NAME
+					.equals(headers.get(TcpChannel.HEADER_COMPRESSION));
+
+			if (prefixed)
+				response.setHeader(TcpChannel.HEADER_FRAMING, TcpChannel.FRAMING_LENGTH_PREFIXED_NAME);
+			if (deflate)
+				response.setHeader(TcpChannel.HEADER_COMPRESSION, TcpChannel.COMPRESSION_DEFLATE_NAME);
+			send(response);
+
+			if (prefixed)
+				lengthPrefixed = true;
+			if (deflate)
+				writeQueue.setCompressor(compressor);
+		}
+
+		private void send(IServiceResponse response) throws IOException {
+			IoBufferWriter writer = newFrameWriter();
+			formatter.format(writer, response);
+			write(toFrame(writer.getBuffer()));
+		}
+
+		private IoBufferWriter newFrameWriter() {
+			IoBuffer buf = allocator.allocate(TcpChannel.FRAME_BUFFER_SIZE, false);
+			if (lengthPrefixed)
+				buf.position(LengthPrefixedFrameDecoder.PREFIX_LENGTH);
+			return new IoBufferWriter(buf);
+		}
+
+		private IoBuffer toFrame(IoBuffer buf) {
+			buf.flip();
+			if (lengthPrefixed)
+				buf.putInt(0, buf.limit() - LengthPrefixedFrameDecoder.PREFIX_LENGTH);
+			return buf;
+		}
+
+		private void write(IoBuffer frame) throws IOException {
+			if (closed)
+				throw new IOException("Session closed");
+			if (writeQueue.add(frame) == WriteQueue.FIRST)
+				processor.execute(flushTask);
+		}
+
+		/**
+		 * Writes as much queued data as the socket accepts. Called in the I/O thread.
+		 */
+		private void flush() throws IOException {
+			boolean drained = writeQueue.flush(socketChannel);
+			SelectionKey key = processor.keyFor(socketChannel);
+			if (key != null && key.isValid()) {
+				if (drained)
+					key.interestOps(SelectionKey.OP_READ);
+				else
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		public String toString() {
+			return "Session " + remoteAddress;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2011-2014 SmeshLink Technology Corporation.
+ * All rights reserved.
+ *
+ * This file is part of the Misty, a sensor cloud for IoT.
+ */
+package com.smeshlink.misty.service.channel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Outbound frames of a connection waiting to be written.
+ * <p>
+ * Frames queued while a flush is pending are coalesced and written
+ * together with gathering writes. Only one thread flushes at a time:
+ * the caller of {@link #add(IoBuffer)} which gets {@link #FIRST}
+ * is responsible for starting a flush, which may be delayed to collect
+ * more frames until the queued bytes reach the buffer size. Frames
+ * are freed once written.
+ * </p>
+ * <p>
+ * If a {@link FrameCompressor} is set, frames are compressed as they are
+ * queued, so that they pass through the compression stream in the same
+ * order as they are written.
+ * </p>
+ * <p>
+ * The queue is guarded by a {@link ReentrantLock} rather than its monitor,
+ * and the lock is never held while writing, so that callers running in
+ * virtual threads do not pin their carriers.
+ * </p>
+ *
+ * @author Longshine
+ *
+ */
+class WriteQueue {
+	/**
+	 * A flush is already pending.
+	 */
+	public static final int PENDING = 0;
+	/**
+	 * No flush was pending. The caller must start one.
+	 */
+	public static final int FIRST = 1;
+	/**
+	 * A flush is pending and the queue just became full.
+	 * The pending flush should be started now.
+	 */
+	public static final int FULL = 2;
+	/**
+	 * The maximum number of buffers written by one gathering write.
+	 */
+	static final int MAX_GATHER = 64;
+
+	private final LinkedList buffers = new LinkedList();
+	private final int bufferSize;
+	private FrameCompressor compressor;
+	private int queuedBytes;
+	private boolean pending;
+	private boolean full;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition filled = lock.newCondition();
+
+	public WriteQueue(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Sets the compressor of frames queued afterwards.
+	 */
+	public void setCompressor(FrameCompressor compressor) {
+		lock.lock();
+		try {
+			this.compressor = compressor;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a frame.
+	 * @return {@link #FIRST}, {@link #FULL} or {@link #PENDING}
+	 * @throws IOException if the frame cannot be compressed
+	 */
+	public int add(IoBuffer buf) throws IOException {
+		lock.lock();
+		try {
+			if (compressor != null)
+				buf = compressor.compress(buf);
+			buffers.add(buf);
+			queuedBytes += buf.remaining();
+
+			if (!pending) {
+				pending = true;
+				full = isFull();
+				return FIRST;
+			} else if (!full && isFull()) {
+				full = true;
+				filled.signalAll();
+				return FULL;
+			} else {
+				return PENDING;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getQueuedBytes() {
+		lock.lock();
+		try {
+			return queuedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isFull() {
+		lock.lock();
+		try {
+			return queuedBytes >= bufferSize;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the queue is full or the delay elapses.
+	 */
+	public void linger(long delay) throws InterruptedException {
+		lock.lock();
+		try {
+			long deadline = System.currentTimeMillis() + delay;
+			while (!isFull()) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0)
+					break;
+				filled.await(wait, TimeUnit.MILLISECONDS);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the queued frames until the queue is empty, which ends the
+	 * pending flush, or the channel accepts no more bytes.
+	 * Must not be called by more than one thread at a time.
+	 * @return true if the queue was drained
+	 */
+	public boolean flush(GatheringByteChannel channel) throws IOException {
+		while (true) {
+			ByteBuffer[] batch;
+			lock.lock();
+			try {
+				if (buffers.isEmpty()) {
+					pending = false;
+					full = false;
+					return true;
+				}
+				int n = Math.min(buffers.size(), MAX_GATHER);
+				batch = new ByteBuffer[n];
+				Iterator it = buffers.iterator();
+				for (int i = 0; i < n; i++)
+					batch[i] = ((IoBuffer) it.next()).buf();
+			} finally {
+				lock.unlock();
+			}
+
+			long written = channel.write(batch);
+
+			lock.lock();
+			try {
+				queuedBytes -= written;
+				while (!buffers.isEmpty() && !((IoBuffer) buffers.getFirst()).hasRemaining())
+					((IoBuffer) buffers.removeFirst()).free();
+			} finally {
+				lock.unlock();
+			}
+
+			if (batch[batch.length - 1].hasRemaining())
+				return false;
+		}
+	}
+
+	/**
+	 * Drops all queued frames. They are not freed since a flush
+	 * may still be writing them.
+	 */
+	public void clear() {
+		lock.lock();
+		try {
+			buffers.clear();
+			queuedBytes = 0;
+			pending = false;
+			full = false;
+			filled.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.smeshlink.misty.service.channel;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class CachedBufferAllocatorTest extends TestCase {
+
+	public void testRecycle() {
+		CachedBufferAllocator allocator = new CachedBufferAllocator(1024, 1, 4096);
+		
+		IoBuffer buf = allocator.allocate(100, false);
+		assertEquals(100, buf.limit());
+		assertEquals(128, buf.capacity());
+		ByteBuffer storage = buf.buf();
+		buf.free();
+		
+		IoBuffer again = allocator.allocate(120, false);
+		assertSame(storage, again.buf());
+		assertEquals(0, again.position());
+		assertEquals(120, again.limit());
+		
+		// storage given up by expansion is recycled
+		again.capacity(200);
+		assertSame(storage, allocator.allocate(128, false).buf());
+		
+		// not cached
+		IoBuffer large = allocator.allocate(2000, false);
+		large.free();
+		assertEquals(0, allocator.getPoolBytes());
+	}
+	
+	public void testGlobalPool() throws Exception {
+		final CachedBufferAllocator allocator = new CachedBufferAllocator(1024, 1, 4096);
+		final IoBuffer first = allocator.allocate(256, false);
+		final IoBuffer second = allocator.allocate(256, false);
+		ByteBuffer storage = second.buf();
+		
+		Thread t = new Thread() {
+			public void run() {
+				first.free();
+				// thread cache full
+				second.free();
+			}
+		};
+		t.start();
+		t.join();
+		
+		assertEquals(256, allocator.getPoolBytes());
+		assertSame(storage, allocator.allocate(256, false).buf());
+		assertEquals(0, allocator.getPoolBytes());
+	}
+	
+	public void testVirtualThreads() throws Exception {
+		final CachedBufferAllocator allocator = new CachedBufferAllocator(1024, 8, 4096);
+		final ByteBuffer[] buffers = new ByteBuffer[2];
+		
+		if (!runVirtual(new Runnable() {
+			public void run() {
+				IoBuffer buf = allocator.allocate(256, false);
+				buffers[0] = buf.buf();
+				buf.free();
+			}
+		}))
+			// before Java 21
+			return;
+		// no thread cache, straight to the global pool
+		assertEquals(256, allocator.getPoolBytes());
+		
+		runVirtual(new Runnable() {
+			public void run() {
+				buffers[1] = allocator.allocate(256, false).buf();
+			}
+		});
+		assertSame(buffers[0], buffers[1]);
+		assertEquals(0, allocator.getPoolBytes());
+	}
+	
+	/**
+	 * Runs a task in a virtual thread and waits for it.
+	 * @return false if virtual threads are not supported
+	 */
+	private static boolean runVirtual(Runnable task) throws Exception {
+		Method ofVirtual;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual", null);
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+		Object builder = ofVirtual.invoke(null, null);
+		Method start = ofVirtual.getReturnType().getMethod("start", new Class[] { Runnable.class });
+		((Thread) start.invoke(builder, new Object[] { task })).join();
+		return true;
+	}
+}
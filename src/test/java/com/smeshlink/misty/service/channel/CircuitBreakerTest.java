@@ -0,0 +1,49 @@
+package com.smeshlink.misty.service.channel;
+
+import junit.framework.TestCase;
+
+public class CircuitBreakerTest extends TestCase {
+
+	public void testOpensAfterThreshold() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker();
+		breaker.setFailureThreshold(2);
+		
+		breaker.recordFailure(60000);
+		assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+		breaker.recordFailure(60000);
+		assertTrue(breaker.isOpen());
+		
+		breaker.recordSuccess();
+		assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+		// consecutive failures only
+		breaker.recordFailure(60000);
+		assertFalse(breaker.isOpen());
+	}
+	
+	public void testHalfOpen() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker();
+		breaker.setFailureThreshold(3);
+		for (int i = 0; i < 3; i++)
+			breaker.recordFailure(20);
+		assertTrue(breaker.isOpen());
+		
+		Thread.sleep(40);
+		assertEquals(CircuitBreaker.HALF_OPEN, breaker.getState());
+		// a single failed trial opens it again
+		breaker.recordFailure(60000);
+		assertTrue(breaker.isOpen());
+	}
+	
+	public void testDisabled() {
+		CircuitBreaker breaker = new CircuitBreaker();
+		breaker.setFailureThreshold(1);
+		breaker.recordFailure(60000);
+		assertTrue(breaker.isOpen());
+		
+		breaker.setFailureThreshold(0);
+		assertFalse(breaker.isOpen());
+		for (int i = 0; i < 10; i++)
+			breaker.recordFailure(60000);
+		assertFalse(breaker.isOpen());
+	}
+}
@@ -0,0 +1,142 @@
+package com.smeshlink.misty.service.channel;
+
+import java.io.IOException;
+import java.util.Timer;
+
+import org.json.JSONObject;
+
+import com.smeshlink.misty.service.IServiceRequest;
+import com.smeshlink.misty.service.IServiceResponse;
+import com.smeshlink.misty.service.JsonResponse;
+import com.smeshlink.misty.service.ServiceException;
+
+import junit.framework.TestCase;
+
+public class ConnectorPoolTest extends TestCase {
+	private TcpServer server;
+	private TcpChannel channel;
+	private Timer timer;
+	private ConnectorPool pool;
+
+	protected void setUp() throws Exception {
+		server = new TcpServer(0);
+		server.setDefaultHandler(new IRequestListener() {
+			public IServiceResponse process(IServiceRequest request) {
+				return new JsonResponse(new JSONObject().put("status", 200));
+			}
+		});
+		server.start();
+		channel = new TcpChannel("127.0.0.1:" + server.getLocalPort());
+		timer = new Timer(true);
+		pool = new ConnectorPool(channel, timer);
+		pool.setAcquireTimeout(5000);
+	}
+
+	protected void tearDown() throws Exception {
+		pool.close();
+		timer.cancel();
+		channel.close();
+		server.stop();
+	}
+
+	public void testAcquireGrowsWhenBusy() throws Exception {
+		pool.setMaxSize(2);
+
+		TcpChannel.Connector first = pool.acquire();
+		assertTrue(first.isConnected());
+		// all busy, another connection is opened in background
+		assertSame(first, pool.acquire());
+		assertEquals(2, first.getInFlight());
+		waitConnected(2);
+
+		TcpChannel.Connector second = pool.acquire();
+		assertNotSame(first, second);
+		assertEquals(1, second.getInFlight());
+
+		first.release();
+		first.release();
+		second.release();
+		ConnectionPoolStats stats = pool.getStats();
+		assertEquals(2, stats.getCreated());
+		assertEquals(3, stats.getAcquired());
+		assertEquals(0, stats.getInFlight());
+	}
+
+	public void testNoGrowthWhileBackingOff() throws Exception {
+		pool.setMaxSize(2);
+		pool.getBackoff().setInitialDelay(10000);
+		pool.getBackoff().setJitter(0);
+
+		TcpChannel.Connector first = pool.acquire();
+		pool.connectFailed(null, new IOException("Connection refused"));
+		// all busy, but no new connection until the backoff elapses
+		assertSame(first, pool.acquire());
+		Thread.sleep(100);
+		assertEquals(1, pool.getStats().getCreated());
+		first.release();
+		first.release();
+	}
+
+	public void testAcquireTimeout() throws Exception {
+		pool.setMaxInFlightPerConnection(1);
+		pool.setAcquireTimeout(100);
+
+		TcpChannel.Connector c = pool.acquire();
+		try {
+			pool.acquire();
+			fail();
+		} catch (ServiceException e) {
+			assertEquals(ServiceException.GATEWAY_TIMEOUT, e.getStatus());
+		}
+
+		c.release();
+		assertSame(c, pool.acquire());
+		c.release();
+	}
+
+	public void testEvictIdle() throws Exception {
+		pool.setMinSize(0);
+		pool.setIdleTimeout(1);
+
+		TcpChannel.Connector c = pool.acquire();
+		c.release();
+		Thread.sleep(10);
+		pool.maintain();
+
+		// gone from the pool at once, so never handed out again
+		ConnectionPoolStats stats = pool.getStats();
+		assertEquals(0, stats.getSize());
+		assertEquals(1, stats.getEvicted());
+		assertEquals(1, stats.getClosed());
+		assertFalse(c.isOpen());
+
+		TcpChannel.Connector next = pool.acquire();
+		assertNotSame(c, next);
+		assertTrue(next.isOpen());
+		next.release();
+		assertEquals(2, pool.getStats().getCreated());
+	}
+
+	public void testKeepMinSize() throws Exception {
+		pool.setMinSize(1);
+		pool.setIdleTimeout(1);
+
+		TcpChannel.Connector c = pool.acquire();
+		c.release();
+		Thread.sleep(10);
+		pool.maintain();
+
+		assertEquals(0, pool.getStats().getEvicted());
+		assertSame(c, pool.acquire());
+		c.release();
+	}
+
+	private void waitConnected(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (pool.getStats().getConnected() < count) {
+			if (System.currentTimeMillis() > deadline)
+				fail("Not connected: " + pool.getStats());
+			Thread.sleep(10);
+		}
+	}
+}
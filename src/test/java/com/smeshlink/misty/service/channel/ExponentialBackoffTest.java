@@ -0,0 +1,42 @@
+package com.smeshlink.misty.service.channel;
+
+import junit.framework.TestCase;
+
+public class ExponentialBackoffTest extends TestCase {
+
+	public void testDoublesUpToMax() {
+		ExponentialBackoff backoff = new ExponentialBackoff();
+		backoff.setInitialDelay(100);
+		backoff.setMaxDelay(1000);
+		backoff.setJitter(0);
+		
+		assertEquals(100, backoff.nextDelay());
+		assertEquals(200, backoff.nextDelay());
+		assertEquals(400, backoff.nextDelay());
+		assertEquals(800, backoff.nextDelay());
+		assertEquals(1000, backoff.nextDelay());
+		assertEquals(1000, backoff.nextDelay());
+		
+		backoff.reset();
+		assertEquals(100, backoff.nextDelay());
+	}
+	
+	public void testJitter() {
+		ExponentialBackoff backoff = new ExponentialBackoff();
+		backoff.setInitialDelay(1000);
+		backoff.setMaxDelay(1000);
+		backoff.setJitter(0.5);
+		
+		for (int i = 0; i < 100; i++) {
+			long delay = backoff.nextDelay();
+			assertTrue("delay " + delay, delay > 500 && delay <= 1000);
+		}
+		
+		try {
+			backoff.setJitter(1.5);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
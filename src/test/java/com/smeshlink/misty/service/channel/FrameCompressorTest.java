@@ -0,0 +1,52 @@
+package com.smeshlink.misty.service.channel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class FrameCompressorTest extends TestCase {
+	
+	public void testStreaming() throws Exception {
+		FrameCompressor sender = new FrameCompressor(new SimpleBufferAllocator(), -1);
+		FrameCompressor receiver = new FrameCompressor(new SimpleBufferAllocator(), -1);
+		LengthPrefixedFrameDecoder decoder = new LengthPrefixedFrameDecoder(receiver);
+		IoBuffer in = IoBuffer.allocate(8, false).setAutoExpand(true);
+		List frames = new ArrayList();
+		
+		StringBuffer large = new StringBuffer();
+		for (int i = 0; i < 2000; i++)
+			large.append(i).append(',');
+		
+		String[] texts = new String[] {
+			"{\"method\":\"PUT\",\"resource\":\"/feeds/1\",\"headers\":{\"Content-Type\":\"application/json\"},\"token\":\"a\"}",
+			"{\"method\":\"PUT\",\"resource\":\"/feeds/2\",\"headers\":{\"Content-Type\":\"application/json\"},\"token\":\"b\"}",
+			"{\"body\":\"" + large + "中\"}",
+		};
+		int[] sizes = new int[texts.length];
+		for (int i = 0; i < texts.length; i++) {
+			byte[] data = texts[i].getBytes("utf-8");
+			IoBuffer frame = IoBuffer.allocate(data.length + 4, false);
+			frame.putInt(data.length);
+			frame.put(data);
+			frame.flip();
+			
+			IoBuffer compressed = sender.compress(frame);
+			sizes[i] = compressed.remaining();
+			assertEquals(FrameCompressor.FLAG_BYTE, compressed.get(0));
+			in.put(compressed.buf());
+		}
+		// later frames refer back to earlier ones
+		assertTrue(sizes[1] < sizes[0]);
+		assertTrue(sizes[1] < 32);
+		
+		in.flip();
+		decoder.decode(in, frames);
+		assertEquals(texts.length, frames.size());
+		for (int i = 0; i < texts.length; i++)
+			assertEquals(texts[i], frames.get(i));
+		
+		sender.end();
+		receiver.end();
+	}
+}
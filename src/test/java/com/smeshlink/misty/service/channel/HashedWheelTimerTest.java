@@ -0,0 +1,48 @@
+package com.smeshlink.misty.service.channel;
+
+import junit.framework.TestCase;
+
+public class HashedWheelTimerTest extends TestCase {
+	
+	public void testExpire() throws Exception {
+		// a small wheel, so that timeouts take several rounds
+		HashedWheelTimer timer = new HashedWheelTimer("test", 10, 4);
+		final long[] fired = new long[3];
+		
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < fired.length; i++) {
+			final int index = i;
+			timer.newTimeout(new Runnable() {
+				public void run() {
+					synchronized (fired) {
+						fired[index] = System.currentTimeMillis();
+						fired.notifyAll();
+					}
+				}
+			}, 50 + i * 45);
+		}
+		final boolean[] cancelledFired = new boolean[1];
+		HashedWheelTimer.Timeout cancelled = timer.newTimeout(new Runnable() {
+			public void run() {
+				cancelledFired[0] = true;
+			}
+		}, 60);
+		assertTrue(cancelled.cancel());
+		
+		synchronized (fired) {
+			while (fired[fired.length - 1] == 0)
+				fired.wait(1000);
+		}
+		Thread.sleep(50);
+		timer.stop();
+		
+		for (int i = 0; i < fired.length; i++) {
+			long elapsed = fired[i] - start;
+			assertTrue("fired early: " + elapsed, elapsed >= 50 + i * 45);
+			assertTrue("fired late: " + elapsed, elapsed < 50 + i * 45 + 200);
+		}
+		assertFalse(cancelledFired[0]);
+		assertTrue(cancelled.isCancelled());
+		assertFalse(cancelled.cancel());
+	}
+}
@@ -0,0 +1,241 @@
+package com.smeshlink.misty.service.channel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.smeshlink.misty.entity.Feed;
+import com.smeshlink.misty.formatter.JSONFormatter;
+import com.smeshlink.misty.service.ApiKeyCredential;
+import com.smeshlink.misty.service.IServiceResponse;
+import com.smeshlink.misty.service.ServiceException;
+import com.smeshlink.misty.service.ServiceFuture;
+import com.smeshlink.misty.service.ServiceRequestImpl;
+import com.smeshlink.misty.service.UserCredential;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+public class HttpChannelTest extends TestCase {
+	private HttpServer server;
+	private HttpChannel channel;
+	private int fullResponses;
+
+	protected void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				if (exchange.getRequestURI().getPath().startsWith("/slow")) {
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException e) {
+						// ignore
+					}
+				}
+				byte[] body;
+				if ("POST".equals(exchange.getRequestMethod())) {
+					String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+					InputStream is = exchange.getRequestBody();
+					if ("gzip".equals(encoding))
+						is = new GZIPInputStream(is);
+					Collection feeds = new JSONFormatter().parseFeeds(is);
+					body = (exchange.getRequestHeaders().getFirst("Transfer-Encoding") + "|"
+							+ encoding + "|" + feeds.size()).getBytes("utf-8");
+				} else if (exchange.getRequestURI().getPath().startsWith("/query")) {
+					body = String.valueOf(exchange.getRequestURI().getRawQuery()).getBytes("utf-8");
+				} else {
+					body = (exchange.getRequestHeaders().getFirst("Authorization") + "|"
+							+ exchange.getRequestHeaders().getFirst("X-ApiKey")).getBytes("utf-8");
+				}
+				
+				String path = exchange.getRequestURI().getPath();
+				if (path.startsWith("/cached")) {
+					if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+						exchange.sendResponseHeaders(304, -1);
+						exchange.close();
+						return;
+					}
+					exchange.getResponseHeaders().set("ETag", "\"v1\"");
+					fullResponses++;
+				}
+				if (path.startsWith("/gzip") || path.startsWith("/deflate")) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					DeflaterOutputStream dos = path.startsWith("/gzip") ? new GZIPOutputStream(bytes)
+							: new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+					dos.write(body);
+					dos.finish();
+					body = bytes.toByteArray();
+					exchange.getResponseHeaders().set("Content-Encoding", path.startsWith("/gzip") ? "gzip" : "deflate");
+				}
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(body);
+				os.close();
+			}
+		});
+		server.start();
+		channel = new HttpChannel("127.0.0.1:" + server.getAddress().getPort());
+	}
+
+	protected void tearDown() throws Exception {
+		channel.close();
+		server.stop(0);
+	}
+
+	public void testCredentialsPerRequest() throws Exception {
+		ServiceRequestImpl request = newRequest("/feeds");
+		request.setCredential(new UserCredential("user", "pass"));
+		assertEquals("Basic dXNlcjpwYXNz|null", read(channel.execute(request)));
+
+		request = newRequest("/feeds");
+		request.setCredential(new ApiKeyCredential("key"));
+		assertEquals("null|key", read(channel.execute(request)));
+
+		assertEquals("null|null", read(channel.execute(newRequest("/feeds"))));
+	}
+
+	public void testQueryParameters() throws Exception {
+		assertEquals("null", read(channel.execute(newRequest("/query"))));
+		
+		ServiceRequestImpl request = newRequest("/query");
+		request.getParameters().put("q", "a b&c");
+		assertEquals("q=a+b%26c", read(channel.execute(request)));
+		
+		request.getParameters().put("q", Arrays.asList(new String[] { "1", "2" }));
+		assertEquals("q=1&q=2", read(channel.execute(request)));
+	}
+
+	public void testOptions() throws Exception {
+		ServiceRequestImpl request = newRequest("/");
+		request.setMethod("OPTIONS");
+		IServiceResponse response = channel.execute(request);
+		assertEquals(200, response.getStatus());
+		response.dispose();
+	}
+
+	public void testStreamingBody() throws Exception {
+		List feeds = new ArrayList();
+		for (int i = 0; i < 5000; i++) {
+			Feed feed = new Feed();
+			feed.setName("feed" + i);
+			feeds.add(feed);
+		}
+		
+		ServiceRequestImpl request = newRequest("/feeds");
+		request.setMethod("POST");
+		request.setBody(feeds);
+		assertEquals("chunked|gzip|5000", read(channel.execute(request)));
+		
+		request.setBody(feeds.subList(0, 1));
+		assertEquals("null|null|1", read(channel.execute(request)));
+		
+		// formatted in a single pass, whether compressed or not
+		request.setBody(new SinglePassCollection(feeds));
+		assertEquals("chunked|gzip|5000", read(channel.execute(request)));
+		request.setBody(new SinglePassCollection(feeds.subList(0, 1)));
+		assertEquals("null|null|1", read(channel.execute(request)));
+		
+		channel.setCompressRequests(false);
+		request.setBody(feeds);
+		assertEquals("chunked|null|5000", read(channel.execute(request)));
+	}
+	
+	public void testCompressedResponse() throws Exception {
+		assertEquals("null|null", read(channel.execute(newRequest("/gzip"))));
+		assertEquals("null|null", read(channel.execute(newRequest("/deflate"))));
+	}
+
+	public void testCache() throws Exception {
+		HttpCache cache = new HttpCache(1024 * 1024);
+		channel.setCache(cache);
+		
+		ServiceRequestImpl request = newRequest("/cached");
+		request.setCredential(new ApiKeyCredential("key"));
+		assertEquals("null|key", read(channel.execute(request)));
+		assertEquals("null|key", read(channel.execute(request)));
+		assertEquals(1, fullResponses);
+		assertEquals(1, cache.getHitCount());
+		
+		request.setCredential(new ApiKeyCredential("other"));
+		assertEquals("null|other", read(channel.execute(request)));
+		assertEquals(2, fullResponses);
+		assertEquals(2, cache.getEntryCount());
+		// secrets are not kept in the keys
+		String key = HttpCache.getKey("host", request);
+		assertTrue(key.endsWith(" " + HttpCache.digest("X-ApiKey:other")));
+		assertEquals(-1, key.indexOf("other"));
+		
+		ServiceRequestImpl post = newRequest("/cached");
+		post.setMethod("POST");
+		post.setBody(new ArrayList());
+		read(channel.execute(post));
+		assertEquals(0, cache.getEntryCount());
+	}
+
+	public void testTimeout() throws Exception {
+		channel.setTimeout(200);
+		assertNull(channel.execute(newRequest("/slow")));
+
+		ServiceFuture future = channel.executeAsync(newRequest("/slow"), null);
+		future.await();
+		assertEquals(ServiceException.GATEWAY_TIMEOUT, future.getException().getStatus());
+	}
+
+	/**
+	 * A collection which can be iterated only once, like one whose
+	 * elements are produced as they are read.
+	 */
+	private static class SinglePassCollection extends AbstractCollection {
+		private final Collection collection;
+		private boolean iterated;
+		
+		public SinglePassCollection(Collection collection) {
+			this.collection = collection;
+		}
+		
+		public Iterator iterator() {
+			if (iterated)
+				throw new IllegalStateException("Already iterated");
+			iterated = true;
+			return collection.iterator();
+		}
+		
+		public int size() {
+			return collection.size();
+		}
+	}
+	
+	private static ServiceRequestImpl newRequest(String resource) {
+		ServiceRequestImpl request = new ServiceRequestImpl();
+		request.setMethod("GET");
+		request.setResource(resource);
+		return request;
+	}
+
+	private static String read(IServiceResponse response) throws IOException {
+		try {
+			InputStream is = response.getResponseStream();
+			StringBuffer sb = new StringBuffer();
+			int c;
+			while ((c = is.read()) != -1)
+				sb.append((char) c);
+			return sb.toString();
+		} finally {
+			response.dispose();
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package com.smeshlink.misty.service.channel;
+
+import com.smeshlink.misty.service.ServiceException;
+
+import junit.framework.TestCase;
+
+public class InFlightLimiterTest extends TestCase {
+	
+	public void testModes() throws Exception {
+		final InFlightLimiter limiter = new InFlightLimiter(2);
+		limiter.acquire();
+		limiter.acquire();
+		
+		limiter.setMode(InFlightLimiter.REJECT);
+		try {
+			limiter.acquire();
+			fail("not rejected");
+		} catch (ServiceException e) {
+			assertEquals(ServiceException.SERVICE_UNAVAILABLE, e.getStatus());
+		}
+		
+		limiter.setMode(InFlightLimiter.TIMED_WAIT);
+		limiter.setWaitTimeout(50);
+		long start = System.currentTimeMillis();
+		try {
+			limiter.acquire();
+			fail("not timed out");
+		} catch (ServiceException e) {
+			assertTrue(System.currentTimeMillis() - start >= 50);
+		}
+		assertEquals(2, limiter.getRejectedCount());
+		
+		limiter.setMode(InFlightLimiter.BLOCK);
+		Thread t = new Thread() {
+			public void run() {
+				limiter.acquire();
+			}
+		};
+		t.start();
+		while (limiter.getQueueDepth() == 0)
+			Thread.sleep(1);
+		limiter.release();
+		t.join(1000);
+		assertFalse(t.isAlive());
+		assertEquals(2, limiter.getInFlight());
+		assertEquals(0, limiter.getQueueDepth());
+	}
+}
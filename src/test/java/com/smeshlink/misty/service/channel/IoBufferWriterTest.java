@@ -0,0 +1,25 @@
+package com.smeshlink.misty.service.channel;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class IoBufferWriterTest extends TestCase {
+
+	public void testUtf8() throws Exception {
+		String text = "{\"value\":\"a\u00e9\u4e2d\ud83d\ude00z\"}";
+
+		IoBufferWriter writer = new IoBufferWriter(IoBuffer.allocate(2, false));
+		// split between the surrogates
+		writer.write(text.substring(0, 14));
+		writer.write(text.charAt(14));
+		writer.write(text.toCharArray(), 15, text.length() - 15);
+
+		IoBuffer buf = writer.getBuffer();
+		buf.flip();
+		byte[] actual = new byte[buf.remaining()];
+		buf.get(actual);
+
+		assertTrue(Arrays.equals(text.getBytes("utf-8"), actual));
+	}
+}
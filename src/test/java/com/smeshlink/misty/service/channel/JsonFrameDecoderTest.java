@@ -0,0 +1,117 @@
+package com.smeshlink.misty.service.channel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class JsonFrameDecoderTest extends TestCase {
+	
+	public void testConcatenatedFrames() throws Exception {
+		List frames = decode(new JsonFrameDecoder(), new String[] {
+				"{\"status\":200,\"token\":\"a\"} \r\n{\"status\":404}[1,2]" });
+		
+		assertEquals(3, frames.size());
+		assertEquals("{\"status\":200,\"token\":\"a\"}", frames.get(0));
+		assertEquals("{\"status\":404}", frames.get(1));
+		assertEquals("[1,2]", frames.get(2));
+	}
+	
+	public void testBinaryBytesBetweenFrames() throws Exception {
+		IoBuffer buf = IoBuffer.allocate(64, false);
+		buf.put("{\"status\":200}".getBytes("utf-8"));
+		buf.put((byte) 0);
+		buf.put("{\"status\":404}".getBytes("utf-8"));
+		buf.put(FrameCompressor.FLAG_BYTE);
+		buf.put("{\"status\":500}".getBytes("utf-8"));
+		buf.flip();
+		
+		// skipped as noise, so that the stream goes on
+		List frames = new ArrayList();
+		new JsonFrameDecoder().decode(buf, frames);
+		assertEquals(3, frames.size());
+		assertEquals("{\"status\":404}", frames.get(1));
+		assertEquals("{\"status\":500}", frames.get(2));
+		assertFalse(buf.hasRemaining());
+	}
+	
+	public void testBracesInStrings() throws Exception {
+		String json = "{\"body\":\"}{ \\\"}\\\\\",\"resource\":\"/feeds/{x}\"}";
+		List frames = decode(new JsonFrameDecoder(), new String[] { json + json });
+		
+		assertEquals(2, frames.size());
+		assertEquals(json, frames.get(0));
+		assertEquals(json, frames.get(1));
+	}
+	
+	public void testSplitFrames() throws Exception {
+		String json = "{\"body\":{\"name\":\"temp\\\"{\",\"values\":[1,{\"v\":2}]},\"status\":200}";
+		
+		for (int split = 1; split < json.length(); split++) {
+			List frames = decode(new JsonFrameDecoder(), new String[] {
+					json.substring(0, split), json.substring(split) + json });
+			assertEquals(2, frames.size());
+			assertEquals(json, frames.get(0));
+			assertEquals(json, frames.get(1));
+		}
+	}
+	
+	public void testMultiByteCharacters() throws Exception {
+		String json = "{\"title\":\"温度\"}";
+		List frames = decode(new JsonFrameDecoder(), new String[] { json });
+		
+		assertEquals(1, frames.size());
+		assertEquals(json, frames.get(0));
+	}
+	
+	public void testMaxFrameLength() throws Exception {
+		JsonFrameDecoder decoder = new JsonFrameDecoder();
+		decoder.setMaxFrameLength(16);
+		
+		try {
+			decode(decoder, new String[] { "{\"body\":\"0123456789abcdef\"" });
+			fail();
+		} catch (BufferDataException e) {
+			// expected
+		}
+	}
+	
+	public void testCompressedFrameAfterText() throws Exception {
+		FrameCompressor sender = new FrameCompressor(new SimpleBufferAllocator(), -1);
+		FrameCompressor receiver = new FrameCompressor(new SimpleBufferAllocator(), -1);
+		String json = "{\"status\":200,\"token\":\"a\"}";
+		byte[] data = json.getBytes("utf-8");
+		IoBuffer frame = IoBuffer.allocate(data.length + 4, false);
+		frame.putInt(data.length);
+		frame.put(data);
+		frame.flip();
+		
+		// a plain frame and whitespace, then a compressed frame in the same read
+		IoBuffer in = IoBuffer.allocate(8, false).setAutoExpand(true);
+		in.put((json + " \r\n").getBytes("utf-8"));
+		in.put(sender.compress(frame).buf());
+		in.flip();
+		
+		List frames = new ArrayList();
+		new LengthPrefixedFrameDecoder(receiver).decode(in, frames);
+		assertEquals(2, frames.size());
+		assertEquals(json, frames.get(0));
+		assertEquals(json, frames.get(1));
+		assertFalse(in.hasRemaining());
+		
+		sender.end();
+		receiver.end();
+	}
+	
+	static List decode(IFrameDecoder decoder, String[] chunks) throws Exception {
+		List frames = new ArrayList();
+		IoBuffer buf = IoBuffer.allocate(8, false).setAutoExpand(true);
+		for (int i = 0; i < chunks.length; i++) {
+			buf.put(chunks[i].getBytes("utf-8"));
+			buf.flip();
+			decoder.decode(buf, frames);
+			buf.compact();
+		}
+		return frames;
+	}
+}
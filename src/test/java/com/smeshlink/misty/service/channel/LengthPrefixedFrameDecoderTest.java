@@ -0,0 +1,59 @@
+package com.smeshlink.misty.service.channel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class LengthPrefixedFrameDecoderTest extends TestCase {
+	
+	public void testMixedFrames() throws Exception {
+		String json = "{\"status\":200,\"body\":\"}{\"}";
+		byte[] data = json.getBytes("utf-8");
+		
+		IoBuffer buf = IoBuffer.allocate(8, false).setAutoExpand(true);
+		buf.put(data);
+		buf.put(TcpChannel.toBytesB(data.length, 4));
+		buf.put(data);
+		buf.put(TcpChannel.toBytesB(data.length, 4));
+		buf.put(data);
+		byte[] all = new byte[buf.position()];
+		buf.flip();
+		buf.get(all);
+		
+		for (int split = 1; split < all.length; split++) {
+			LengthPrefixedFrameDecoder decoder = new LengthPrefixedFrameDecoder();
+			List frames = new ArrayList();
+			IoBuffer in = IoBuffer.allocate(8, false).setAutoExpand(true);
+			
+			in.put(all, 0, split);
+			in.flip();
+			decoder.decode(in, frames);
+			in.compact();
+			in.put(all, split, all.length - split);
+			in.flip();
+			decoder.decode(in, frames);
+			
+			assertEquals(3, frames.size());
+			for (int i = 0; i < frames.size(); i++) {
+				assertEquals(json, frames.get(i));
+			}
+			assertFalse(in.hasRemaining());
+		}
+	}
+	
+	public void testMaxFrameLength() throws Exception {
+		LengthPrefixedFrameDecoder decoder = new LengthPrefixedFrameDecoder();
+		decoder.setMaxFrameLength(16);
+		
+		IoBuffer in = IoBuffer.allocate(8, false);
+		in.put(TcpChannel.toBytesB(17, 4));
+		in.flip();
+		try {
+			decoder.decode(in, new ArrayList());
+			fail();
+		} catch (BufferDataException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package com.smeshlink.misty.service.channel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.json.JSONObject;
+
+import com.smeshlink.misty.service.IServiceCallback;
+import com.smeshlink.misty.service.IServiceRequest;
+import com.smeshlink.misty.service.IServiceResponse;
+import com.smeshlink.misty.service.JsonResponse;
+import com.smeshlink.misty.service.ServiceException;
+import com.smeshlink.misty.service.ServiceFuture;
+import com.smeshlink.misty.service.ServiceRequestImpl;
+
+import junit.framework.TestCase;
+
+public class LoadBalancingChannelTest extends TestCase {
+	
+	public void testFailover() throws Exception {
+		StubChannel down = new StubChannel(ServiceException.SERVICE_UNAVAILABLE);
+		StubChannel up = new StubChannel(200);
+		LoadBalancingChannel channel = new LoadBalancingChannel(new IServiceChannel[] { down, up });
+		channel.setHealthCheckInterval(0);
+		channel.setFailureThreshold(2);
+		
+		for (int i = 0; i < 10; i++)
+			assertEquals(200, channel.execute(newRequest()).getStatus());
+		
+		assertEquals(10, up.count);
+		// taken out of rotation after two failures
+		assertEquals(2, down.count);
+		assertFalse(((LoadBalancingChannel.Endpoint) channel.getEndpoints().get(0)).isHealthy());
+		
+		up.status = ServiceException.SERVICE_UNAVAILABLE;
+		try {
+			channel.execute(newRequest());
+			fail("no failure");
+		} catch (ServiceException e) {
+			assertEquals(ServiceException.SERVICE_UNAVAILABLE, e.getStatus());
+		}
+	}
+	
+	public void testHealthCheck() throws Exception {
+		StubChannel refused = new StubChannel(ServiceException.BAD_REQUEST);
+		StubChannel notFound = new StubChannel(ServiceException.NOT_FOUND);
+		notFound.respond = true;
+		StubChannel down = new StubChannel(ServiceException.SERVICE_UNAVAILABLE);
+		LoadBalancingChannel channel = new LoadBalancingChannel(new IServiceChannel[] { refused, notFound, down });
+		channel.setFailureThreshold(1);
+		channel.setHealthCheckInterval(20);
+		try {
+			Thread.sleep(300);
+			assertTrue(endpoint(channel, 0).isHealthy());
+			assertTrue(endpoint(channel, 1).isHealthy());
+			assertFalse(endpoint(channel, 2).isHealthy());
+			assertTrue(notFound.count > 1);
+			
+			down.status = 200;
+			Thread.sleep(300);
+			assertTrue(endpoint(channel, 2).isHealthy());
+		} finally {
+			channel.close();
+		}
+		// every check response is released
+		assertEquals(notFound.count, notFound.disposed);
+		assertEquals(down.respondCount, down.disposed);
+	}
+	
+	public void testBlockedHealthCheck() throws Exception {
+		StubChannel blocked = new StubChannel(200);
+		blocked.block = 5000;
+		StubChannel down = new StubChannel(ServiceException.SERVICE_UNAVAILABLE);
+		LoadBalancingChannel channel = new LoadBalancingChannel(new IServiceChannel[] { blocked, down });
+		channel.setFailureThreshold(1);
+		channel.setHealthCheckInterval(20);
+		try {
+			// not held up by the check of the other endpoint
+			Thread.sleep(300);
+			assertFalse(endpoint(channel, 1).isHealthy());
+			assertEquals(1, blocked.count);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	public void testFailoverFromCallback() throws Exception {
+		StubChannel down = new StubChannel(ServiceException.SERVICE_UNAVAILABLE);
+		down.callbackThread = true;
+		StubChannel up = new StubChannel(200);
+		LoadBalancingChannel channel = new LoadBalancingChannel(new IServiceChannel[] { down, up });
+		channel.setHealthCheckInterval(0);
+		channel.setFailureThreshold(100);
+		try {
+			for (int i = 0; i < 20; i++)
+				assertEquals(200, channel.execute(newRequest()).getStatus());
+		} finally {
+			channel.close();
+		}
+		assertTrue(down.count > 0);
+		// retries are not sent from the thread running the callback
+		assertFalse(up.calledFromCallback);
+	}
+	
+	public void testNoReplayAfterConnectionLost() throws Exception {
+		// reads a request, then drops the connection without answering
+		final ServerSocket dropping = new ServerSocket(0);
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					while (true) {
+						Socket socket = dropping.accept();
+						InputStream is = socket.getInputStream();
+						int c, depth = 0;
+						while ((c = is.read()) != -1) {
+							if (c == '{')
+								depth++;
+							else if (c == '}' && --depth == 0)
+								break;
+						}
+						socket.close();
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		
+		final int[] received = new int[1];
+		TcpServer server = new TcpServer(0);
+		server.setDefaultHandler(new IRequestListener() {
+			public IServiceResponse process(IServiceRequest request) {
+				synchronized (received) {
+					received[0]++;
+				}
+				return new JsonResponse(new JSONObject().put("status", 200));
+			}
+		});
+		server.start();
+		
+		TcpChannel lost = new TcpChannel("127.0.0.1:" + dropping.getLocalPort());
+		TcpChannel ok = new TcpChannel("127.0.0.1:" + server.getLocalPort());
+		LoadBalancingChannel channel = new LoadBalancingChannel(new IServiceChannel[] { lost, ok });
+		channel.setHealthCheckInterval(0);
+		channel.setFailureThreshold(100);
+		try {
+			int succeeded = 0, dropped = 0;
+			for (int i = 0; i < 20; i++) {
+				ServiceRequestImpl request = (ServiceRequestImpl) newRequest();
+				request.setMethod("POST");
+				try {
+					channel.execute(request);
+					succeeded++;
+				} catch (ServiceException e) {
+					assertEquals(ServiceException.BAD_GATEWAY, e.getStatus());
+					dropped++;
+				}
+			}
+			assertTrue(dropped > 0);
+			// a POST which may have run is not sent again
+			assertEquals(succeeded, received[0]);
+			
+			// a GET is
+			for (int i = 0; i < 20; i++)
+				assertEquals(200, channel.execute(newRequest()).getStatus());
+		} finally {
+			channel.close();
+			lost.close();
+			ok.close();
+			server.stop();
+			dropping.close();
+		}
+	}
+	
+	private static LoadBalancingChannel.Endpoint endpoint(LoadBalancingChannel channel, int index) {
+		return (LoadBalancingChannel.Endpoint) channel.getEndpoints().get(index);
+	}
+	
+	private static IServiceRequest newRequest() {
+		ServiceRequestImpl request = new ServiceRequestImpl();
+		request.setMethod("GET");
+		request.setResource("/feeds");
+		return request;
+	}
+	
+	private static class StubChannel implements IServiceChannel {
+		volatile int status;
+		/** whether to answer other statuses than 200 with a response */
+		volatile boolean respond;
+		/** whether to fail requests from another thread */
+		volatile boolean callbackThread;
+		volatile boolean calledFromCallback;
+		/** how long to block the caller in milliseconds */
+		volatile int block;
+		volatile int count;
+		volatile int respondCount;
+		volatile int disposed;
+		
+		public StubChannel(int status) {
+			this.status = status;
+		}
+		
+		public void setTimeout(int timeout) {
+		}
+		
+		public int getTimeout() {
+			return 0;
+		}
+		
+		public void setRequestListener(IRequestListener listener) {
+		}
+		
+		public IServiceResponse execute(IServiceRequest request) {
+			return (IServiceResponse) executeAsync(request, null).getResult();
+		}
+		
+		public ServiceFuture executeAsync(IServiceRequest request, IServiceCallback callback) {
+			count++;
+			if (block > 0) {
+				try {
+					Thread.sleep(block);
+				} catch (InterruptedException e) {
+					// ignore
+				}
+			}
+			if (Thread.currentThread().getName().equals("callback"))
+				calledFromCallback = true;
+			final ServiceFuture future = new ServiceFuture(callback);
+			if (status == 200 || respond) {
+				respondCount++;
+				JSONObject json = new JSONObject();
+				json.put("status", status);
+				future.complete(new JsonResponse(json) {
+					public void dispose() {
+						disposed++;
+					}
+				});
+			} else if (callbackThread) {
+				new Thread("callback") {
+					public void run() {
+						future.fail(new ServiceException(status));
+					}
+				}.start();
+			} else {
+				future.fail(new ServiceException(status));
+			}
+			return future;
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package com.smeshlink.misty.service.channel;
+
+import junit.framework.TestCase;
+
+public class RequestDispatcherTest extends TestCase {
+	private static final Runnable NOTHING = new Runnable() {
+		public void run() {
+		}
+	};
+
+	public void testDispatchAfterShutdown() throws Exception {
+		RequestDispatcher unordered = new RequestDispatcher(1, 10, false);
+		unordered.shutdown();
+		assertFalse(unordered.dispatch("/feeds/1", NOTHING));
+		assertEquals(0, unordered.getQueueDepth());
+		assertEquals(1, unordered.getRejectedCount());
+
+		RequestDispatcher ordered = new RequestDispatcher(1, 10, true);
+		ordered.shutdown();
+		assertFalse(ordered.dispatch("/feeds/1", NOTHING));
+		// the queue of the resource is not left behind
+		assertFalse(ordered.dispatch("/feeds/1", NOTHING));
+		assertEquals(0, ordered.getQueueDepth());
+		assertEquals(2, ordered.getRejectedCount());
+	}
+}
@@ -0,0 +1,244 @@
+package com.smeshlink.misty.service.channel;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.json.JSONObject;
+
+import com.smeshlink.misty.service.IServiceRequest;
+import com.smeshlink.misty.service.IServiceResponse;
+import com.smeshlink.misty.service.JsonResponse;
+import com.smeshlink.misty.service.ServiceException;
+import com.smeshlink.misty.service.ServiceRequestImpl;
+
+import junit.framework.TestCase;
+
+public class TcpChannelTest extends TestCase {
+	private TcpServer server;
+	private volatile int delay;
+
+	protected void setUp() throws Exception {
+		server = new TcpServer(0);
+		server.setDefaultHandler(new IRequestListener() {
+			public IServiceResponse process(IServiceRequest request) {
+				if (delay > 0) {
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException e) {
+						// ignore
+					}
+				}
+				JSONObject json = new JSONObject();
+				json.put("status", 200);
+				json.put("body", request.getResource());
+				return new JsonResponse(json);
+			}
+		});
+		server.start();
+	}
+
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+
+	public void testNio() throws Exception {
+		final TcpChannel channel = new TcpChannel("127.0.0.1:" + server.getLocalPort());
+		channel.setUseNio(true);
+		try {
+			final int[] ok = new int[1];
+			Thread[] threads = new Thread[8];
+			for (int i = 0; i < threads.length; i++) {
+				final int id = i;
+				threads[i] = new Thread() {
+					public void run() {
+						for (int j = 0; j < 50; j++) {
+							String resource = "/feeds/" + id + "/" + j;
+							if (resource.equals(channel.execute(newRequest(resource)).getBody())) {
+								synchronized (ok) {
+									ok[0]++;
+								}
+							}
+						}
+					}
+				};
+				threads[i].start();
+			}
+			for (int i = 0; i < threads.length; i++)
+				threads[i].join();
+			assertEquals(400, ok[0]);
+		} finally {
+			channel.close();
+		}
+	}
+
+	public void testMultiplexing() throws Exception {
+		server.setRequestDispatcher(new RequestDispatcher(8, 100, false));
+		delay = 300;
+		final TcpChannel channel = new TcpChannel("127.0.0.1:" + server.getLocalPort());
+		channel.setMaxPoolSize(1);
+		try {
+			final Object[] bodies = new Object[8];
+			Thread[] threads = new Thread[bodies.length];
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < threads.length; i++) {
+				final int id = i;
+				threads[i] = new Thread() {
+					public void run() {
+						bodies[id] = channel.execute(newRequest("/feeds/" + id)).getBody();
+					}
+				};
+				threads[i].start();
+			}
+			for (int i = 0; i < threads.length; i++)
+				threads[i].join();
+
+			// answered at once over a single connection, not one by one
+			assertTrue(System.currentTimeMillis() - start < bodies.length * delay);
+			for (int i = 0; i < bodies.length; i++)
+				assertEquals("/feeds/" + i, bodies[i]);
+			assertEquals(1, server.getSessions().size());
+		} finally {
+			channel.close();
+			server.getRequestDispatcher().shutdown();
+		}
+	}
+
+	public void testHeartbeat() throws Exception {
+		TcpChannel channel = new TcpChannel("127.0.0.1:" + server.getLocalPort());
+		channel.setHeartbeatInterval(100);
+		channel.setReadIdleTimeout(400);
+		try {
+			assertEquals("/feeds/1", channel.execute(newRequest("/feeds/1")).getBody());
+			// heartbeats keep the quiet connection alive
+			Thread.sleep(1000);
+			assertEquals("/feeds/2", channel.execute(newRequest("/feeds/2")).getBody());
+			assertEquals(0, channel.getPoolStats().getClosed());
+		} finally {
+			channel.close();
+		}
+	}
+
+	public void testReadIdleTimeout() throws Exception {
+		// accepts connections but never answers
+		ServerSocket silent = new ServerSocket(0);
+		TcpChannel channel = new TcpChannel("127.0.0.1:" + silent.getLocalPort());
+		channel.setReadIdleTimeout(200);
+		channel.setTimeout(100);
+		try {
+			channel.execute(newRequest("/feeds/1"));
+			Socket socket = silent.accept();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (channel.getPoolStats().getClosed() == 0) {
+				if (System.currentTimeMillis() > deadline)
+					fail("Not closed: " + channel.getPoolStats());
+				Thread.sleep(20);
+			}
+			socket.close();
+		} finally {
+			channel.close();
+			silent.close();
+		}
+	}
+
+	public void testHeartbeatWithoutTimeout() throws Exception {
+		// accepts connections but never answers
+		ServerSocket silent = new ServerSocket(0);
+		TcpChannel channel = new TcpChannel("127.0.0.1:" + silent.getLocalPort());
+		channel.setTimeout(0);
+		channel.setHeartbeatInterval(100);
+		try {
+			channel.executeAsync(newRequest("/feeds/1"), null);
+			Socket socket = silent.accept();
+			// the unanswered heartbeat still times out
+			long deadline = System.currentTimeMillis() + 5000;
+			while (channel.getPoolStats().getClosed() == 0) {
+				if (System.currentTimeMillis() > deadline)
+					fail("Not closed: " + channel.getPoolStats());
+				Thread.sleep(20);
+			}
+			socket.close();
+		} finally {
+			channel.close();
+			silent.close();
+		}
+	}
+
+	public void testFramingNotAnswered() throws Exception {
+		// accepts connections but never answers
+		ServerSocket silent = new ServerSocket(0);
+		TcpChannel channel = new TcpChannel("127.0.0.1:" + silent.getLocalPort());
+		channel.setFraming(TcpChannel.FRAMING_LENGTH_PREFIXED);
+		channel.setTimeout(0);
+		channel.setConnectTimeout(200);
+		try {
+			long start = System.currentTimeMillis();
+			// waits for the connection until the negotiation gives up
+			channel.executeAsync(newRequest("/feeds/1"), null);
+			assertTrue(System.currentTimeMillis() - start < 5000);
+			assertEquals(1, channel.getPoolStats().getConnected());
+		} finally {
+			channel.close();
+			silent.close();
+		}
+	}
+
+	public void testInterrupted() throws Exception {
+		delay = 500;
+		TcpChannel channel = new TcpChannel("127.0.0.1:" + server.getLocalPort());
+		final Thread caller = Thread.currentThread();
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// ignore
+				}
+				caller.interrupt();
+			}
+		}.start();
+		try {
+			channel.execute(newRequest("/feeds/1"));
+			fail();
+		} catch (ServiceException e) {
+			// the caller still sees that it was interrupted
+			assertTrue(Thread.interrupted());
+		} finally {
+			Thread.interrupted();
+			channel.close();
+		}
+	}
+
+	public void testDispatchedListener() throws Exception {
+		final TcpChannel channel = new TcpChannel("127.0.0.1:" + server.getLocalPort());
+		final String[] thread = new String[1];
+		channel.setRequestDispatcher(new RequestDispatcher(1, 10, true));
+		channel.setRequestListener(new IRequestListener() {
+			public IServiceResponse process(IServiceRequest request) {
+				thread[0] = Thread.currentThread().getName();
+				// calls back the server, which would never be answered
+				// if the listener blocked the I/O thread of the connection
+				JSONObject json = new JSONObject();
+				json.put("status", 200);
+				json.put("body", channel.execute(newRequest("/feeds/echo")).getBody());
+				return new JsonResponse(json);
+			}
+		});
+		try {
+			channel.execute(newRequest("/feeds/1"));
+			TcpServer.Session session = (TcpServer.Session) server.getSessions().get(0);
+			IServiceResponse response = session.execute(newRequest("/devices/1"));
+			assertEquals("/feeds/echo", response.getBody());
+			assertTrue(thread[0], thread[0].startsWith("Misty-RequestDispatcher-"));
+		} finally {
+			channel.close();
+			channel.getRequestDispatcher().shutdown();
+		}
+	}
+
+	private static IServiceRequest newRequest(String resource) {
+		ServiceRequestImpl request = new ServiceRequestImpl();
+		request.setMethod("GET");
+		request.setResource(resource);
+		return request;
+	}
+}
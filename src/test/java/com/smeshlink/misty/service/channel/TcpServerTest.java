@@ -0,0 +1,274 @@
+package com.smeshlink.misty.service.channel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.json.JSONObject;
+
+import com.smeshlink.misty.service.IServiceRequest;
+import com.smeshlink.misty.service.IServiceResponse;
+import com.smeshlink.misty.service.JsonResponse;
+import com.smeshlink.misty.service.ServiceException;
+import com.smeshlink.misty.service.ServiceRequestImpl;
+
+import junit.framework.TestCase;
+
+public class TcpServerTest extends TestCase {
+	
+	public void testRoutingAndPush() throws Exception {
+		TcpServer server = new TcpServer(0);
+		server.addHandler("/feeds", new EchoListener("feeds"));
+		server.addHandler("/feeds/special", new EchoListener("special"));
+		server.start();
+		
+		TcpChannel channel = new TcpChannel("127.0.0.1:" + server.getLocalPort());
+		channel.setFraming(TcpChannel.FRAMING_LENGTH_PREFIXED);
+		channel.setCompression(TcpChannel.COMPRESSION_DEFLATE);
+		channel.setRequestListener(new EchoListener("client"));
+		try {
+			assertEquals("feeds /feeds/1", channel.execute(newRequest("/feeds/1")).getBody());
+			assertEquals("special /feeds/special/2", channel.execute(newRequest("/feeds/special/2")).getBody());
+			assertEquals(404, channel.execute(newRequest("/feedsx")).getStatus());
+			
+			assertEquals(1, server.getSessions().size());
+			TcpServer.Session session = (TcpServer.Session) server.getSessions().get(0);
+			IServiceResponse response = session.execute(newRequest("/devices/1"));
+			assertEquals("client /devices/1", response.getBody());
+		} finally {
+			channel.close();
+			server.stop();
+		}
+	}
+	
+	public void testControlLane() throws Exception {
+		TcpServer server = new TcpServer(0);
+		server.setDefaultHandler(new EchoListener("server"));
+		server.start();
+		
+		TcpChannel channel = new TcpChannel("127.0.0.1:" + server.getLocalPort());
+		try {
+			assertEquals("server /feeds/1", channel.execute(newRequest("/feeds/1")).getBody());
+			assertEquals("server /feeds/1", channel.execute(newRequest("CMD", "/feeds/1")).getBody());
+			assertEquals(1, channel.getPoolStats().getAcquired());
+			assertEquals(1, channel.getControlPoolStats().getAcquired());
+			assertEquals(2, server.getSessions().size());
+			
+			channel.setControlPoolSize(0);
+			channel.execute(newRequest("CMD", "/feeds/1"));
+			assertEquals(2, channel.getPoolStats().getAcquired());
+		} finally {
+			channel.close();
+			server.stop();
+		}
+	}
+	
+	public void testUnformattableBody() throws Exception {
+		TcpServer server = new TcpServer(0);
+		server.setDefaultHandler(new EchoListener("server"));
+		server.start();
+		
+		TcpChannel channel = new TcpChannel("127.0.0.1:" + server.getLocalPort());
+		try {
+			ServiceRequestImpl request = (ServiceRequestImpl) newRequest("PUT", "/feeds/1");
+			request.setBody(new Double(Double.NaN));
+			try {
+				channel.execute(request);
+				fail();
+			} catch (ServiceException e) {
+				assertEquals(ServiceException.INTERNAL_SERVER_ERROR, e.getStatus());
+			}
+			// nothing left waiting on the connection
+			assertEquals(0, channel.getPoolStats().getInFlight());
+			assertEquals("server /feeds/1", channel.execute(newRequest("/feeds/1")).getBody());
+		} finally {
+			channel.close();
+			server.stop();
+		}
+	}
+	
+	public void testTls() throws Exception {
+		TcpServer server = new TcpServer(0);
+		server.setDefaultHandler(new EchoListener("server"));
+		server.start();
+		
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		InputStream is = getClass().getResourceAsStream("/test-keystore.jks");
+		try {
+			keyStore.load(is, "changeit".toCharArray());
+		} finally {
+			is.close();
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keyStore, "changeit".toCharArray());
+		SSLContext serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(kmf.getKeyManagers(), null, null);
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(keyStore);
+		SSLContext clientContext = SSLContext.getInstance("TLS");
+		clientContext.init(null, tmf.getTrustManagers(), null);
+		
+		TlsRelay relay = new TlsRelay(serverContext, server.getLocalPort());
+		relay.start();
+		try {
+			for (int i = 0; i < 2; i++) {
+				TcpChannel channel = new TcpChannel("127.0.0.1:" + relay.getLocalPort());
+				channel.setUseNio(i == 1);
+				channel.setSslContext(clientContext);
+				try {
+					assertEquals("server /feeds/1", channel.execute(newRequest("/feeds/1")).getBody());
+					assertEquals("server /feeds/2", channel.execute(newRequest("/feeds/2")).getBody());
+				} finally {
+					channel.close();
+				}
+			}
+			
+			// a self-signed certificate is not trusted by default
+			TcpChannel channel = new TcpChannel("127.0.0.1:" + relay.getLocalPort());
+			channel.setUseSsl(true);
+			channel.setFailureThreshold(1);
+			channel.setAcquireTimeout(2000);
+			try {
+				channel.execute(newRequest("/feeds/1"));
+				fail();
+			} catch (ServiceException e) {
+				// expected
+			} finally {
+				channel.close();
+			}
+		} finally {
+			relay.close();
+			server.stop();
+		}
+	}
+	
+	public void testReceiveBuffersFreed() throws Exception {
+		boolean[] nio = { false, true };
+		for (int i = 0; i < nio.length; i++) {
+			// no thread caches, so freed buffers go to the pool
+			CachedBufferAllocator serverAllocator = new CachedBufferAllocator(65536, 0, 1 << 20);
+			CachedBufferAllocator channelAllocator = new CachedBufferAllocator(65536, 0, 1 << 20);
+			TcpServer server = new TcpServer(0);
+			server.setDefaultHandler(new EchoListener("server"));
+			server.setBufferAllocator(serverAllocator);
+			server.start();
+			
+			TcpChannel channel = new TcpChannel("127.0.0.1:" + server.getLocalPort());
+			channel.setUseNio(nio[i]);
+			channel.setBufferAllocator(channelAllocator);
+			try {
+				assertEquals("server /feeds/1", channel.execute(newRequest("/feeds/1")).getBody());
+			} finally {
+				channel.close();
+				server.stop();
+			}
+			
+			waitPooled(channelAllocator, TcpChannel.RECEIVE_BUFFER_SIZE);
+			waitPooled(serverAllocator, TcpChannel.RECEIVE_BUFFER_SIZE);
+		}
+	}
+	
+	private static void waitPooled(CachedBufferAllocator allocator, int bytes) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (allocator.getPoolBytes() < bytes) {
+			if (System.currentTimeMillis() > deadline)
+				fail("Not freed: " + allocator.getPoolBytes());
+			Thread.sleep(10);
+		}
+	}
+	
+	private static IServiceRequest newRequest(String resource) {
+		return newRequest("GET", resource);
+	}
+	
+	private static IServiceRequest newRequest(String method, String resource) {
+		ServiceRequestImpl request = new ServiceRequestImpl();
+		request.setMethod(method);
+		request.setResource(resource);
+		return request;
+	}
+	
+	/**
+	 * Terminates TLS in front of a plain server, like stunnel.
+	 */
+	private static class TlsRelay extends Thread {
+		private final ServerSocket serverSocket;
+		private final int port;
+		
+		public TlsRelay(SSLContext context, int port) throws IOException {
+			this.serverSocket = context.getServerSocketFactory().createServerSocket(0);
+			this.port = port;
+			setDaemon(true);
+		}
+		
+		public int getLocalPort() {
+			return serverSocket.getLocalPort();
+		}
+		
+		public void run() {
+			try {
+				while (true) {
+					Socket client = serverSocket.accept();
+					Socket server = new Socket("127.0.0.1", port);
+					pump(client, server);
+					pump(server, client);
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+		
+		public void close() throws IOException {
+			serverSocket.close();
+		}
+		
+		private static void pump(final Socket from, final Socket to) {
+			Thread t = new Thread() {
+				public void run() {
+					byte[] buf = new byte[4096];
+					try {
+						InputStream is = from.getInputStream();
+						OutputStream os = to.getOutputStream();
+						int n;
+						while ((n = is.read(buf)) != -1) {
+							os.write(buf, 0, n);
+							os.flush();
+						}
+					} catch (IOException e) {
+						// closed
+					}
+					try {
+						from.close();
+						to.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+	
+	private static class EchoListener implements IRequestListener {
+		private final String name;
+		
+		public EchoListener(String name) {
+			this.name = name;
+		}
+		
+		public IServiceResponse process(IServiceRequest request) {
+			JSONObject json = new JSONObject();
+			json.put("status", 200);
+			json.put("body", name + " " + request.getResource());
+			return new JsonResponse(json);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.smeshlink.misty.service.channel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import junit.framework.TestCase;
+
+public class WriteQueueTest extends TestCase {
+
+	public void testAddAndFlush() throws Exception {
+		WriteQueue queue = new WriteQueue(10);
+		assertEquals(WriteQueue.FIRST, queue.add(frame("abcd")));
+		assertEquals(WriteQueue.PENDING, queue.add(frame("efgh")));
+		assertEquals(WriteQueue.FULL, queue.add(frame("ijkl")));
+		assertEquals(WriteQueue.PENDING, queue.add(frame("mn")));
+		assertEquals(14, queue.getQueuedBytes());
+		
+		StubChannel channel = new StubChannel(Integer.MAX_VALUE);
+		assertTrue(queue.flush(channel));
+		assertEquals("abcdefghijklmn", channel.toString());
+		assertEquals(1, channel.writes);
+		assertEquals(0, queue.getQueuedBytes());
+		
+		// the next frame starts a new batch
+		assertEquals(WriteQueue.FIRST, queue.add(frame("o")));
+	}
+	
+	public void testPartialFlush() throws Exception {
+		WriteQueue queue = new WriteQueue(100);
+		queue.add(frame("abcd"));
+		queue.add(frame("efgh"));
+		
+		StubChannel channel = new StubChannel(6);
+		assertFalse(queue.flush(channel));
+		assertEquals("abcdef", channel.toString());
+		assertEquals(2, queue.getQueuedBytes());
+		// still pending until flushed
+		assertEquals(WriteQueue.PENDING, queue.add(frame("ij")));
+		
+		channel.budget = Integer.MAX_VALUE;
+		assertTrue(queue.flush(channel));
+		assertEquals("abcdefghij", channel.toString());
+		assertEquals(0, queue.getQueuedBytes());
+	}
+	
+	public void testLinger() throws Exception {
+		final WriteQueue queue = new WriteQueue(10);
+		queue.add(frame("abcd"));
+		
+		long start = System.currentTimeMillis();
+		queue.linger(50);
+		assertTrue(System.currentTimeMillis() - start >= 50);
+		
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+					queue.add(frame("efghijkl"));
+				} catch (Exception e) {
+					// fails the test below
+				}
+			}
+		};
+		t.start();
+		start = System.currentTimeMillis();
+		// woken up once full
+		queue.linger(5000);
+		assertTrue(System.currentTimeMillis() - start < 2500);
+		assertTrue(queue.isFull());
+		t.join();
+	}
+	
+	private static IoBuffer frame(String s) throws IOException {
+		byte[] data = s.getBytes("utf-8");
+		IoBuffer buf = IoBuffer.allocate(data.length, false);
+		buf.put(data);
+		buf.flip();
+		return buf;
+	}
+	
+	/**
+	 * A channel taking at most a budget of bytes.
+	 */
+	private static class StubChannel implements GatheringByteChannel {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private int budget;
+		private int writes;
+		
+		public StubChannel(int budget) {
+			this.budget = budget;
+		}
+		
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			writes++;
+			long written = 0;
+			for (int i = offset; i < offset + length && budget > 0; i++) {
+				while (srcs[i].hasRemaining() && budget > 0) {
+					bytes.write(srcs[i].get());
+					budget--;
+					written++;
+				}
+			}
+			return written;
+		}
+		
+		public long write(ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+		
+		public int write(ByteBuffer src) {
+			return (int) write(new ByteBuffer[] { src });
+		}
+		
+		public boolean isOpen() {
+			return true;
+		}
+		
+		public void close() {
+		}
+		
+		public String toString() {
+			return new String(bytes.toByteArray());
+		}
+	}
+}